@@ -0,0 +1,63 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.content.ChangeType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing the yaml files changed by a commit with {@code addFileChangesOnCommit}, for commits with many changes of
+ * which one in ten is a yaml file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangeListingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int changes;
+
+    private InMemoryScm scm;
+    private YamlValidatorPreReceiveRepositoryHook hook;
+    private Commit commit;
+
+    @Setup
+    public void setUp() {
+        scm = new InMemoryScm();
+        commit = scm.addCommit("c0mm17", 0L);
+        for (int i = 0; i < changes; i++) {
+            String directory = "module" + (i / 100) + "/";
+            if (i % 20 == 0) {
+                scm.addChange(commit.getId(), ChangeType.DELETE, directory + "old" + i + ".yaml", null);
+            } else if (i % 10 == 0) {
+                scm.addChange(commit.getId(), ChangeType.MODIFY, directory + "config" + i + ".yaml", "b10b" + i);
+            } else {
+                scm.addChange(commit.getId(), ChangeType.ADD, directory + "Source" + i + ".java", "b10b" + i);
+            }
+        }
+        hook = scm.hook(new ValidationResultCache(), new ValidationWorkerPool(1));
+    }
+
+    @Benchmark
+    public ConcurrentMap<String, YamlFile> addFileChangesOnCommit() {
+        ConcurrentMap<String, YamlFile> files = new ConcurrentHashMap<>();
+        hook.addFileChangesOnCommit(files, scm.repository, commit, "yaml");
+        return files;
+    }
+}
@@ -0,0 +1,48 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validating the content of a single file with {@code checkFile}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CheckFileBenchmark {
+
+    @Param({"small", "large", "multi-document", "tag-heavy"})
+    public String shape;
+
+    private YamlValidatorPreReceiveRepositoryHook hook;
+    private String content;
+
+    @Setup
+    public void setUp() {
+        hook = new InMemoryScm().hook(new ValidationResultCache(), new ValidationWorkerPool(1));
+        content = YamlSamples.generate(shape);
+        if (!hook.checkFile(content, new ConcurrentHashMap<>(), shape + ".yaml")) {
+            throw new IllegalStateException("The " + shape + " sample is not valid yaml");
+        }
+    }
+
+    @Benchmark
+    public boolean checkFile() {
+        return hook.checkFile(content, new ConcurrentHashMap<>(), shape + ".yaml");
+    }
+}
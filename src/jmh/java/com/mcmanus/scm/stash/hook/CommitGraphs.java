@@ -0,0 +1,92 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.content.ChangeType;
+import com.atlassian.bitbucket.repository.RefChange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a push of generated commits on top of an indexed history, in one of the shapes real pushes take.
+ */
+final class CommitGraphs {
+
+    private static final int INDEXED_HISTORY = 200;
+    private static final int YAML_PATHS = 50;
+
+    private final InMemoryScm scm;
+    private long clock;
+
+    private CommitGraphs(InMemoryScm scm) {
+        this.scm = scm;
+    }
+
+    /**
+     * @param scm Where the commits are added
+     * @param shape {@code linear}, {@code wide-merge} (a two parent merge every ten commits) or {@code octopus}
+     *              (eight branches merged at once)
+     * @param newCommits Roughly how many new commits the push holds
+     * @return The ref change of the push
+     */
+    static RefChange push(InMemoryScm scm, String shape, int newCommits) {
+        return new CommitGraphs(scm).build(shape, newCommits);
+    }
+
+    private RefChange build(String shape, int newCommits) {
+        String base = null;
+        for (int i = 0; i < INDEXED_HISTORY; i++) {
+            base = commit(base == null ? new String[0] : new String[]{base});
+            scm.markIndexed(base);
+        }
+
+        int width;
+        int length;
+        switch (shape) {
+            case "linear":
+                width = 1;
+                length = newCommits;
+                break;
+            case "wide-merge":
+                width = 2;
+                length = 5;
+                break;
+            case "octopus":
+                width = 8;
+                length = 3;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown commit graph shape " + shape);
+        }
+
+        String tip = base;
+        int created = 0;
+        while (created < newCommits) {
+            List<String> branchTips = new ArrayList<>();
+            for (int branch = 0; branch < width; branch++) {
+                String branchTip = tip;
+                for (int i = 0; i < length; i++) {
+                    branchTip = commit(branchTip);
+                    created++;
+                }
+                branchTips.add(branchTip);
+            }
+            tip = width == 1 ? branchTips.get(0) : commit(branchTips.toArray(new String[0]));
+        }
+        return scm.refChange(base, tip);
+    }
+
+    /**
+     * Adds a commit which changes one yaml file and one source file
+     */
+    private String commit(String... parents) {
+        long sequence = clock++;
+        String id = String.format("%040x", sequence);
+        scm.addCommit(id, 1500000000000L + sequence * 1000L, parents);
+
+        String blobId = "b10b" + sequence;
+        scm.addChange(id, ChangeType.MODIFY, "config/app" + (sequence % YAML_PATHS) + ".yaml", blobId);
+        scm.addChange(id, ChangeType.MODIFY, "src/Main" + (sequence % YAML_PATHS) + ".java", "j4v4" + sequence);
+        scm.addBlob(blobId, "name: app\nrevision: " + sequence + "\nitems:\n  - a\n  - b\n");
+        return id;
+    }
+}
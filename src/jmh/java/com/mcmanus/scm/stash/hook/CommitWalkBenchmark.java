@@ -0,0 +1,52 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.repository.RefChange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the new commits of a push with {@link CommitWalker}, which replaced {@code findCommitsToCheck}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommitWalkBenchmark {
+
+    @Param({"linear", "wide-merge", "octopus"})
+    public String shape;
+
+    @Param({"100", "1000"})
+    public int newCommits;
+
+    private InMemoryScm scm;
+    private CommitWalker commitWalker;
+    private RefChange refChange;
+
+    @Setup
+    public void setUp() {
+        scm = new InMemoryScm();
+        refChange = CommitGraphs.push(scm, shape, newCommits);
+        commitWalker = new CommitWalker(scm.commitService(), scm.commitIndex());
+    }
+
+    @Benchmark
+    public List<Commit> findNewCommits() {
+        return commitWalker.findNewCommits(scm.repository, refChange.getFromHash(), refChange.getToHash());
+    }
+}
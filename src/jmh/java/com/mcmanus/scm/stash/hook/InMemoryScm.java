@@ -0,0 +1,235 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.commit.CommitCallback;
+import com.atlassian.bitbucket.commit.CommitRequest;
+import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.commit.CommitSummary;
+import com.atlassian.bitbucket.commit.CommitsBetweenRequest;
+import com.atlassian.bitbucket.commit.MinimalCommit;
+import com.atlassian.bitbucket.content.Change;
+import com.atlassian.bitbucket.content.ChangeCallback;
+import com.atlassian.bitbucket.content.ChangeSummary;
+import com.atlassian.bitbucket.content.ChangeType;
+import com.atlassian.bitbucket.content.ChangesRequest;
+import com.atlassian.bitbucket.content.SimplePath;
+import com.atlassian.bitbucket.idx.CommitIndex;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.RefService;
+import com.atlassian.bitbucket.repository.Repository;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory stand-ins for the Bitbucket services the hook uses, so that benchmarks measure the hook rather than a
+ * mocking framework. Only the methods the hook calls are implemented; anything else throws.
+ */
+final class InMemoryScm {
+
+    final Repository repository = repository("BENCH", "benchmark");
+
+    private final Map<String, Commit> commits = new HashMap<>();
+    private final Map<String, List<Change>> changes = new HashMap<>();
+    private final Map<String, byte[]> blobs = new HashMap<>();
+    private final Set<String> indexed = new HashSet<>();
+    private final Map<List<Set<String>>, List<Commit>> ranges = new ConcurrentHashMap<>();
+
+    Commit addCommit(String id, long timestamp, String... parentIds) {
+        List<MinimalCommit> parents = new ArrayList<>();
+        for (String parentId : parentIds) {
+            parents.add(commits.get(parentId));
+        }
+        Map<String, Object> values = new HashMap<>();
+        values.put("getId", id);
+        values.put("getDisplayId", id.substring(0, Math.min(id.length(), 11)));
+        values.put("getParents", parents);
+        values.put("getAuthorTimestamp", new Date(timestamp));
+        values.put("getCommitterTimestamp", new Date(timestamp));
+        Commit commit = stub(Commit.class, values);
+        commits.put(id, commit);
+        return commit;
+    }
+
+    void addChange(String commitId, ChangeType type, String path, String contentId) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("getType", type);
+        values.put("getPath", new SimplePath(path));
+        values.put("getContentId", contentId);
+        changes.computeIfAbsent(commitId, id -> new ArrayList<>()).add(stub(Change.class, values));
+    }
+
+    void addBlob(String contentId, String content) {
+        blobs.put(contentId, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void markIndexed(String commitId) {
+        indexed.add(commitId);
+    }
+
+    RefChange refChange(String fromHash, String toHash) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("getFromHash", fromHash);
+        values.put("getToHash", toHash);
+        values.put("getType", RefChangeType.UPDATE);
+        return stub(RefChange.class, values);
+    }
+
+    /**
+     * @return A hook wired to the stand-ins, with the given cache and worker pool
+     */
+    YamlValidatorPreReceiveRepositoryHook hook(ValidationResultCache cache, ValidationWorkerPool workerPool) {
+        CommitService commitService = commitService();
+        return new YamlValidatorPreReceiveRepositoryHook(commitService, contentFetcher(),
+                new ChangeStreamer(commitService, null), commitIndex(), refService(), cache,
+                new ValidationScheduler(workerPool, null), new ValidationMetrics(), new SchemaRegistry(null),
+                new ValidationAuditor(null, null));
+    }
+
+    CommitService commitService() {
+        return (CommitService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{CommitService.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getCommit":
+                            return commits.get(((CommitRequest) args[0]).getCommitId());
+                        case "streamCommitsBetween":
+                            streamCommitsBetween((CommitsBetweenRequest) args[0], (CommitCallback) args[1]);
+                            return null;
+                        case "streamChanges":
+                            streamChanges((ChangesRequest) args[0], (ChangeCallback) args[1]);
+                            return null;
+                        default:
+                            return objectMethod(proxy, method.getName(), args);
+                    }
+                });
+    }
+
+    CommitIndex commitIndex() {
+        return (CommitIndex) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{CommitIndex.class},
+                (proxy, method, args) -> "isIndexed".equals(method.getName()) ?
+                        indexed.contains((String) args[0]) : objectMethod(proxy, method.getName(), args));
+    }
+
+    RefService refService() {
+        return stub(RefService.class, Collections.emptyMap());
+    }
+
+    ContentFetcher contentFetcher() {
+        return (repository, files) -> new ContentFetcher.Session() {
+            @Override
+            public <T> T read(YamlFile file, ContentFetcher.ContentConsumer<T> consumer) throws IOException {
+                return consumer.read(new UnicodeReader(new ByteArrayInputStream(blobs.get(file.getContentId()))));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Streams the commits reachable from the includes but not from the excludes, newest first, the way the
+     * default date ordering does. Ranges are worked out once, so repeated walks only pay for the callback.
+     */
+    private void streamCommitsBetween(CommitsBetweenRequest request, CommitCallback callback) {
+        List<Commit> range = ranges.computeIfAbsent(Arrays.asList(request.getIncludes(), request.getExcludes()),
+                key -> range(key.get(0), key.get(1)));
+        try {
+            for (Commit commit : range) {
+                if (!callback.onCommit(commit)) {
+                    break;
+                }
+            }
+            callback.onEnd(stub(CommitSummary.class, Collections.emptyMap()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Commit> range(Set<String> includes, Set<String> excludes) {
+        Set<String> excluded = reachable(excludes, Collections.emptySet());
+        Set<String> included = reachable(includes, excluded);
+        List<Commit> range = new ArrayList<>();
+        for (String id : included) {
+            range.add(commits.get(id));
+        }
+        range.sort(Comparator.comparing(Commit::getAuthorTimestamp).reversed());
+        return range;
+    }
+
+    private Set<String> reachable(Collection<String> tips, Set<String> stop) {
+        Set<String> seen = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>(tips);
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (stop.contains(id) || !seen.add(id)) {
+                continue;
+            }
+            for (MinimalCommit parent : commits.get(id).getParents()) {
+                pending.push(parent.getId());
+            }
+        }
+        return seen;
+    }
+
+    private void streamChanges(ChangesRequest request, ChangeCallback callback) {
+        try {
+            for (Change change : changes.getOrDefault(request.getUntilId(), Collections.emptyList())) {
+                if (!callback.onChange(change)) {
+                    break;
+                }
+            }
+            callback.onEnd(stub(ChangeSummary.class, Collections.singletonMap("isTruncated", false)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Repository repository(String projectKey, String slug) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("getProject", stub(Project.class, Collections.singletonMap("getKey", projectKey)));
+        values.put("getSlug", slug);
+        values.put("getName", slug);
+        return stub(Repository.class, values);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Map<String, Object> values) {
+        return (T) Proxy.newProxyInstance(InMemoryScm.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> values.containsKey(method.getName()) ?
+                        values.get(method.getName()) : objectMethod(proxy, method.getName(), args));
+    }
+
+    private static Object objectMethod(Object proxy, String name, Object[] args) {
+        switch (name) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return proxy.getClass().getInterfaces()[0].getSimpleName();
+            default:
+                throw new UnsupportedOperationException(name + " is not implemented by the in-memory stand-in");
+        }
+    }
+}
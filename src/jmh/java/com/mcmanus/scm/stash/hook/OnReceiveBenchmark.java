@@ -0,0 +1,73 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole push through {@code onReceive}: walking the new commits, listing their changes and validating the yaml
+ * files, with the validation cache either emptied before every push or left warm from the last one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OnReceiveBenchmark {
+
+    @Param({"linear", "wide-merge", "octopus"})
+    public String shape;
+
+    @Param({"100", "1000"})
+    public int newCommits;
+
+    @Param({"cold", "warm"})
+    public String cache;
+
+    private InMemoryScm scm;
+    private ValidationResultCache validationResultCache;
+    private YamlValidatorPreReceiveRepositoryHook hook;
+    private Collection<RefChange> refChanges;
+    private YamlValidatorSettings settings;
+
+    @Setup
+    public void setUp() {
+        scm = new InMemoryScm();
+        refChanges = Collections.singletonList(CommitGraphs.push(scm, shape, newCommits));
+        validationResultCache = new ValidationResultCache();
+        hook = scm.hook(validationResultCache, new ValidationWorkerPool(Runtime.getRuntime().availableProcessors()));
+        settings = YamlValidatorSettings.defaults();
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyCache() {
+        if ("cold".equals(cache)) {
+            validationResultCache.invalidateAll();
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> onReceive() {
+        Map<String, String> result = hook.onReceive(scm.repository, refChanges, settings);
+        if (!result.isEmpty()) {
+            throw new IllegalStateException("The generated push was rejected: " + result);
+        }
+        return result;
+    }
+}
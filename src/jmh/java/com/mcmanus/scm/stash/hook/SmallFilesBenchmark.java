@@ -0,0 +1,62 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validating the many small files of a push one after the other, the way a validation thread does, where the cost of
+ * setting up the parser for each file rivals parsing it. Run it with {@code -prof gc} to see the allocation per push.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmallFilesBenchmark {
+
+    @Param({"syntax", "construct"})
+    public String engine;
+
+    @Param({"1000"})
+    public int files;
+
+    private YamlFileValidator validator;
+    private String[] contents;
+
+    @Setup
+    public void setUp() {
+        validator = new YamlFileValidator(new YamlValidatorSettings.Builder()
+                .engine(YamlValidatorSettings.Engine.fromKey(engine))
+                .build());
+        contents = new String[files];
+        for (int i = 0; i < files; i++) {
+            contents[i] = YamlSamples.tiny(i);
+        }
+    }
+
+    @Benchmark
+    public int validate() {
+        int valid = 0;
+        for (String content : contents) {
+            if (validator.validate(content).isValid()) {
+                valid++;
+            }
+        }
+        if (valid != files) {
+            throw new IllegalStateException("Only " + valid + " of the generated files are valid");
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,109 @@
+package com.mcmanus.scm.stash.hook;
+
+/**
+ * Generated yaml content for the benchmarks, so that they do not depend on files which may change.
+ */
+final class YamlSamples {
+
+    private YamlSamples() {
+    }
+
+    static String generate(String shape) {
+        switch (shape) {
+            case "small":
+                return service(0);
+            case "large":
+                return large();
+            case "multi-document":
+                return multiDocument();
+            case "tag-heavy":
+                return tagHeavy();
+            default:
+                throw new IllegalArgumentException("Unknown yaml shape " + shape);
+        }
+    }
+
+    /**
+     * A few lines, like the many small files of a config repository, where setting up the parser costs about as much
+     * as parsing
+     */
+    static String tiny(int i) {
+        return "name: feature-" + i + "\n"
+                + "enabled: " + (i % 2 == 0) + "\n"
+                + "owners: [team-" + (i % 7) + "]\n";
+    }
+
+    /**
+     * Roughly 20 lines, the size of a typical service config
+     */
+    private static String service(int i) {
+        return "name: service-" + i + "\n"
+                + "replicas: " + (i % 5 + 1) + "\n"
+                + "image:\n"
+                + "  repository: registry.example.com/service-" + i + "\n"
+                + "  tag: \"1." + i + ".0\"\n"
+                + "ports:\n"
+                + "  - name: http\n"
+                + "    port: 8080\n"
+                + "  - name: admin\n"
+                + "    port: 8081\n"
+                + "env:\n"
+                + "  LOG_LEVEL: info\n"
+                + "  FEATURE_FLAGS: 'a,b,c'\n"
+                + "resources:\n"
+                + "  limits: {cpu: 500m, memory: 512Mi}\n"
+                + "  requests: {cpu: 100m, memory: 128Mi}\n"
+                + "labels: &labels\n"
+                + "  team: platform\n"
+                + "  tier: backend\n"
+                // only the first services use an alias, so that no sample goes over the default alias limit
+                + (i < 50 ? "selector: *labels\n" : "selector: {team: platform}\n");
+    }
+
+    /**
+     * About 1 MB in a single document, well within the default size limit
+     */
+    private static String large() {
+        StringBuilder yaml = new StringBuilder(1024 * 1024 + 1024);
+        yaml.append("services:\n");
+        for (int i = 0; yaml.length() < 1024 * 1024; i++) {
+            yaml.append("  service-").append(i).append(":\n");
+            for (String line : service(i).split("\n")) {
+                yaml.append("    ").append(line.replace("&labels", "&labels" + i).replace("*labels", "*labels" + i))
+                        .append('\n');
+            }
+        }
+        return yaml.toString();
+    }
+
+    /**
+     * 500 small documents, like a rendered set of manifests
+     */
+    private static String multiDocument() {
+        StringBuilder yaml = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            yaml.append("---\n").append(service(i));
+        }
+        return yaml.toString();
+    }
+
+    /**
+     * Custom tags on most nodes, as in CloudFormation templates
+     */
+    private static String tagHeavy() {
+        StringBuilder yaml = new StringBuilder("Resources:\n");
+        for (int i = 0; i < 200; i++) {
+            yaml.append("  Bucket").append(i).append(":\n")
+                    .append("    Type: AWS::S3::Bucket\n")
+                    .append("    Properties:\n")
+                    .append("      BucketName: !Sub '${AWS::StackName}-bucket-").append(i).append("'\n")
+                    .append("      Tags: !If\n")
+                    .append("        - IsProduction\n")
+                    .append("        - [!Ref ProductionTag]\n")
+                    .append("        - !Ref AWS::NoValue\n")
+                    .append("      Arn: !GetAtt [Role").append(i).append(", Arn]\n")
+                    .append("      Size: !!int ").append(i).append('\n');
+        }
+        return yaml.toString();
+    }
+}
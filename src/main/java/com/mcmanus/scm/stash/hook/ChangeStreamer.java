@@ -0,0 +1,244 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.commit.MinimalCommit;
+import com.atlassian.bitbucket.content.AbstractChangeCallback;
+import com.atlassian.bitbucket.content.Change;
+import com.atlassian.bitbucket.content.ChangeSummary;
+import com.atlassian.bitbucket.content.ChangeType;
+import com.atlassian.bitbucket.content.ChangesRequest;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.function.BiConsumer;
+
+/**
+ * Lists the yaml files changed by a commit or between two commits, one change at a time, so that only the paths
+ * which match are ever held in memory.
+ *
+ * Changes are streamed from {@link CommitService}, which stops after {@code page.max.changes} entries. When that
+ * happens the changes are listed again with {@code git diff-tree}, which has no such limit, so that no yaml file of a
+ * very large commit is skipped.
+ *
+ * A commit with nothing to diff against, such as the tip of a new ref in a repository without a default branch, has
+ * its whole tree listed with {@code git ls-tree} instead.
+ */
+@Named("yamlChangeStreamer")
+public class ChangeStreamer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeStreamer.class);
+
+    private static final String GITLINK_MODE = "160000";
+
+    @ComponentImport
+    private final CommitService commitService;
+    @ComponentImport
+    private final GitCommandBuilderFactory builderFactory;
+
+    @Inject
+    public ChangeStreamer(final CommitService commitService, final GitCommandBuilderFactory builderFactory) {
+        this.commitService = commitService;
+        this.builderFactory = builderFactory;
+    }
+
+    /**
+     * @param repository The repository being pushed to
+     * @param sinceId The commit to diff against, or null to diff against the first parent of {@code until}
+     * @param until The commit whose content is validated
+     * @param pathMatcher Decides which of the changed paths to keep
+     * @param consumer Given the path and blob id of every added or modified file which matches
+     */
+    public void streamChanges(Repository repository, String sinceId, Commit until, YamlPathMatcher pathMatcher,
+                              BiConsumer<String, String> consumer) {
+        ChangesRequest.Builder builder = new ChangesRequest.Builder(repository, until.getId());
+        if (sinceId != null) {
+            builder.sinceId(sinceId);
+        }
+
+        MatchingChangeCallback callback = new MatchingChangeCallback(pathMatcher, consumer);
+        commitService.streamChanges(builder.build(), callback);
+
+        if (callback.truncated) {
+            LOG.warn("The changes of " + until.getId() + " were truncated after " + callback.changes
+                    + " entries, listing them with git instead");
+            streamChangesWithGit(repository, sinceId, until, pathMatcher, consumer);
+        }
+    }
+
+    /**
+     * @param repository The repository being pushed to
+     * @param commit The commit whose content is validated
+     * @param pathMatcher Decides which of the paths to keep
+     * @param consumer Given the path and blob id of every file in the tree of the commit which matches
+     */
+    public void streamTree(Repository repository, Commit commit, YamlPathMatcher pathMatcher,
+                           BiConsumer<String, String> consumer) {
+        builderFactory.builder(repository)
+                .command("ls-tree")
+                .argument("-r")
+                .argument("-z")
+                .argument("--full-tree")
+                .argument(commit.getId())
+                .build(new LsTreeReader(pathMatcher, consumer))
+                .call();
+    }
+
+    private void streamChangesWithGit(Repository repository, String sinceId, Commit until,
+                                      YamlPathMatcher pathMatcher, BiConsumer<String, String> consumer) {
+        GitScmCommandBuilder builder = builderFactory.builder(repository)
+                .command("diff-tree")
+                .argument("-r")
+                .argument("-z")
+                .argument("--no-renames")
+                .argument("--no-commit-id");
+        String since = sinceId == null ? firstParentOf(until) : sinceId;
+        if (since == null) {
+            builder.argument("--root");
+        } else {
+            builder.argument(since);
+        }
+        builder.argument(until.getId())
+                .build(new DiffTreeReader(pathMatcher, consumer))
+                .call();
+    }
+
+    private static String firstParentOf(Commit commit) {
+        if (commit.getParents() == null) {
+            return null;
+        }
+        Iterator<MinimalCommit> parents = commit.getParents().iterator();
+        return parents.hasNext() ? parents.next().getId() : null;
+    }
+
+    private static class MatchingChangeCallback extends AbstractChangeCallback {
+
+        private final YamlPathMatcher pathMatcher;
+        private final BiConsumer<String, String> consumer;
+        private int changes;
+        private boolean truncated;
+
+        MatchingChangeCallback(YamlPathMatcher pathMatcher, BiConsumer<String, String> consumer) {
+            this.pathMatcher = pathMatcher;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public boolean onChange(@Nonnull Change change) {
+            changes++;
+            if (!ChangeType.DELETE.equals(change.getType()) && change.getPath() != null) {
+                String path = change.getPath().toString();
+                if (pathMatcher.matches(path)) {
+                    consumer.accept(path, change.getContentId());
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onEnd(@Nonnull ChangeSummary summary) {
+            truncated = summary.isTruncated();
+        }
+    }
+
+    /**
+     * Reads the {@code :<mode> <mode> <id> <id> <status>} and path records which {@code git diff-tree -z} writes
+     */
+    private static class DiffTreeReader implements CommandOutputHandler<Void> {
+
+        private final YamlPathMatcher pathMatcher;
+        private final BiConsumer<String, String> consumer;
+
+        DiffTreeReader(YamlPathMatcher pathMatcher, BiConsumer<String, String> consumer) {
+            this.pathMatcher = pathMatcher;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public Void getOutput() {
+            return null;
+        }
+
+        @Override
+        public void process(InputStream processOutput) throws IOException {
+            InputStream output = new BufferedInputStream(processOutput, 64 * 1024);
+            ByteArrayOutputStream field = new ByteArrayOutputStream(256);
+            String status;
+            while ((status = readField(output, field)) != null) {
+                String path = readField(output, field);
+                if (path == null) {
+                    break;
+                }
+                String[] values = status.split(" ");
+                // skip deletions and submodules, whose id is a commit rather than a blob
+                if (values.length == 5 && !values[4].startsWith("D") && !GITLINK_MODE.equals(values[1])
+                        && pathMatcher.matches(path)) {
+                    consumer.accept(path, values[3]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the {@code <mode> <type> <id>\t<path>} records which {@code git ls-tree -r -z} writes
+     */
+    private static class LsTreeReader implements CommandOutputHandler<Void> {
+
+        private final YamlPathMatcher pathMatcher;
+        private final BiConsumer<String, String> consumer;
+
+        LsTreeReader(YamlPathMatcher pathMatcher, BiConsumer<String, String> consumer) {
+            this.pathMatcher = pathMatcher;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public Void getOutput() {
+            return null;
+        }
+
+        @Override
+        public void process(InputStream processOutput) throws IOException {
+            InputStream output = new BufferedInputStream(processOutput, 64 * 1024);
+            ByteArrayOutputStream field = new ByteArrayOutputStream(256);
+            String entry;
+            while ((entry = readField(output, field)) != null) {
+                int tab = entry.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                String[] values = entry.substring(0, tab).split(" ");
+                String path = entry.substring(tab + 1);
+                // submodules are listed as commits rather than blobs
+                if (values.length == 3 && "blob".equals(values[1]) && pathMatcher.matches(path)) {
+                    consumer.accept(path, values[2]);
+                }
+            }
+        }
+    }
+
+    private static String readField(InputStream input, ByteArrayOutputStream field) throws IOException {
+        field.reset();
+        int read;
+        while ((read = input.read()) != 0) {
+            if (read == -1) {
+                return field.size() == 0 ? null : field.toString("UTF-8");
+            }
+            field.write(read);
+        }
+        return field.toString("UTF-8");
+    }
+}
@@ -0,0 +1,212 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.AbstractCommitCallback;
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.commit.CommitsBetweenRequest;
+import com.atlassian.bitbucket.commit.MinimalCommit;
+import com.atlassian.bitbucket.idx.CommitIndex;
+import com.atlassian.bitbucket.repository.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the commits which a push introduces to a repository.
+ *
+ * The commits are pulled in a single streamed range query (new tip, excluding the old tip) and the walk only
+ * follows parents of commits which are not yet indexed. Every commit is visited at most once, so merge heavy
+ * histories cost no more than linear histories and there is no recursion to overflow the stack.
+ *
+ * Within a push, tips which have already been walked for an earlier ref change are excluded from later walks, and a
+ * ref whose new tip is already indexed or already walked is not walked at all.
+ */
+class CommitWalker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommitWalker.class);
+
+    static final String ZERO_HASH = "0000000000000000000000000000000000000000";
+
+    private final CommitService commitService;
+    private final CommitIndex commitIndex;
+
+    CommitWalker(CommitService commitService, CommitIndex commitIndex) {
+        this.commitService = commitService;
+        this.commitIndex = commitIndex;
+    }
+
+    /**
+     * Gets the list of commits which are new on the branch, each unique commit exactly once
+     *
+     * @param repository The repository that the commits have been pushed to
+     * @param fromHash The previous tip of the ref, or the zero hash if the ref is new
+     * @param toHash The new tip of the ref, or the zero hash if the ref is being deleted
+     * @return The new commits, in the order they were streamed (newest first)
+     */
+    List<Commit> findNewCommits(Repository repository, String fromHash, String toHash) {
+        return findNewCommits(repository, fromHash, toHash, new PushMetrics());
+    }
+
+    /**
+     * @param metrics Counts the commits which were streamed, including those which turned out not to be new
+     * @see #findNewCommits(Repository, String, String)
+     */
+    List<Commit> findNewCommits(Repository repository, String fromHash, String toHash, PushMetrics metrics) {
+        return findNewCommits(repository, fromHash, toHash, new PushContext(), metrics);
+    }
+
+    /**
+     * @param push What earlier ref changes of the same push have already walked, updated with this walk
+     * @return The new commits which no earlier ref change of the push has found
+     * @see #findNewCommits(Repository, String, String, PushMetrics)
+     */
+    List<Commit> findNewCommits(Repository repository, String fromHash, String toHash, PushContext push,
+                                PushMetrics metrics) {
+        return findNewCommits(repository, fromHash, toHash, push, metrics, 0);
+    }
+
+    /**
+     * @param limit The number of new commits after which the walk stops, or 0 to find them all. A walk which was
+     *              cut short is not remembered in the push, so later ref changes do not exclude its tip.
+     * @return The new commits, more than the limit if the walk was cut short
+     * @see #findNewCommits(Repository, String, String, PushContext, PushMetrics)
+     */
+    List<Commit> findNewCommits(Repository repository, String fromHash, String toHash, PushContext push,
+                                PushMetrics metrics, int limit) {
+        List<Commit> newCommits = new ArrayList<>();
+        if (toHash == null || ZERO_HASH.equals(toHash)) {
+            // a new hash of 40 `0` means the branch is to be deleted
+            // just let it pass through in that case
+            LOG.debug("Found deletion commit");
+            return newCommits;
+        }
+        if (push.isWalked(toHash) || commitIndex.isIndexed(toHash, repository)) {
+            // typically a tag or a mirrored ref pointing at a commit which has already been checked
+            LOG.debug("Nothing new at " + toHash);
+            return newCommits;
+        }
+
+        List<String> excludes = new ArrayList<>(push.getWalkedTips());
+        if (fromHash != null && !ZERO_HASH.equals(fromHash)) {
+            excludes.add(fromHash);
+        }
+        CommitsBetweenRequest.Builder builder = new CommitsBetweenRequest.Builder(repository).include(toHash);
+        if (!excludes.isEmpty()) {
+            builder.exclude(excludes);
+        }
+
+        WalkCallback callback = new WalkCallback(repository, toHash, newCommits, limit);
+        commitService.streamCommitsBetween(builder.build(), callback);
+        LOG.debug("Walked " + callback.visited.size() + " commits, " + newCommits.size() + " new");
+        metrics.commitsVisited(callback.visited.size());
+        if (limit > 0 && newCommits.size() > limit) {
+            LOG.debug("Stopped walking " + toHash + " after " + limit + " new commits");
+            return newCommits;
+        }
+
+        List<String> newIds = new ArrayList<>(newCommits.size());
+        for (Commit commit : newCommits) {
+            newIds.add(commit.getId());
+        }
+        push.walked(toHash, newIds);
+
+        return newCommits;
+    }
+
+    /**
+     * Lists every commit reachable from the tip but not from the old tip, whether or not it is indexed, for audits
+     * which run after the commits of a push have been indexed
+     *
+     * @param sinceId The commit to stop at, or null to list the whole history of the tip
+     * @param toHash The tip to list the commits of
+     * @return The commits, newest first
+     */
+    List<Commit> findCommitsBetween(Repository repository, String sinceId, String toHash, PushMetrics metrics) {
+        List<Commit> commits = new ArrayList<>();
+        if (toHash == null || ZERO_HASH.equals(toHash)) {
+            return commits;
+        }
+        CommitsBetweenRequest.Builder builder = new CommitsBetweenRequest.Builder(repository).include(toHash);
+        if (sinceId != null && !ZERO_HASH.equals(sinceId)) {
+            builder.exclude(sinceId);
+        }
+        commitService.streamCommitsBetween(builder.build(), new AbstractCommitCallback() {
+            @Override
+            public boolean onCommit(@Nonnull Commit commit) {
+                commits.add(commit);
+                return true;
+            }
+        });
+        metrics.commitsVisited(commits.size());
+        return commits;
+    }
+
+    /**
+     * Consumes the streamed range and keeps the commits which are reachable from the new tip without passing
+     * through an indexed commit. Commits streamed before any of their children (clock skew on the default date
+     * ordering) are parked until they are needed, and streaming stops as soon as nothing is left to find.
+     */
+    private class WalkCallback extends AbstractCommitCallback {
+
+        private final Repository repository;
+        private final List<Commit> newCommits;
+        private final int limit;
+        private final Set<String> visited = new HashSet<>();
+        private final Set<String> wanted = new HashSet<>();
+        private final Map<String, Commit> parked = new HashMap<>();
+
+        WalkCallback(Repository repository, String toHash, List<Commit> newCommits, int limit) {
+            this.repository = repository;
+            this.newCommits = newCommits;
+            this.limit = limit;
+            this.wanted.add(toHash);
+        }
+
+        @Override
+        public boolean onCommit(@Nonnull Commit commit) {
+            String id = commit.getId();
+            if (!visited.add(id)) {
+                return !wanted.isEmpty();
+            }
+            if (!wanted.contains(id)) {
+                parked.put(id, commit);
+                return true;
+            }
+
+            Deque<Commit> pending = new ArrayDeque<>();
+            pending.push(commit);
+            while (!pending.isEmpty()) {
+                Commit current = pending.pop();
+                wanted.remove(current.getId());
+                if (commitIndex.isIndexed(current.getId(), repository)) {
+                    continue;
+                }
+                LOG.debug("Found commit to check " + current.getId());
+                newCommits.add(current);
+                if (limit > 0 && newCommits.size() > limit) {
+                    return false;
+                }
+                for (MinimalCommit parent : current.getParents()) {
+                    String parentId = parent.getId();
+                    Commit parkedParent = parked.remove(parentId);
+                    if (parkedParent != null) {
+                        pending.push(parkedParent);
+                    } else if (!visited.contains(parentId)) {
+                        wanted.add(parentId);
+                    }
+                }
+            }
+
+            return !wanted.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collection;
+
+/**
+ * Reads the content of the files which a push has to validate.
+ */
+public interface ContentFetcher {
+
+    /**
+     * Starts reading the content of the files of a push. Implementations may start fetching every file straight away,
+     * so the session should be closed as soon as the content is no longer needed.
+     *
+     * @param repository The repository that the push is for
+     * @param files Every file which will be read from the session
+     * @return A session which the files can be read from, from any thread
+     */
+    Session open(Repository repository, Collection<YamlFile> files);
+
+    interface Session extends Closeable {
+
+        /**
+         * @param file One of the files the session was opened for
+         * @param consumer Reads the content, it does not have to read to the end
+         * @return The result of the consumer
+         * @throws IOException if the file could not be read in full
+         */
+        <T> T read(YamlFile file, ContentConsumer<T> consumer) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Consumes the content of a file
+     *
+     * @param <T> The result of consuming the content
+     */
+    interface ContentConsumer<T> {
+
+        T read(Reader reader) throws IOException;
+    }
+}
@@ -0,0 +1,279 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetches and validates the files of a push in parallel. Outstanding work is cancelled as soon as one file fails,
+ * unless every error has to be reported, or once the push has used up its time budget. A file which cannot be read
+ * fails like an invalid one, so that a push is never accepted without its files having been validated.
+ */
+class FileValidationStage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileValidationStage.class);
+
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final ContentFetcher contentFetcher;
+    private final ValidationResultCache validationResultCache;
+    // the validator changes with the settings of each push, while the parts it parses with are kept between pushes
+    private final ParserPool parserPool = new ParserPool();
+
+    FileValidationStage(ContentFetcher contentFetcher, ValidationResultCache validationResultCache) {
+        this.contentFetcher = contentFetcher;
+        this.validationResultCache = validationResultCache;
+    }
+
+    /**
+     * @param repository The repository that the push is for
+     * @param files The files to validate
+     * @param settings The hook settings
+     * @param executor The executor to fetch and parse the files on
+     * @param deadlineNanos The {@link System#nanoTime()} by which validation has to finish, or {@link #NO_DEADLINE}
+     * @return The verdicts which were reached in time
+     */
+    Result validate(Repository repository, Collection<YamlFile> files, YamlValidatorSettings settings,
+                    Executor executor, long deadlineNanos) {
+        return validate(repository, files, settings, executor, deadlineNanos, new PushMetrics());
+    }
+
+    /**
+     * @param metrics Given the cache hits, the fetch and parse time and the characters parsed of every file
+     * @see #validate(Repository, Collection, YamlValidatorSettings, Executor, long)
+     */
+    Result validate(Repository repository, Collection<YamlFile> files, YamlValidatorSettings settings,
+                    Executor executor, long deadlineNanos, PushMetrics metrics) {
+        return validate(repository, files, settings, executor, deadlineNanos, metrics, SchemaRegistry.Schemas.NONE);
+    }
+
+    /**
+     * @param schemas The schema each file has to match, which is part of the key its verdict is cached under
+     * @see #validate(Repository, Collection, YamlValidatorSettings, Executor, long, PushMetrics)
+     */
+    Result validate(Repository repository, Collection<YamlFile> files, YamlValidatorSettings settings,
+                    Executor executor, long deadlineNanos, PushMetrics metrics, SchemaRegistry.Schemas schemas) {
+        Result result = new Result(files.size());
+        String settingsFingerprint = settings.getVerdictFingerprint();
+        YamlFileValidator validator = new YamlFileValidator(settings, parserPool);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        CompletionService<Verdict> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Verdict>> futures = new ArrayList<>(files.size());
+
+        List<YamlFile> toFetch = new ArrayList<>(files.size());
+        for (YamlFile file : files) {
+            String fingerprint = fingerprint(settingsFingerprint, schemas.get(file));
+            ValidationOutcome outcome = validationResultCache.get(fingerprint, file.getContentId());
+            if (outcome == null) {
+                toFetch.add(file);
+            } else {
+                LOG.debug("Using cached outcome for " + file.getPath() + " at " + file.getContentId());
+                metrics.cacheHit();
+                result.checked++;
+                if (!outcome.isValid()) {
+                    result.invalid.add(new Verdict(file, outcome));
+                }
+            }
+        }
+        if (!result.invalid.isEmpty() && !settings.isReportAllErrors()) {
+            return result;
+        }
+
+        ContentFetcher.Session session = contentFetcher.open(repository, toFetch);
+        try {
+            for (YamlFile file : toFetch) {
+                JsonSchema schema = schemas.get(file);
+                String fingerprint = fingerprint(settingsFingerprint, schema);
+                futures.add(completionService.submit(() ->
+                        new Verdict(file, check(session, file, validator, schema, fingerprint, cancelled, metrics))));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Verdict> done;
+                if (deadlineNanos == NO_DEADLINE) {
+                    done = completionService.take();
+                } else {
+                    done = completionService.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                if (done == null) {
+                    LOG.warn("Validated " + result.checked + " of " + result.total + " yaml files before running out of time");
+                    result.timedOut = true;
+                    break;
+                }
+
+                Verdict verdict = verdictOf(done);
+                result.checked++;
+                if (!verdict.outcome.isValid()) {
+                    result.invalid.add(verdict);
+                    if (!settings.isReportAllErrors()) {
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.timedOut = true;
+        } finally {
+            cancelled.set(true);
+            for (Future<Verdict> future : futures) {
+                future.cancel(true);
+            }
+            session.close();
+        }
+
+        result.invalid.sort(Comparator.comparing(verdict -> verdict.file.getPath()));
+        return result;
+    }
+
+    private static String fingerprint(String settingsFingerprint, JsonSchema schema) {
+        return schema == null ? settingsFingerprint : settingsFingerprint + ':' + schema.getId();
+    }
+
+    private ValidationOutcome check(ContentFetcher.Session session, YamlFile file, YamlFileValidator validator,
+                                    JsonSchema schema, String fingerprint, AtomicBoolean cancelled,
+                                    PushMetrics metrics) {
+        if (cancelled.get()) {
+            throw new CancellationException("Validation was cancelled");
+        }
+
+        long requested = System.nanoTime();
+        ValidationOutcome outcome;
+        try {
+            outcome = session.read(file, reader -> {
+                long started = System.nanoTime();
+                metrics.addPhase(PushMetrics.Phase.FETCH, started - requested);
+                CountingReader counting = new CountingReader(reader);
+                try {
+                    return validator.validate(counting, cancelled::get, schema);
+                } finally {
+                    metrics.addPhase(PushMetrics.Phase.PARSE, System.nanoTime() - started);
+                    metrics.fileChecked(counting.count);
+                }
+            });
+        } catch (IOException e) {
+            if (cancelled.get()) {
+                // the read was interrupted because the push no longer needs it
+                throw new CancellationException("Validation was cancelled");
+            }
+            LOG.error("Problem reading yaml file " + file.getPath() + " at commit " + file.getCommit().getId()
+                    + " to validate: " + e.getMessage());
+            // the verdict is not cached, the same content may well be readable on the next push
+            return ValidationOutcome.unreadable("Could not read the file to validate it: " + e.getMessage());
+        }
+        if (outcome.getLimit() != null) {
+            LOG.warn("Rejected " + file.getPath() + " at commit " + file.getCommit().getId() + ", the "
+                    + outcome.getLimit() + " limit was exceeded");
+        }
+        if (outcome.getLimit() != ResourceLimit.TIME && (schema == null || schema.isLasting())) {
+            // running out of time, or missing the schema, says more about the node than about the content
+            validationResultCache.put(fingerprint, file.getContentId(), outcome);
+        }
+        return outcome;
+    }
+
+    private static Verdict verdictOf(Future<Verdict> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Counts the characters the parser reads, which is all of them unless it stopped at an error or a limit
+     */
+    private static class CountingReader extends FilterReader {
+
+        private long count;
+
+        CountingReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    static class Verdict {
+
+        private final YamlFile file;
+        private final ValidationOutcome outcome;
+
+        Verdict(YamlFile file, ValidationOutcome outcome) {
+            this.file = file;
+            this.outcome = outcome;
+        }
+
+        YamlFile getFile() {
+            return file;
+        }
+
+        ValidationOutcome getOutcome() {
+            return outcome;
+        }
+    }
+
+    static class Result {
+
+        private final int total;
+        private final List<Verdict> invalid = new ArrayList<>();
+        private int checked;
+        private boolean timedOut;
+
+        Result(int total) {
+            this.total = total;
+        }
+
+        int getTotal() {
+            return total;
+        }
+
+        int getChecked() {
+            return checked;
+        }
+
+        boolean isTimedOut() {
+            return timedOut;
+        }
+
+        List<Verdict> getInvalid() {
+            return Collections.unmodifiableList(invalid);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.content.ContentService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Reads the content of every file of a push through a single {@code git cat-file --batch} process, rather than
+ * resolving and streaming each file with its own {@link ContentService} call.
+ *
+ * Blobs are read in the order the files were given and buffered until they have been validated, up to a fixed
+ * budget, so parsing carries on in parallel while the process streams the next blobs. Files whose blob id is not
+ * known, blobs which are too large to buffer, blobs which arrive while the budget is used up and anything the
+ * process fails to deliver are streamed through {@link ContentService} instead, as are all the files of a push which
+ * finds every reader of the {@link ValidationWorkerPool} busy. The process never waits for the
+ * budget, since the bytes of a blob shared by several files are only freed once its last file has been read, which
+ * may be after files whose blobs are still to come.
+ */
+@Named("yamlGitBatchContentFetcher")
+public class GitBatchContentFetcher implements ContentFetcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GitBatchContentFetcher.class);
+
+    static final int MAX_BUFFERED_BLOB = 4 * 1024 * 1024;
+    static final long MAX_BUFFERED_BYTES = 32 * 1024 * 1024;
+
+    @ComponentImport
+    private final GitCommandBuilderFactory builderFactory;
+
+    private final ExecutorService batchExecutor;
+    private final ContentFetcher fallback;
+
+    @Inject
+    public GitBatchContentFetcher(final GitCommandBuilderFactory builderFactory,
+                                  final ContentService contentService,
+                                  final ValidationWorkerPool validationWorkerPool) {
+        this(builderFactory, validationWorkerPool.getBatchExecutor(),
+                new PipedContentReader(contentService, validationWorkerPool.getFetchExecutor()));
+    }
+
+    GitBatchContentFetcher(GitCommandBuilderFactory builderFactory, ExecutorService batchExecutor,
+                           ContentFetcher fallback) {
+        this.builderFactory = builderFactory;
+        this.batchExecutor = batchExecutor;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Session open(Repository repository, Collection<YamlFile> files) {
+        Session fallbackSession = fallback.open(repository, files);
+        Map<String, Blob> blobs = new LinkedHashMap<>();
+        for (YamlFile file : files) {
+            if (file.getContentId() != null) {
+                blobs.computeIfAbsent(file.getContentId(), id -> new Blob()).readers++;
+            }
+        }
+        if (blobs.isEmpty()) {
+            return fallbackSession;
+        }
+
+        BatchSession session = new BatchSession(blobs, fallbackSession);
+        try {
+            session.command = submit(repository, blobs, session);
+        } catch (RejectedExecutionException e) {
+            // every reader is busy with another push, or the plugin is stopping
+            LOG.debug("No git cat-file reader is free, streaming the files of the push instead");
+            return fallbackSession;
+        }
+        return session;
+    }
+
+    private Future<?> submit(Repository repository, Map<String, Blob> blobs, BatchSession session) {
+        return batchExecutor.submit(() -> {
+            try {
+                builderFactory.builder(repository)
+                        .command("cat-file")
+                        .argument("--batch")
+                        .inputHandler(new BlobIdWriter(new ArrayList<>(blobs.keySet())))
+                        .build(new BlobReader(session))
+                        .call();
+            } catch (RuntimeException e) {
+                if (!session.closed) {
+                    LOG.warn("git cat-file failed, streaming the remaining files instead: " + e.getMessage());
+                }
+            } finally {
+                session.abandon();
+            }
+        });
+    }
+
+    /**
+     * The content of a blob, which is dropped once every file with that content has been read
+     */
+    private static class Blob {
+
+        private final CountDownLatch arrived = new CountDownLatch(1);
+        private int readers;
+        private byte[] content;
+
+        synchronized boolean deliver(byte[] value) {
+            if (arrived.getCount() == 0) {
+                return false;
+            }
+            content = value;
+            arrived.countDown();
+            return true;
+        }
+
+        byte[] await() throws InterruptedIOException {
+            try {
+                arrived.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a blob");
+            }
+            synchronized (this) {
+                return content;
+            }
+        }
+
+        /**
+         * @return The number of bytes which are no longer buffered
+         */
+        synchronized int readDone() {
+            if (--readers > 0 || content == null) {
+                return 0;
+            }
+            int size = content.length;
+            content = null;
+            return size;
+        }
+    }
+
+    private static class BatchSession implements Session {
+
+        private final Map<String, Blob> blobs;
+        private final Session fallbackSession;
+        private final Object budgetLock = new Object();
+        private long bufferedBytes;
+        private volatile boolean closed;
+        private volatile Future<?> command;
+
+        BatchSession(Map<String, Blob> blobs, Session fallbackSession) {
+            this.blobs = blobs;
+            this.fallbackSession = fallbackSession;
+        }
+
+        @Override
+        public <T> T read(YamlFile file, ContentConsumer<T> consumer) throws IOException {
+            Blob blob = file.getContentId() == null ? null : blobs.get(file.getContentId());
+            byte[] content = blob == null ? null : blob.await();
+            if (content == null) {
+                return fallbackSession.read(file, consumer);
+            }
+            try {
+                return consumer.read(new UnicodeReader(new ByteArrayInputStream(content)));
+            } finally {
+                release(blob.readDone());
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            abandon();
+            Future<?> running = command;
+            if (running != null) {
+                running.cancel(true);
+            }
+            fallbackSession.close();
+        }
+
+        /**
+         * Sends every blob which has not been read yet to the fallback
+         */
+        void abandon() {
+            for (Blob blob : blobs.values()) {
+                blob.deliver(null);
+            }
+        }
+
+        /**
+         * @return false if buffering the blob would go over the budget, so it has to be streamed instead
+         */
+        boolean tryReserve(long size) {
+            synchronized (budgetLock) {
+                if (bufferedBytes > 0 && bufferedBytes + size > MAX_BUFFERED_BYTES) {
+                    return false;
+                }
+                bufferedBytes += size;
+                return true;
+            }
+        }
+
+        void release(long size) {
+            if (size == 0) {
+                return;
+            }
+            synchronized (budgetLock) {
+                bufferedBytes -= size;
+            }
+        }
+    }
+
+    /**
+     * Writes the id of every blob to read to the process, one per line
+     */
+    private static class BlobIdWriter implements CommandInputHandler {
+
+        private final List<String> blobIds;
+
+        BlobIdWriter(List<String> blobIds) {
+            this.blobIds = blobIds;
+        }
+
+        @Override
+        public void process(OutputStream input) throws IOException {
+            try (OutputStream out = input) {
+                for (String blobId : blobIds) {
+                    out.write((blobId + '\n').getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the {@code <id> <type> <size>} header and content of each blob, in the order they were asked for
+     */
+    private static class BlobReader implements CommandOutputHandler<Void> {
+
+        private final BatchSession session;
+
+        BlobReader(BatchSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public Void getOutput() {
+            return null;
+        }
+
+        @Override
+        public void process(InputStream processOutput) throws IOException {
+            InputStream output = new BufferedInputStream(processOutput, 64 * 1024);
+            try {
+                for (Map.Entry<String, Blob> blob : session.blobs.entrySet()) {
+                    if (session.closed) {
+                        return;
+                    }
+                    String[] header = readLine(output).split(" ");
+                    if (header.length != 3) {
+                        LOG.debug("Blob " + blob.getKey() + " is missing, streaming it instead");
+                        blob.getValue().deliver(null);
+                        continue;
+                    }
+
+                    long size = Long.parseLong(header[2]);
+                    if (size > MAX_BUFFERED_BLOB) {
+                        LOG.debug("Blob " + blob.getKey() + " is too large to buffer, streaming it instead");
+                        skip(output, size + 1);
+                        blob.getValue().deliver(null);
+                        continue;
+                    }
+
+                    if (!session.tryReserve(size)) {
+                        LOG.debug("Blob " + blob.getKey() + " does not fit in the buffer, streaming it instead");
+                        skip(output, size + 1);
+                        blob.getValue().deliver(null);
+                        continue;
+                    }
+                    byte[] content = new byte[(int) size];
+                    readFully(output, content);
+                    skip(output, 1);
+                    if (!blob.getValue().deliver(content)) {
+                        // the session was closed while the blob was being read
+                        session.release(size);
+                    }
+                }
+            } finally {
+                session.abandon();
+            }
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            StringBuilder line = new StringBuilder(64);
+            int read;
+            while ((read = input.read()) != '\n') {
+                if (read == -1) {
+                    throw new EOFException("git cat-file ended early");
+                }
+                line.append((char) read);
+            }
+            return line.toString();
+        }
+
+        private static void readFully(InputStream input, byte[] content) throws IOException {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = input.read(content, offset, content.length - offset);
+                if (read == -1) {
+                    throw new EOFException("git cat-file ended early");
+                }
+                offset += read;
+            }
+        }
+
+        private static void skip(InputStream input, long count) throws IOException {
+            long remaining = count;
+            while (remaining > 0) {
+                long skipped = input.skip(remaining);
+                if (skipped <= 0) {
+                    if (input.read() == -1) {
+                        throw new EOFException("git cat-file ended early");
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,906 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.yaml.snakeyaml.error.Mark;
+import org.yaml.snakeyaml.error.MarkedYAMLException;
+import org.yaml.snakeyaml.nodes.MappingNode;
+import org.yaml.snakeyaml.nodes.Node;
+import org.yaml.snakeyaml.nodes.NodeTuple;
+import org.yaml.snakeyaml.nodes.ScalarNode;
+import org.yaml.snakeyaml.nodes.SequenceNode;
+import org.yaml.snakeyaml.nodes.Tag;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A JSON schema compiled into a tree of rules, which checks the nodes the yaml composer produces without
+ * constructing the documents or converting them to JSON.
+ *
+ * A subset of the draft 7 keywords is supported: {@code type}, {@code enum}, {@code const}, {@code properties},
+ * {@code required}, {@code additionalProperties}, {@code items}, {@code minItems}, {@code maxItems},
+ * {@code minLength}, {@code maxLength}, {@code pattern}, {@code minimum}, {@code maximum},
+ * {@code exclusiveMinimum}, {@code exclusiveMaximum}, {@code allOf}, {@code anyOf} and {@code $ref} to
+ * {@code #/definitions/...} or {@code #/$defs/...}. Annotations such as {@code title} and {@code description} are
+ * ignored, and any other keyword is rejected when the schema is compiled, rather than silently not being checked.
+ *
+ * Merge keys are applied and aliases are checked where they are used. Each node is checked against each rule at most
+ * once, however many aliases lead to it, and the checks are counted against the file's {@link ResourceGovernor},
+ * which also bounds how long patterns from the schema may take to match. Compiled schemas are immutable and can be
+ * shared by every thread.
+ */
+public class JsonSchema {
+
+    private static final Set<String> ANNOTATIONS = new HashSet<>(Arrays.asList("$schema", "$id", "$comment", "title",
+            "description", "default", "examples", "format", "definitions", "$defs", "readOnly", "writeOnly"));
+
+    private static final Rule ANYTHING = (node, walk) -> null;
+    private static final Rule NOTHING = (node, walk) -> new Violation("no value is allowed here", node);
+    private static final int CHARACTERS_BETWEEN_CLOCK_READS = 4096;
+
+    private final String id;
+    private final Rule root;
+    private final boolean lasting;
+
+    private JsonSchema(String id, Rule root) {
+        this(id, root, true);
+    }
+
+    private JsonSchema(String id, Rule root, boolean lasting) {
+        this.id = id;
+        this.root = root;
+        this.lasting = lasting;
+    }
+
+    /**
+     * @param id Identifies where the schema came from, such as the blob id of a schema stored in the repository
+     * @param json The schema
+     * @return The compiled schema
+     * @throws IllegalArgumentException if the schema is not valid JSON, or uses a keyword which is not supported
+     */
+    public static JsonSchema compile(String id, String json) {
+        try {
+            return compile(id, JsonParser.parseString(json));
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("The schema is not valid JSON: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @see #compile(String, String)
+     */
+    public static JsonSchema compile(String id, JsonElement json) {
+        Compiler compiler = new Compiler(json);
+        Rule root = compiler.compile(json, "#");
+        compiler.resolveReferences();
+        return new JsonSchema(id, root);
+    }
+
+    /**
+     * @return A schema which rejects every document, because the schema it stands in for could not be compiled
+     */
+    static JsonSchema broken(String id, String problem) {
+        return broken(id, id, problem);
+    }
+
+    /**
+     * @param name How the schema is referred to in the violation, when that is not its id
+     * @see #broken(String, String)
+     */
+    static JsonSchema broken(String id, String name, String problem) {
+        return new JsonSchema(id, (node, walk) ->
+                new Violation("the schema " + name + " is invalid: " + problem, node));
+    }
+
+    /**
+     * @return A schema which rejects every document, because the schema it stands in for could not be read this time
+     */
+    static JsonSchema unavailable(String id, String problem) {
+        return new JsonSchema(id, (node, walk) ->
+                new Violation("the schema " + id + " could not be read: " + problem, node), false);
+    }
+
+    /**
+     * @return Whether the verdicts reached with the schema hold for as long as the schema is unchanged, which is not
+     *         the case for a schema which could not be read
+     */
+    public boolean isLasting() {
+        return lasting;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param document The root node of a composed document
+     * @throws SchemaViolationException at the first value which does not match the schema
+     */
+    public void validate(Node document) {
+        validate(document, null);
+    }
+
+    /**
+     * @param governor Counts the checks and bounds the time they take, or null for no limits
+     * @throws SchemaViolationException at the first value which does not match the schema
+     * @throws ResourceLimitExceededException once the file goes over a limit of the governor
+     * @see #validate(Node)
+     */
+    void validate(Node document, ResourceGovernor governor) {
+        Violation violation = root.check(document, new Walk(governor));
+        if (violation != null) {
+            throw new SchemaViolationException(id, violation.describe(), violation.node.getStartMark());
+        }
+    }
+
+    /**
+     * The error for a document which does not match the schema, raised like a parser error so that it is reported
+     * with its line and column
+     */
+    public static class SchemaViolationException extends MarkedYAMLException {
+
+        SchemaViolationException(String schemaId, String problem, Mark mark) {
+            super("while validating against schema " + schemaId, null, problem, mark);
+        }
+    }
+
+    /**
+     * Checks a node as part of a walk of the document
+     */
+    private interface Rule {
+
+        Violation check(Node node, Walk walk);
+    }
+
+    /**
+     * One check of a document. It keeps the nodes being checked, so that an alias which refers to one of its own
+     * ancestors is not followed forever, and the result of every node already checked against a rule, so that a node
+     * reached through many aliases is only checked once per rule.
+     */
+    private static class Walk {
+
+        private static final Violation PASSED = new Violation(null, null);
+
+        private final ResourceGovernor governor;
+        private final Map<Node, Boolean> checking = new IdentityHashMap<>();
+        private final Map<Node, Map<Rule, Violation>> results = new IdentityHashMap<>();
+
+        Walk(ResourceGovernor governor) {
+            this.governor = governor;
+        }
+
+        /**
+         * @return The result of an earlier check of the node against the rule, {@link #PASSED} if it passed, or null
+         *         if it has not been checked yet
+         */
+        Violation recall(Node node, Rule rule) {
+            Map<Rule, Violation> known = results.get(node);
+            Violation violation = known == null ? null : known.get(rule);
+            return violation == null || violation == PASSED ? violation : violation.copy();
+        }
+
+        void remember(Node node, Rule rule, Violation violation) {
+            results.computeIfAbsent(node, key -> new IdentityHashMap<>())
+                    .put(rule, violation == null ? PASSED : violation.copy());
+        }
+
+        /**
+         * @return false if the node is already being checked further up, through an alias to one of its ancestors
+         */
+        boolean enter(Node node) {
+            return checking.put(node, Boolean.TRUE) == null;
+        }
+
+        void leave(Node node) {
+            checking.remove(node);
+        }
+
+        void count() {
+            if (governor != null) {
+                governor.countSchemaCheck();
+            }
+        }
+
+        /**
+         * @return The value, read in a way which stops a pattern that backtracks for too long
+         */
+        CharSequence guard(String value) {
+            return governor == null ? value : new GovernedCharSequence(value, 0, value.length(), governor);
+        }
+    }
+
+    /**
+     * Reads the clock every so often while a pattern reads the value, so that a pattern from a schema stored in the
+     * repository which backtracks catastrophically is stopped by the time limit
+     */
+    private static class GovernedCharSequence implements CharSequence {
+
+        private final String value;
+        private final int start;
+        private final int end;
+        private final ResourceGovernor governor;
+        private int reads;
+
+        GovernedCharSequence(String value, int start, int end, ResourceGovernor governor) {
+            this.value = value;
+            this.start = start;
+            this.end = end;
+            this.governor = governor;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++reads % CHARACTERS_BETWEEN_CLOCK_READS == 0) {
+                governor.checkTime();
+            }
+            return value.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new GovernedCharSequence(value, start + from, start + to, governor);
+        }
+
+        @Override
+        public String toString() {
+            return value.substring(start, end);
+        }
+    }
+
+    /**
+     * The first mismatch found, with the path to it built up as the check unwinds, so a passing check builds nothing
+     */
+    private static class Violation {
+
+        private final String problem;
+        private final Node node;
+        private final List<Object> path = new ArrayList<>();
+
+        Violation(String problem, Node node) {
+            this.problem = problem;
+            this.node = node;
+        }
+
+        Violation at(Object segment) {
+            path.add(segment);
+            return this;
+        }
+
+        /**
+         * @return A violation with the path built up so far, which further unwinding does not change
+         */
+        Violation copy() {
+            Violation copy = new Violation(problem, node);
+            copy.path.addAll(path);
+            return copy;
+        }
+
+        String describe() {
+            StringBuilder pointer = new StringBuilder("$");
+            for (int i = path.size() - 1; i >= 0; i--) {
+                Object segment = path.get(i);
+                if (segment instanceof Integer) {
+                    pointer.append('[').append(segment).append(']');
+                } else {
+                    pointer.append('.').append(segment);
+                }
+            }
+            return pointer + ": " + problem;
+        }
+    }
+
+    private enum Type {
+        NULL, BOOLEAN, INTEGER, NUMBER, STRING, ARRAY, OBJECT;
+
+        static Type of(Node node) {
+            if (node instanceof MappingNode) {
+                return OBJECT;
+            }
+            if (node instanceof SequenceNode) {
+                return ARRAY;
+            }
+            Tag tag = node.getTag();
+            if (Tag.NULL.equals(tag)) {
+                return NULL;
+            }
+            if (Tag.BOOL.equals(tag)) {
+                return BOOLEAN;
+            }
+            if (Tag.INT.equals(tag)) {
+                return INTEGER;
+            }
+            if (Tag.FLOAT.equals(tag)) {
+                return NUMBER;
+            }
+            // timestamps, binary and custom tags have no JSON type of their own
+            return STRING;
+        }
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * The keywords of one schema object, compiled once
+     */
+    private static class Keywords implements Rule {
+
+        private Set<Type> types;
+        private List<JsonElement> allowed;
+        private Map<String, Rule> properties = Collections.emptyMap();
+        private List<String> required = Collections.emptyList();
+        private Rule additionalProperties = ANYTHING;
+        private Rule items;
+        private int minItems = -1;
+        private int maxItems = -1;
+        private int minLength = -1;
+        private int maxLength = -1;
+        private Pattern pattern;
+        private Double minimum;
+        private Double maximum;
+        private Double exclusiveMinimum;
+        private Double exclusiveMaximum;
+        private List<Rule> allOf = Collections.emptyList();
+        private List<Rule> anyOf = Collections.emptyList();
+
+        @Override
+        public Violation check(Node node, Walk walk) {
+            Violation known = walk.recall(node, this);
+            if (known != null) {
+                return known == Walk.PASSED ? null : known;
+            }
+            walk.count();
+            Violation violation = checkNode(node, walk);
+            walk.remember(node, this, violation);
+            return violation;
+        }
+
+        private Violation checkNode(Node node, Walk walk) {
+            Type type = Type.of(node);
+            if (types != null && !types.contains(type) && !(type == Type.INTEGER && types.contains(Type.NUMBER))) {
+                return new Violation("expected " + describe(types) + " but found " + type.key(), node);
+            }
+            if (allowed != null && !isAllowed(node)) {
+                return new Violation(allowed.size() == 1 ? "expected " + allowed.get(0) :
+                        "expected one of " + allowed, node);
+            }
+            if (!walk.enter(node)) {
+                return null;
+            }
+            try {
+                Violation violation = checkType(node, type, walk);
+                if (violation != null) {
+                    return violation;
+                }
+                for (Rule rule : allOf) {
+                    violation = rule.check(node, walk);
+                    if (violation != null) {
+                        return violation;
+                    }
+                }
+                if (!anyOf.isEmpty() && !matchesAny(node, walk)) {
+                    return new Violation("does not match any of the allowed schemas", node);
+                }
+                return null;
+            } finally {
+                walk.leave(node);
+            }
+        }
+
+        private Violation checkType(Node node, Type type, Walk walk) {
+            switch (type) {
+                case OBJECT:
+                    return checkObject((MappingNode) node, walk);
+                case ARRAY:
+                    return checkArray((SequenceNode) node, walk);
+                case STRING:
+                    return checkString((ScalarNode) node, walk);
+                case INTEGER:
+                case NUMBER:
+                    return checkNumber((ScalarNode) node, type);
+                default:
+                    return null;
+            }
+        }
+
+        private Violation checkObject(MappingNode node, Walk walk) {
+            Map<String, Node> values = entries(node);
+            if (values == null) {
+                return new Violation("expected keys which are strings", node);
+            }
+            for (String name : required) {
+                if (!values.containsKey(name)) {
+                    return new Violation("missing required property " + name, node);
+                }
+            }
+            for (Map.Entry<String, Node> entry : values.entrySet()) {
+                Rule rule = properties.get(entry.getKey());
+                Violation violation = (rule == null ? additionalProperties : rule).check(entry.getValue(), walk);
+                if (violation != null) {
+                    return violation.at(entry.getKey());
+                }
+            }
+            return null;
+        }
+
+        private Violation checkArray(SequenceNode node, Walk walk) {
+            List<Node> values = node.getValue();
+            if (minItems >= 0 && values.size() < minItems) {
+                return new Violation("expected at least " + minItems + " items but found " + values.size(), node);
+            }
+            if (maxItems >= 0 && values.size() > maxItems) {
+                return new Violation("expected at most " + maxItems + " items but found " + values.size(), node);
+            }
+            if (items != null) {
+                for (int i = 0; i < values.size(); i++) {
+                    Violation violation = items.check(values.get(i), walk);
+                    if (violation != null) {
+                        return violation.at(i);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private Violation checkString(ScalarNode node, Walk walk) {
+            String value = node.getValue();
+            int length = value.codePointCount(0, value.length());
+            if (minLength >= 0 && length < minLength) {
+                return new Violation("expected at least " + minLength + " characters", node);
+            }
+            if (maxLength >= 0 && length > maxLength) {
+                return new Violation("expected at most " + maxLength + " characters", node);
+            }
+            if (pattern != null && !pattern.matcher(walk.guard(value)).find()) {
+                return new Violation("expected a value matching " + pattern.pattern(), node);
+            }
+            return null;
+        }
+
+        private Violation checkNumber(ScalarNode node, Type type) {
+            if (minimum == null && maximum == null && exclusiveMinimum == null && exclusiveMaximum == null) {
+                return null;
+            }
+            Double value = number(node.getValue(), type);
+            if (value == null) {
+                return null;
+            }
+            if (minimum != null && value < minimum) {
+                return new Violation("expected at least " + format(minimum), node);
+            }
+            if (maximum != null && value > maximum) {
+                return new Violation("expected at most " + format(maximum), node);
+            }
+            if (exclusiveMinimum != null && value <= exclusiveMinimum) {
+                return new Violation("expected more than " + format(exclusiveMinimum), node);
+            }
+            if (exclusiveMaximum != null && value >= exclusiveMaximum) {
+                return new Violation("expected less than " + format(exclusiveMaximum), node);
+            }
+            return null;
+        }
+
+        private boolean matchesAny(Node node, Walk walk) {
+            for (Rule rule : anyOf) {
+                if (rule.check(node, walk) == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isAllowed(Node node) {
+            for (JsonElement value : allowed) {
+                if (equal(node, value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A {@code $ref}, which is resolved once the whole schema has been compiled so that schemas can refer to
+     * themselves
+     */
+    private static class Reference implements Rule {
+
+        private final String pointer;
+        private Rule target;
+
+        Reference(String pointer) {
+            this.pointer = pointer;
+        }
+
+        @Override
+        public Violation check(Node node, Walk walk) {
+            return target.check(node, walk);
+        }
+    }
+
+    private static class Compiler {
+
+        private final JsonElement document;
+        private final Map<String, Rule> compiled = new HashMap<>();
+        private final List<Reference> references = new ArrayList<>();
+
+        Compiler(JsonElement document) {
+            this.document = document;
+        }
+
+        Rule compile(JsonElement json, String pointer) {
+            Rule rule = compiled.get(pointer);
+            if (rule == null) {
+                rule = compileNew(json, pointer);
+                compiled.put(pointer, rule);
+            }
+            return rule;
+        }
+
+        private Rule compileNew(JsonElement json, String pointer) {
+            if (json.isJsonPrimitive() && json.getAsJsonPrimitive().isBoolean()) {
+                return json.getAsBoolean() ? ANYTHING : NOTHING;
+            }
+            if (!json.isJsonObject()) {
+                throw invalid(pointer, "a schema has to be an object or a boolean");
+            }
+            JsonObject schema = json.getAsJsonObject();
+            if (schema.has("$ref")) {
+                Reference reference = new Reference(string(schema.get("$ref"), pointer + "/$ref"));
+                references.add(reference);
+                return reference;
+            }
+
+            Keywords keywords = new Keywords();
+            for (Map.Entry<String, JsonElement> entry : schema.entrySet()) {
+                String keyword = entry.getKey();
+                JsonElement value = entry.getValue();
+                String at = pointer + "/" + keyword;
+                switch (keyword) {
+                    case "type":
+                        keywords.types = types(value, at);
+                        break;
+                    case "enum":
+                        if (!value.isJsonArray()) {
+                            throw invalid(at, "expected an array");
+                        }
+                        keywords.allowed = new ArrayList<>();
+                        value.getAsJsonArray().forEach(keywords.allowed::add);
+                        break;
+                    case "const":
+                        keywords.allowed = Collections.singletonList(value);
+                        break;
+                    case "properties":
+                        keywords.properties = new HashMap<>();
+                        for (Map.Entry<String, JsonElement> property : object(value, at).entrySet()) {
+                            keywords.properties.put(property.getKey(),
+                                    compile(property.getValue(), at + "/" + escape(property.getKey())));
+                        }
+                        break;
+                    case "required":
+                        keywords.required = new ArrayList<>();
+                        for (JsonElement name : array(value, at)) {
+                            keywords.required.add(string(name, at));
+                        }
+                        break;
+                    case "additionalProperties":
+                        keywords.additionalProperties = compile(value, at);
+                        break;
+                    case "items":
+                        keywords.items = compile(value, at);
+                        break;
+                    case "minItems":
+                        keywords.minItems = count(value, at);
+                        break;
+                    case "maxItems":
+                        keywords.maxItems = count(value, at);
+                        break;
+                    case "minLength":
+                        keywords.minLength = count(value, at);
+                        break;
+                    case "maxLength":
+                        keywords.maxLength = count(value, at);
+                        break;
+                    case "pattern":
+                        try {
+                            keywords.pattern = Pattern.compile(string(value, at));
+                        } catch (PatternSyntaxException e) {
+                            throw invalid(at, "not a valid regular expression: " + e.getDescription());
+                        }
+                        break;
+                    case "minimum":
+                        keywords.minimum = limit(value, at);
+                        break;
+                    case "maximum":
+                        keywords.maximum = limit(value, at);
+                        break;
+                    case "exclusiveMinimum":
+                        keywords.exclusiveMinimum = limit(value, at);
+                        break;
+                    case "exclusiveMaximum":
+                        keywords.exclusiveMaximum = limit(value, at);
+                        break;
+                    case "allOf":
+                        keywords.allOf = rules(value, at);
+                        break;
+                    case "anyOf":
+                        keywords.anyOf = rules(value, at);
+                        break;
+                    default:
+                        if (!ANNOTATIONS.contains(keyword)) {
+                            throw invalid(at, "the keyword " + keyword + " is not supported");
+                        }
+                }
+            }
+            return keywords;
+        }
+
+        void resolveReferences() {
+            // resolving can compile definitions which hold further references
+            for (int i = 0; i < references.size(); i++) {
+                Reference reference = references.get(i);
+                JsonElement target = resolve(reference.pointer);
+                reference.target = compile(target, reference.pointer);
+            }
+        }
+
+        private JsonElement resolve(String pointer) {
+            if (!pointer.equals("#") && !pointer.startsWith("#/")) {
+                throw invalid(pointer, "only references within the schema are supported");
+            }
+            JsonElement current = document;
+            for (String segment : pointer.substring(1).split("/")) {
+                if (segment.isEmpty()) {
+                    continue;
+                }
+                String name = segment.replace("~1", "/").replace("~0", "~");
+                if (!current.isJsonObject() || !current.getAsJsonObject().has(name)) {
+                    throw invalid(pointer, "the reference does not resolve");
+                }
+                current = current.getAsJsonObject().get(name);
+            }
+            return current;
+        }
+
+        private List<Rule> rules(JsonElement value, String at) {
+            List<Rule> rules = new ArrayList<>();
+            JsonArray schemas = array(value, at);
+            for (int i = 0; i < schemas.size(); i++) {
+                rules.add(compile(schemas.get(i), at + "/" + i));
+            }
+            return rules;
+        }
+
+        private static Set<Type> types(JsonElement value, String at) {
+            Set<Type> types = EnumSet.noneOf(Type.class);
+            if (value.isJsonArray()) {
+                for (JsonElement type : value.getAsJsonArray()) {
+                    types.add(type(type, at));
+                }
+            } else {
+                types.add(type(value, at));
+            }
+            return types;
+        }
+
+        private static Type type(JsonElement value, String at) {
+            String name = string(value, at);
+            for (Type type : Type.values()) {
+                if (type.key().equals(name)) {
+                    return type;
+                }
+            }
+            throw invalid(at, "unknown type " + name);
+        }
+
+        private static JsonObject object(JsonElement value, String at) {
+            if (!value.isJsonObject()) {
+                throw invalid(at, "expected an object");
+            }
+            return value.getAsJsonObject();
+        }
+
+        private static JsonArray array(JsonElement value, String at) {
+            if (!value.isJsonArray()) {
+                throw invalid(at, "expected an array");
+            }
+            return value.getAsJsonArray();
+        }
+
+        private static String string(JsonElement value, String at) {
+            if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isString()) {
+                throw invalid(at, "expected a string");
+            }
+            return value.getAsString();
+        }
+
+        private static int count(JsonElement value, String at) {
+            if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber() || value.getAsInt() < 0) {
+                throw invalid(at, "expected a number which is 0 or more");
+            }
+            return value.getAsInt();
+        }
+
+        private static Double limit(JsonElement value, String at) {
+            if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber()) {
+                throw invalid(at, "expected a number");
+            }
+            return value.getAsDouble();
+        }
+
+        private static String escape(String name) {
+            return name.replace("~", "~0").replace("/", "~1");
+        }
+
+        private static IllegalArgumentException invalid(String pointer, String problem) {
+            return new IllegalArgumentException(pointer + ": " + problem);
+        }
+    }
+
+    /**
+     * @return The entries of a mapping with its merge keys applied, or null if a key is not a scalar
+     */
+    private static Map<String, Node> entries(MappingNode node) {
+        Map<String, Node> entries = new LinkedHashMap<>();
+        List<Node> merged = null;
+        for (NodeTuple tuple : node.getValue()) {
+            Node key = tuple.getKeyNode();
+            if (Tag.MERGE.equals(key.getTag())) {
+                if (merged == null) {
+                    merged = new ArrayList<>();
+                }
+                Node value = tuple.getValueNode();
+                if (value instanceof SequenceNode) {
+                    merged.addAll(((SequenceNode) value).getValue());
+                } else {
+                    merged.add(value);
+                }
+            } else if (key instanceof ScalarNode) {
+                entries.put(((ScalarNode) key).getValue(), tuple.getValueNode());
+            } else {
+                return null;
+            }
+        }
+        if (merged != null) {
+            for (Node source : merged) {
+                if (source instanceof MappingNode) {
+                    Map<String, Node> inherited = entries((MappingNode) source);
+                    if (inherited == null) {
+                        return null;
+                    }
+                    inherited.forEach(entries::putIfAbsent);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static boolean equal(Node node, JsonElement value) {
+        Type type = Type.of(node);
+        if (value.isJsonNull()) {
+            return type == Type.NULL;
+        }
+        if (value.isJsonArray()) {
+            if (type != Type.ARRAY) {
+                return false;
+            }
+            List<Node> items = ((SequenceNode) node).getValue();
+            JsonArray expected = value.getAsJsonArray();
+            if (items.size() != expected.size()) {
+                return false;
+            }
+            for (int i = 0; i < items.size(); i++) {
+                if (!equal(items.get(i), expected.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value.isJsonObject()) {
+            if (type != Type.OBJECT) {
+                return false;
+            }
+            Map<String, Node> entries = entries((MappingNode) node);
+            JsonObject expected = value.getAsJsonObject();
+            if (entries == null || entries.size() != expected.size()) {
+                return false;
+            }
+            for (Map.Entry<String, JsonElement> entry : expected.entrySet()) {
+                Node actual = entries.get(entry.getKey());
+                if (actual == null || !equal(actual, entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        String scalar = ((ScalarNode) node).getValue();
+        if (primitive.isBoolean()) {
+            return type == Type.BOOLEAN && primitive.getAsBoolean() == isTrue(scalar);
+        }
+        if (primitive.isNumber()) {
+            Double number = type == Type.INTEGER || type == Type.NUMBER ? number(scalar, type) : null;
+            return number != null && number == primitive.getAsDouble();
+        }
+        return type == Type.STRING && scalar.equals(primitive.getAsString());
+    }
+
+    private static boolean isTrue(String value) {
+        String lower = value.toLowerCase(Locale.ROOT);
+        return lower.equals("true") || lower.equals("yes") || lower.equals("on");
+    }
+
+    /**
+     * @return The value of an int or float scalar in any of the notations the resolver accepts, or null for the
+     *         rare forms, such as sexagesimal numbers, which are not worth checking
+     */
+    private static Double number(String value, Type type) {
+        String digits = value.replace("_", "");
+        try {
+            if (type == Type.NUMBER) {
+                String lower = digits.toLowerCase(Locale.ROOT);
+                if (lower.endsWith(".inf")) {
+                    return lower.startsWith("-") ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+                }
+                return lower.equals(".nan") ? null : Double.valueOf(digits);
+            }
+            int sign = 1;
+            if (digits.startsWith("-") || digits.startsWith("+")) {
+                sign = digits.startsWith("-") ? -1 : 1;
+                digits = digits.substring(1);
+            }
+            BigInteger parsed;
+            if (digits.startsWith("0x")) {
+                parsed = new BigInteger(digits.substring(2), 16);
+            } else if (digits.startsWith("0o")) {
+                parsed = new BigInteger(digits.substring(2), 8);
+            } else if (digits.startsWith("0b")) {
+                parsed = new BigInteger(digits.substring(2), 2);
+            } else if (digits.length() > 1 && digits.startsWith("0")) {
+                parsed = new BigInteger(digits.substring(1), 8);
+            } else {
+                parsed = new BigInteger(digits);
+            }
+            return sign * parsed.doubleValue();
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String describe(Set<Type> types) {
+        StringBuilder description = new StringBuilder();
+        for (Type type : types) {
+            description.append(description.length() == 0 ? "" : " or ").append(type.key());
+        }
+        return description.toString();
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? String.valueOf((long) value) :
+                String.valueOf(value);
+    }
+}
@@ -0,0 +1,106 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.composer.Composer;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * The parts of the yaml pipeline which a validator keeps from one file to the next: the resolver, which compiles its
+ * implicit tag patterns when it is created, the constructor of the construct engine, which registers its constructs
+ * when it is created, and the anchors the syntax engine has seen.
+ *
+ * SnakeYAML's reader, scanner, parser and composer hold the position in their stream in final fields and cannot be
+ * reset, so those are still created for each file. Each file takes a set of parts for itself, so files validated at
+ * the same time never share them, and a file which fails part way through drops its constructor rather than leaving
+ * its state to the next file.
+ *
+ * The pool belongs to its validator rather than to the threads which use it, so the parts are collected along with
+ * the validator and no thread outside the plugin is left holding them once it is disabled. It keeps at most as many
+ * sets of parts as files were ever validated at once.
+ */
+class ParserPool {
+
+    // the resource limits are applied by the parser and composer, which the settings give their own options
+    private static final LoaderOptions CONSTRUCTOR_OPTIONS = constructorOptions();
+    private static final int MAX_POOLED_ANCHORS = 1024;
+
+    private final Deque<Parts> idle = new ConcurrentLinkedDeque<>();
+
+    /**
+     * @return The parts which were handed back last, which are the most likely to still be in the cache, or new
+     *         parts if every set is in use
+     */
+    Parts acquire() {
+        Parts parts = idle.pollFirst();
+        return parts == null ? new Parts() : parts;
+    }
+
+    /**
+     * Hands the parts back for the next file
+     *
+     * @param parts The parts the file was validated with
+     * @param completed Whether the file was read to its end, rather than stopped by an error
+     */
+    void release(Parts parts, boolean completed) {
+        parts.reset(completed);
+        idle.offerFirst(parts);
+    }
+
+    private static LoaderOptions constructorOptions() {
+        LoaderOptions loaderOptions = new LoaderOptions();
+        loaderOptions.setAllowDuplicateKeys(true);
+        return loaderOptions;
+    }
+
+    static class Parts {
+
+        private final Resolver resolver = new Resolver();
+        private Set<String> anchors = new HashSet<>();
+        private YamlValidatorConstructor constructor;
+
+        Resolver getResolver() {
+            return resolver;
+        }
+
+        /**
+         * @return The anchors of the current document, empty for each file
+         */
+        Set<String> getAnchors() {
+            return anchors;
+        }
+
+        /**
+         * @param composer The composer of the file the documents are built from
+         * @return The constructor, reading from the composer
+         */
+        YamlValidatorConstructor getConstructor(Composer composer) {
+            if (constructor == null) {
+                constructor = new YamlValidatorConstructor(CONSTRUCTOR_OPTIONS);
+            }
+            constructor.setComposer(composer);
+            return constructor;
+        }
+
+        private void reset(boolean completed) {
+            if (anchors.size() > MAX_POOLED_ANCHORS) {
+                // a file with many anchors is rare, so its set is not kept around for the files after it
+                anchors = new HashSet<>();
+            } else {
+                anchors.clear();
+            }
+            if (constructor != null) {
+                if (completed) {
+                    constructor.setComposer(null);
+                } else {
+                    // a document which failed part way through can leave recursive values behind to fill in
+                    constructor = null;
+                }
+            }
+        }
+    }
+}
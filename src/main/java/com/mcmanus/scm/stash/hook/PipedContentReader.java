@@ -0,0 +1,116 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.content.ContentService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.util.MoreSuppliers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams the content of a file from {@link ContentService} straight into a {@link Reader}, so that the content
+ * can be parsed while it is still arriving and is never held in memory as a whole.
+ *
+ * The bytes pass through a bounded pipe which is filled on a fetch thread, and are decoded as UTF-8 unless a byte
+ * order mark says otherwise.
+ */
+class PipedContentReader implements ContentFetcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PipedContentReader.class);
+
+    static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
+    private final ContentService contentService;
+    private final ExecutorService fetchExecutor;
+
+    PipedContentReader(ContentService contentService, ExecutorService fetchExecutor) {
+        this.contentService = contentService;
+        this.fetchExecutor = fetchExecutor;
+    }
+
+    @Override
+    public Session open(Repository repository, Collection<YamlFile> files) {
+        return new Session() {
+            @Override
+            public <T> T read(YamlFile file, ContentConsumer<T> consumer) throws IOException {
+                return PipedContentReader.this.read(repository, file.getCommit().getId(), file.getPath(), consumer);
+            }
+
+            @Override
+            public void close() {
+                // every file is streamed on its own, so there is nothing to release
+            }
+        };
+    }
+
+    /**
+     * @param repository The repository to read the file from
+     * @param commitId The commit to read the file at
+     * @param path The path of the file
+     * @param consumer Reads the content, it does not have to read to the end
+     * @return The result of the consumer
+     * @throws IOException if the file could not be read in full
+     */
+    <T> T read(Repository repository, String commitId, String path, ContentConsumer<T> consumer) throws IOException {
+        PipedInputStream inputStream = new PipedInputStream(PIPE_BUFFER_SIZE);
+        PipedOutputStream outputStream = new PipedOutputStream(inputStream);
+        AtomicBoolean readerDone = new AtomicBoolean();
+
+        Future<?> fetch = fetchExecutor.submit(() -> {
+            try {
+                contentService.streamFile(repository, commitId, path,
+                        MoreSuppliers.newTypeAwareOutputSupplierOf(outputStream));
+                return null;
+            } catch (Exception e) {
+                if (readerDone.get()) {
+                    // the consumer had what it needed and closed the pipe
+                    LOG.debug("Stopped streaming " + path + " early");
+                    return null;
+                }
+                throw e;
+            } finally {
+                closeQuietly(outputStream);
+            }
+        });
+
+        Reader reader = new UnicodeReader(inputStream);
+        T result;
+        try {
+            result = consumer.read(reader);
+        } finally {
+            readerDone.set(true);
+            closeQuietly(reader);
+        }
+
+        try {
+            fetch.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Could not read " + path + " at " + commitId, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fetch.cancel(true);
+            throw new InterruptedIOException("Interrupted while reading " + path);
+        }
+        return result;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.debug("Problem closing the content pipe: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.mcmanus.scm.stash.hook;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What one push has already walked, listed and queued for validation, shared by all of its ref changes.
+ *
+ * A mirror push or a release which pushes hundreds of tags and a few branches into the same history would otherwise
+ * walk the same commits and list the same changes once per ref. Tips are remembered once walked, so later refs
+ * exclude them from their walk, and refs whose tip has already been seen are not walked at all. Files are kept by
+ * path and blob, or by path and commit when the blob is not known, so each version of a file is validated once
+ * however many refs carry it, while two refs which hold different versions of a path both have theirs validated.
+ *
+ * Ref changes are processed one at a time on the hook thread, so nothing here is synchronized.
+ */
+class PushContext {
+
+    private final Set<String> walkedTips = new LinkedHashSet<>();
+    private final Set<String> newCommits = new HashSet<>();
+    private final Set<String> listedCommits = new HashSet<>();
+    private final Set<List<String>> diffs = new HashSet<>();
+    private final Map<List<String>, YamlFile> files = new LinkedHashMap<>();
+
+    /**
+     * @return Whether the history of the commit has already been walked by an earlier ref change
+     */
+    boolean isWalked(String commitId) {
+        return walkedTips.contains(commitId) || newCommits.contains(commitId);
+    }
+
+    /**
+     * @return The tips walked so far, whose history later walks can exclude
+     */
+    Collection<String> getWalkedTips() {
+        return Collections.unmodifiableSet(walkedTips);
+    }
+
+    /**
+     * @param tip The tip which was walked
+     * @param commitIds The commits which the walk found to be new
+     */
+    void walked(String tip, Collection<String> commitIds) {
+        walkedTips.add(tip);
+        newCommits.addAll(commitIds);
+    }
+
+    /**
+     * @return true the first time the changes of a commit are about to be listed, false if they already have been
+     */
+    boolean markListed(String commitId) {
+        return listedCommits.add(commitId);
+    }
+
+    /**
+     * @return true the first time a diff is about to be listed, false if it already has been
+     */
+    boolean markDiffed(String sinceId, String untilId) {
+        return diffs.add(Arrays.asList(sinceId, untilId));
+    }
+
+    /**
+     * @param refFiles The files one ref change leaves to validate
+     */
+    void addFiles(Collection<YamlFile> refFiles) {
+        for (YamlFile file : refFiles) {
+            // without a blob id the version is only known by its commit, so each commit's version is kept
+            String commitId = file.getContentId() == null ? file.getCommit().getId() : null;
+            files.putIfAbsent(Arrays.asList(file.getPath(), file.getContentId(), commitId), file);
+        }
+    }
+
+    /**
+     * @return Every distinct version of every file which the push leaves to validate
+     */
+    Collection<YamlFile> getFiles() {
+        return Collections.unmodifiableCollection(files.values());
+    }
+}
@@ -0,0 +1,144 @@
+package com.mcmanus.scm.stash.hook;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counters of a single push, handed to {@link ValidationMetrics} once the push has been decided.
+ *
+ * The walk and the change listing run on the hook thread, while fetching and parsing run on the worker threads, so
+ * every field can be updated concurrently. Fetch and parse times are summed across the workers and can add up to
+ * more than the time the push took.
+ */
+class PushMetrics {
+
+    enum Phase {
+        /** Waiting for room in the node wide validation queue */
+        ADMIT,
+        /** Finding the commits which the push introduces */
+        WALK,
+        /** Listing the yaml files which those commits change */
+        LIST,
+        /** Files waiting in the validation queue for a worker thread */
+        QUEUE,
+        /** Waiting for the content of a file to start arriving */
+        FETCH,
+        /** Parsing a file, including reading the rest of a streamed blob */
+        PARSE;
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    static final String SYNTAX = "syntax";
+    static final String UNREADABLE = "unreadable";
+    static final String TIMEOUT = "timeout";
+    static final String BUSY = "busy";
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private final LongAdder commitsVisited = new LongAdder();
+    private final LongAdder filesChecked = new LongAdder();
+    private final LongAdder charactersParsed = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final ConcurrentMap<String, Integer> rejections = new ConcurrentHashMap<>();
+    private volatile boolean timedOut;
+    private volatile boolean busy;
+
+    void addPhase(Phase phase, long nanos) {
+        phaseNanos.addAndGet(phase.ordinal(), nanos);
+    }
+
+    void commitsVisited(int commits) {
+        commitsVisited.add(commits);
+    }
+
+    void fileChecked(long characters) {
+        filesChecked.increment();
+        charactersParsed.add(characters);
+    }
+
+    void cacheHit() {
+        filesChecked.increment();
+        cacheHits.increment();
+    }
+
+    /**
+     * @param outcome The outcome of an invalid file, counted under the limit it exceeded, as unreadable or as a
+     *                syntax error
+     */
+    void rejected(ValidationOutcome outcome) {
+        if (outcome.isUnreadable()) {
+            rejected(UNREADABLE);
+        } else {
+            rejected(outcome.getLimit() == null ? SYNTAX
+                    : "limit." + outcome.getLimit().name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    void rejected(String reason) {
+        rejections.merge(reason, 1, Integer::sum);
+    }
+
+    void timedOut() {
+        timedOut = true;
+    }
+
+    void busy() {
+        busy = true;
+    }
+
+    long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    Map<Phase, Long> getPhaseNanos() {
+        Map<Phase, Long> phases = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, phaseNanos.get(phase.ordinal()));
+        }
+        return phases;
+    }
+
+    long getCommitsVisited() {
+        return commitsVisited.sum();
+    }
+
+    long getFilesChecked() {
+        return filesChecked.sum();
+    }
+
+    long getCharactersParsed() {
+        return charactersParsed.sum();
+    }
+
+    long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    Map<String, Integer> getRejections() {
+        return Collections.unmodifiableMap(rejections);
+    }
+
+    boolean isRejected() {
+        return !rejections.isEmpty();
+    }
+
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return Whether the push could not be validated because the validation queue stayed full
+     */
+    boolean isBusy() {
+        return busy;
+    }
+}
@@ -0,0 +1,196 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.parser.Parser;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Applies the configured {@link ResourceLimit}s to a single yaml file.
+ *
+ * The size limit is counted on the characters read, and the other limits on the events pulled from the parser, so
+ * both engines are governed the same way and a file is rejected as soon as it goes over a limit. The matching
+ * {@link LoaderOptions} limits are set as well, as a backstop for anything SnakeYAML does on its own.
+ *
+ * Checking the composed documents against a {@link JsonSchema} is governed too: every check of a node against a rule
+ * of the schema is counted, and the time limit and interruption of the thread are checked while the schema walks the
+ * nodes and matches its patterns.
+ */
+class ResourceGovernor {
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    private static final int SCHEMA_CHECKS_BETWEEN_CLOCK_READS = 256;
+
+    /**
+     * Each node is checked against each rule of a schema at most once, so only a schema of thousands of rules
+     * applied to a file of thousands of nodes gets near this
+     */
+    static final int MAX_SCHEMA_CHECKS = 1_000_000;
+
+    private final YamlValidatorSettings settings;
+    private final LongSupplier nanoClock;
+    private long deadline = NO_DEADLINE;
+    private int schemaChecks;
+
+    ResourceGovernor(YamlValidatorSettings settings) {
+        this(settings, System::nanoTime);
+    }
+
+    ResourceGovernor(YamlValidatorSettings settings, LongSupplier nanoClock) {
+        this.settings = settings;
+        this.nanoClock = nanoClock;
+    }
+
+    LoaderOptions loaderOptions() {
+        return settings.getLoaderOptions();
+    }
+
+    Reader govern(Reader reader) {
+        if (settings.getMaxFileSizeKb() == 0) {
+            return reader;
+        }
+        return new SizeLimitedReader(reader, settings.getMaxFileSizeKb());
+    }
+
+    /**
+     * @param parser The parser to pull events from
+     * @return A parser which counts the events it hands out, starting the time limit now
+     */
+    Parser govern(Parser parser) {
+        long timeLimit = settings.getFileTimeoutSeconds();
+        deadline = timeLimit == 0 ? NO_DEADLINE : nanoClock.getAsLong() + TimeUnit.SECONDS.toNanos(timeLimit);
+        return new GovernedParser(parser);
+    }
+
+    /**
+     * Counts one check of a node against a rule of the schema, reading the clock every so often
+     *
+     * @throws ResourceLimitExceededException once the file has needed more than {@link #MAX_SCHEMA_CHECKS} checks, or
+     *                                        has run out of time
+     * @throws CancellationException if the thread has been interrupted
+     */
+    void countSchemaCheck() {
+        schemaChecks++;
+        if (schemaChecks > MAX_SCHEMA_CHECKS) {
+            throw new ResourceLimitExceededException(ResourceLimit.SCHEMA_CHECKS, MAX_SCHEMA_CHECKS);
+        }
+        if (schemaChecks % SCHEMA_CHECKS_BETWEEN_CLOCK_READS == 0) {
+            checkTime();
+        }
+    }
+
+    /**
+     * @throws ResourceLimitExceededException if the file has run out of time
+     * @throws CancellationException if the thread has been interrupted, as the verdict is no longer needed
+     */
+    void checkTime() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Validation was cancelled");
+        }
+        if (deadline != NO_DEADLINE && nanoClock.getAsLong() - deadline > 0) {
+            throw new ResourceLimitExceededException(ResourceLimit.TIME, settings.getFileTimeoutSeconds());
+        }
+    }
+
+    private static class SizeLimitedReader extends FilterReader {
+
+        private final int maxFileSizeKb;
+        private final long maxChars;
+        private long chars;
+
+        SizeLimitedReader(Reader in, int maxFileSizeKb) {
+            super(in);
+            this.maxFileSizeKb = maxFileSizeKb;
+            this.maxChars = (long) maxFileSizeKb * 1024;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                count(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int read) {
+            chars += read;
+            if (chars > maxChars) {
+                throw new ResourceLimitExceededException(ResourceLimit.SIZE, maxFileSizeKb);
+            }
+        }
+    }
+
+    private class GovernedParser implements Parser {
+
+        private final Parser parser;
+        private int documents;
+        private int depth;
+        private int aliases;
+
+        GovernedParser(Parser parser) {
+            this.parser = parser;
+        }
+
+        @Override
+        public boolean checkEvent(Event.ID choice) {
+            return parser.checkEvent(choice);
+        }
+
+        @Override
+        public Event peekEvent() {
+            return parser.peekEvent();
+        }
+
+        @Override
+        public Event getEvent() {
+            Event event = parser.getEvent();
+            if (deadline != NO_DEADLINE && nanoClock.getAsLong() - deadline > 0) {
+                throw new ResourceLimitExceededException(ResourceLimit.TIME, settings.getFileTimeoutSeconds());
+            }
+            switch (event.getEventId()) {
+                case DocumentStart:
+                    documents++;
+                    check(ResourceLimit.DOCUMENTS, documents, settings.getMaxDocuments());
+                    break;
+                case SequenceStart:
+                case MappingStart:
+                    depth++;
+                    check(ResourceLimit.DEPTH, depth, settings.getMaxDepth());
+                    break;
+                case SequenceEnd:
+                case MappingEnd:
+                    depth--;
+                    break;
+                case Alias:
+                    aliases++;
+                    check(ResourceLimit.ALIASES, aliases, settings.getMaxAliases());
+                    break;
+                default:
+                    break;
+            }
+            return event;
+        }
+
+        private void check(ResourceLimit limit, int value, int max) {
+            if (max > 0 && value > max) {
+                throw new ResourceLimitExceededException(limit, max);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.mcmanus.scm.stash.hook;
+
+/**
+ * The limits which stop a single yaml file from tying up a hook thread or the heap, such as a very large file or
+ * a "billion laughs" alias bomb.
+ */
+public enum ResourceLimit {
+    SIZE("is larger than %d KB"),
+    DOCUMENTS("holds more than %d documents"),
+    DEPTH("is nested deeper than %d levels"),
+    ALIASES("uses more than %d aliases"),
+    TIME("took longer than %d seconds to validate"),
+    SCHEMA_CHECKS("needed more than %d checks against its schema");
+
+    private final String description;
+
+    ResourceLimit(String description) {
+        this.description = description;
+    }
+
+    /**
+     * @param limit The configured value of the limit
+     * @return A summary of why the file was rejected
+     */
+    public String describe(long limit) {
+        return "Resource limit exceeded: the file " + String.format(description, limit);
+    }
+}
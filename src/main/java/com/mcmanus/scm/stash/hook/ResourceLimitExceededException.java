@@ -0,0 +1,21 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * Raised from inside the parser once a file goes over one of the configured {@link ResourceLimit}s, so that parsing
+ * stops straight away.
+ */
+public class ResourceLimitExceededException extends YAMLException {
+
+    private final ResourceLimit limit;
+
+    public ResourceLimitExceededException(ResourceLimit limit, long value) {
+        super(limit.describe(value));
+        this.limit = limit;
+    }
+
+    public ResourceLimit getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,147 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The compiled schemas setting: path globs, in order, each mapped to the path of a schema stored alongside the yaml
+ * files or to an inline schema. It only depends on snakeyaml and gson, so the hook and the command line validator
+ * pick the schema of a file the same way.
+ */
+class SchemaMappings {
+
+    static final int MAX_SCHEMA_SIZE = 1024 * 1024;
+
+    private final List<Mapping> mappings;
+
+    private SchemaMappings(List<Mapping> mappings) {
+        this.mappings = mappings;
+    }
+
+    /**
+     * @param text The schemas setting
+     * @return The mappings, with every inline schema compiled
+     * @throws IllegalArgumentException if the setting is not a JSON object of globs to schema paths or schemas
+     */
+    static SchemaMappings parse(String text) {
+        JsonElement json;
+        try {
+            json = JsonParser.parseString(text);
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("The schemas are not valid JSON: " + e.getMessage(), e);
+        }
+        if (!json.isJsonObject()) {
+            throw new IllegalArgumentException("The schemas have to be a JSON object of path globs to schemas");
+        }
+        List<Mapping> compiled = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet()) {
+            Pattern glob = Pattern.compile(YamlPathMatcher.globToRegex(entry.getKey()));
+            JsonElement value = entry.getValue();
+            if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isString()) {
+                String path = value.getAsString().startsWith("/") ? value.getAsString().substring(1) :
+                        value.getAsString();
+                compiled.add(new Mapping(glob, path, null));
+            } else if (value.isJsonObject() || value.isJsonPrimitive() && value.getAsJsonPrimitive().isBoolean()) {
+                try {
+                    JsonSchema inline = JsonSchema.compile("settings@" + sha1(value.toString()), value);
+                    compiled.add(new Mapping(glob, null, inline));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("The schema for " + entry.getKey() + " is invalid: "
+                            + e.getMessage(), e);
+                }
+            } else {
+                throw new IllegalArgumentException("The schema for " + entry.getKey()
+                        + " has to be a path in the repository or a schema");
+            }
+        }
+        return new SchemaMappings(compiled);
+    }
+
+    /**
+     * @param problem Why the schemas setting could not be compiled
+     * @return Mappings which reject every file with the problem
+     */
+    static SchemaMappings broken(String problem) {
+        // the id changes with the problem, so verdicts cached for an earlier broken setting are not reused
+        JsonSchema broken = JsonSchema.broken("settings!" + sha1(problem), "settings", problem);
+        return new SchemaMappings(Collections.singletonList(new Mapping(Pattern.compile(".*"), null, broken)));
+    }
+
+    /**
+     * @param id The path and version of the stored schema
+     * @param content The content of the stored schema, or null if it could not be read or is too large
+     * @return The compiled schema, or one which rejects every file with the reason it could not be compiled
+     */
+    static JsonSchema compileStored(String id, String content) {
+        if (content == null) {
+            return JsonSchema.broken(id, "it could not be read or is larger than " + MAX_SCHEMA_SIZE + " bytes");
+        }
+        try {
+            return JsonSchema.compile(id, content);
+        } catch (IllegalArgumentException e) {
+            return JsonSchema.broken(id, e.getMessage());
+        }
+    }
+
+    /**
+     * @return The first mapping whose glob matches the path, or null if only the syntax of the file is checked
+     */
+    Mapping find(String path) {
+        for (Mapping mapping : mappings) {
+            if (mapping.glob.matcher(path).matches()) {
+                return mapping;
+            }
+        }
+        return null;
+    }
+
+    static String sha1(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static class Mapping {
+
+        private final Pattern glob;
+        private final String path;
+        private final JsonSchema inline;
+
+        Mapping(Pattern glob, String path, JsonSchema inline) {
+            this.glob = glob;
+            this.path = path;
+            this.inline = inline;
+        }
+
+        /**
+         * @return The path of the schema stored alongside the yaml files, or null for an inline schema
+         */
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * @return The inline schema, or null for a stored schema
+         */
+        JsonSchema getInline() {
+            return inline;
+        }
+    }
+}
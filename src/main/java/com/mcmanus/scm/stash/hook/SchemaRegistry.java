@@ -0,0 +1,370 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node wide cache of compiled {@link JsonSchema}s, and the lookup of the schema which applies to each file of a push.
+ *
+ * The schemas setting maps path globs to a schema, either inline in the settings or stored in the repository. The
+ * mappings are compiled once per repository and settings hash, and schemas stored in the repository once per blob,
+ * so a schema is only parsed again when it changes. For each push, the blob of every stored schema is looked up at
+ * the commits being validated with a single {@code git cat-file --batch-check}, and only blobs which have not been
+ * compiled yet are read. The least recently used entries are evicted once the cache is full. Files whose stored
+ * schema cannot be read at all are rejected with the reason, rather than only having their syntax checked.
+ */
+@Named("yamlSchemaRegistry")
+public class SchemaRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SchemaRegistry.class);
+
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    @ComponentImport
+    private final GitCommandBuilderFactory builderFactory;
+
+    private final Map<String, SchemaMappings> mappings;
+    private final Map<String, JsonSchema> schemas;
+    private final AtomicLong compilations = new AtomicLong();
+
+    @Inject
+    public SchemaRegistry(final GitCommandBuilderFactory builderFactory) {
+        this(builderFactory, DEFAULT_MAX_ENTRIES);
+    }
+
+    SchemaRegistry(GitCommandBuilderFactory builderFactory, int maxEntries) {
+        this.builderFactory = builderFactory;
+        this.mappings = lru(maxEntries);
+        this.schemas = lru(maxEntries);
+    }
+
+    /**
+     * @param repository The repository that the push is for
+     * @param settings The hook settings, holding the schema mappings
+     * @param files The files of the push
+     * @return The schema which applies to each of the files
+     */
+    public Schemas forPush(Repository repository, YamlValidatorSettings settings, Collection<YamlFile> files) {
+        if (settings.getSchemas().isEmpty()) {
+            return Schemas.NONE;
+        }
+        SchemaMappings compiled = mappings(repository, settings.getSchemas());
+
+        Map<YamlFile, JsonSchema> assigned = new IdentityHashMap<>();
+        Map<String, List<YamlFile>> stored = new LinkedHashMap<>();
+        for (YamlFile file : files) {
+            SchemaMappings.Mapping mapping = compiled.find(file.getPath());
+            if (mapping == null) {
+                continue;
+            }
+            if (mapping.getInline() != null) {
+                assigned.put(file, mapping.getInline());
+            } else {
+                String spec = file.getCommit().getId() + ':' + mapping.getPath();
+                stored.computeIfAbsent(spec, key -> new ArrayList<>()).add(file);
+            }
+        }
+
+        if (!stored.isEmpty()) {
+            try {
+                Map<String, String> blobIds = findBlobs(repository, stored.keySet());
+                Map<String, JsonSchema> loaded = load(repository, blobIds);
+                for (Map.Entry<String, List<YamlFile>> spec : stored.entrySet()) {
+                    JsonSchema schema = loaded.get(spec.getKey());
+                    if (schema == null) {
+                        LOG.debug("No schema at " + spec.getKey() + ", only checking the syntax");
+                        continue;
+                    }
+                    for (YamlFile file : spec.getValue()) {
+                        assigned.put(file, schema);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // checking only the syntax would accept files which break their schema, so they are rejected
+                LOG.warn("Could not read the schemas stored in " + repository.getName() + ": " + e.getMessage());
+                for (Map.Entry<String, List<YamlFile>> spec : stored.entrySet()) {
+                    JsonSchema unavailable = JsonSchema.unavailable(spec.getKey(), e.getMessage());
+                    for (YamlFile file : spec.getValue()) {
+                        assigned.put(file, unavailable);
+                    }
+                }
+            }
+        }
+        return new Schemas(assigned);
+    }
+
+    /**
+     * Checks the schemas setting, compiling every inline schema
+     *
+     * @param text The schemas setting
+     * @throws IllegalArgumentException if the setting is not a JSON object of globs to schema paths or schemas
+     */
+    static void check(String text) {
+        SchemaMappings.parse(text);
+    }
+
+    /**
+     * @return The number of mappings and schemas which have been compiled, to tell cache hits from misses
+     */
+    long getCompileCount() {
+        return compilations.get();
+    }
+
+    private SchemaMappings mappings(Repository repository, String text) {
+        String key = repository.getId() + ":" + SchemaMappings.sha1(text);
+        synchronized (mappings) {
+            SchemaMappings cached = mappings.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        SchemaMappings compiled;
+        try {
+            compiled = SchemaMappings.parse(text);
+        } catch (IllegalArgumentException e) {
+            // settings saved before they were validated, so every file they map is rejected with the reason
+            compiled = SchemaMappings.broken(e.getMessage());
+        }
+        compilations.incrementAndGet();
+        synchronized (mappings) {
+            mappings.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * @return The compiled schema for every spec whose blob was found, compiling those which are not cached yet
+     */
+    private Map<String, JsonSchema> load(Repository repository, Map<String, String> blobIds) {
+        Map<String, JsonSchema> loaded = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (Map.Entry<String, String> spec : blobIds.entrySet()) {
+            JsonSchema schema = cached(key(repository, spec.getKey(), spec.getValue()));
+            if (schema == null) {
+                missing.add(spec.getValue());
+            } else {
+                loaded.put(spec.getKey(), schema);
+            }
+        }
+        if (missing.isEmpty()) {
+            return loaded;
+        }
+
+        Map<String, String> contents = readBlobs(repository, missing);
+        for (Map.Entry<String, String> spec : blobIds.entrySet()) {
+            String key = key(repository, spec.getKey(), spec.getValue());
+            JsonSchema schema = loaded.containsKey(spec.getKey()) ? loaded.get(spec.getKey()) : cached(key);
+            if (schema == null) {
+                schema = compile(path(spec.getKey()) + "@" + spec.getValue(), contents.get(spec.getValue()));
+                synchronized (schemas) {
+                    schemas.put(key, schema);
+                }
+            }
+            loaded.put(spec.getKey(), schema);
+        }
+        return loaded;
+    }
+
+    private JsonSchema cached(String key) {
+        synchronized (schemas) {
+            return schemas.get(key);
+        }
+    }
+
+    private JsonSchema compile(String id, String content) {
+        compilations.incrementAndGet();
+        return SchemaMappings.compileStored(id, content);
+    }
+
+    /**
+     * @param specs {@code <commit>:<path>} of each stored schema to look up
+     * @return The blob id of each spec which names a blob
+     */
+    private Map<String, String> findBlobs(Repository repository, Set<String> specs) {
+        Map<String, String> blobIds = new LinkedHashMap<>();
+        List<String> lines = builderFactory.builder(repository)
+                .command("cat-file")
+                .argument("--batch-check")
+                .inputHandler(new LineWriter(specs))
+                .build(new BatchReader(specs.size(), false))
+                .call();
+        int i = 0;
+        for (String spec : specs) {
+            String[] header = lines.get(i++).split(" ");
+            if (header.length == 3 && "blob".equals(header[1])) {
+                blobIds.put(spec, header[0]);
+            }
+        }
+        return blobIds;
+    }
+
+    /**
+     * @return The content of each blob which could be read
+     */
+    private Map<String, String> readBlobs(Repository repository, Set<String> blobIds) {
+        List<String> contents = builderFactory.builder(repository)
+                .command("cat-file")
+                .argument("--batch")
+                .inputHandler(new LineWriter(blobIds))
+                .build(new BatchReader(blobIds.size(), true))
+                .call();
+        Map<String, String> read = new HashMap<>();
+        int i = 0;
+        for (String blobId : blobIds) {
+            String content = contents.get(i++);
+            if (content != null) {
+                read.put(blobId, content);
+            }
+        }
+        return read;
+    }
+
+    private static String key(Repository repository, String spec, String blobId) {
+        return repository.getId() + ":" + path(spec) + "@" + blobId;
+    }
+
+    private static String path(String spec) {
+        return spec.substring(spec.indexOf(':') + 1);
+    }
+
+    private static <V> Map<String, V> lru(int maxEntries) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The schema which applies to each file of one push
+     */
+    public static class Schemas {
+
+        static final Schemas NONE = new Schemas(Collections.emptyMap());
+
+        private final Map<YamlFile, JsonSchema> schemas;
+
+        Schemas(Map<YamlFile, JsonSchema> schemas) {
+            this.schemas = schemas;
+        }
+
+        /**
+         * @return The schema the file has to match, or null if only its syntax is checked
+         */
+        public JsonSchema get(YamlFile file) {
+            return schemas.get(file);
+        }
+    }
+
+    /**
+     * Writes one object name to the process per line
+     */
+    private static class LineWriter implements CommandInputHandler {
+
+        private final Collection<String> lines;
+
+        LineWriter(Collection<String> lines) {
+            this.lines = new ArrayList<>(lines);
+        }
+
+        @Override
+        public void process(OutputStream input) throws IOException {
+            try (OutputStream out = input) {
+                for (String line : lines) {
+                    out.write((line + '\n').getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the header of each object, and with {@code --batch} its content, which is null for anything which is
+     * missing, is not a blob or is too large for a schema
+     */
+    private static class BatchReader implements CommandOutputHandler<List<String>> {
+
+        private final int count;
+        private final boolean withContent;
+        private final List<String> output = new ArrayList<>();
+
+        BatchReader(int count, boolean withContent) {
+            this.count = count;
+            this.withContent = withContent;
+        }
+
+        @Override
+        public List<String> getOutput() {
+            return output;
+        }
+
+        @Override
+        public void process(InputStream processOutput) throws IOException {
+            InputStream in = new BufferedInputStream(processOutput);
+            for (int i = 0; i < count; i++) {
+                String header = readLine(in);
+                if (!withContent) {
+                    output.add(header);
+                    continue;
+                }
+                String[] fields = header.split(" ");
+                if (fields.length != 3) {
+                    output.add(null);
+                    continue;
+                }
+                long size = Long.parseLong(fields[2]);
+                ByteArrayOutputStream content =
+                        new ByteArrayOutputStream((int) Math.min(size, SchemaMappings.MAX_SCHEMA_SIZE));
+                for (long read = 0; read <= size; read++) {
+                    int b = in.read();
+                    if (b == -1) {
+                        throw new EOFException("git cat-file ended early");
+                    }
+                    if (read < size && size <= SchemaMappings.MAX_SCHEMA_SIZE) {
+                        content.write(b);
+                    }
+                }
+                output.add("blob".equals(fields[1]) && size <= SchemaMappings.MAX_SCHEMA_SIZE ?
+                        new String(content.toByteArray(), StandardCharsets.UTF_8) : null);
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int read;
+            while ((read = in.read()) != '\n') {
+                if (read == -1) {
+                    throw new EOFException("git cat-file ended early");
+                }
+                line.write(read);
+            }
+            return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
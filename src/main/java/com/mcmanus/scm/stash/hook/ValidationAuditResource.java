@@ -0,0 +1,45 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Serves the background audits of a repository to administrators at
+ * {@code /rest/yaml-validator/1.0/audits?repositoryId=<id>}.
+ */
+@Path("/audits")
+@Produces(MediaType.APPLICATION_JSON)
+public class ValidationAuditResource {
+
+    private static final Gson GSON = new Gson();
+
+    @ComponentImport
+    private final PermissionService permissionService;
+
+    private final ValidationAuditor validationAuditor;
+
+    @Inject
+    public ValidationAuditResource(final PermissionService permissionService,
+                                   final ValidationAuditor validationAuditor) {
+        this.permissionService = permissionService;
+        this.validationAuditor = validationAuditor;
+    }
+
+    @GET
+    public Response getAudits(@QueryParam("repositoryId") int repositoryId) {
+        if (!permissionService.hasGlobalPermission(Permission.ADMIN)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        return Response.ok(GSON.toJson(validationAuditor.getAudits(repositoryId))).build();
+    }
+}
@@ -0,0 +1,351 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Audits, in the background, the ref changes which were too large to check commit by commit while the client waited,
+ * and keeps what each audit found for administrators at {@code /rest/yaml-validator/1.0/audits}.
+ *
+ * The hook marks such a ref change as expected while the push is being decided, and the audit is only queued once
+ * the refs have been updated, so pushes which were rejected are never audited. Audits run one at a time on a single
+ * daemon thread, so they take at most one CPU from the pushes. The last {@link #MAX_AUDITS} audits of each repository
+ * are kept in the plugin settings, each with up to {@link #MAX_FINDINGS} invalid files. Audits still queued or
+ * running when the plugin stops are abandoned, and their thread is stopped with it; once the plugin has started again
+ * they are shown as errors rather than as waiting for a thread which is gone.
+ */
+@ExportAsService({LifecycleAware.class})
+@Named("yamlValidationAuditor")
+public class ValidationAuditor implements LifecycleAware {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ValidationAuditor.class);
+
+    static final int MAX_EXPECTED = 1000;
+    static final int MAX_AUDITS = 20;
+    static final int MAX_FINDINGS = 50;
+
+    private static final String KEY_PREFIX = "com.mcmanus.scm.stash.hook.audits.";
+    private static final Gson GSON = new Gson();
+    private static final Type AUDITS = new TypeToken<List<Audit>>() {}.getType();
+    private static final String ABANDONED = "The audit was abandoned when the plugin stopped";
+
+    @ComponentImport
+    private final PluginSettingsFactory pluginSettingsFactory;
+    @ComponentImport
+    private final SecurityService securityService;
+
+    private final Executor executor;
+    private final long started = System.currentTimeMillis();
+    private final AtomicLong ids = new AtomicLong(System.currentTimeMillis());
+    private final Map<String, YamlValidatorSettings> expected =
+            new LinkedHashMap<String, YamlValidatorSettings>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, YamlValidatorSettings> eldest) {
+                    // ref changes of pushes which were rejected, or whose refs were updated elsewhere
+                    return size() > MAX_EXPECTED;
+                }
+            };
+
+    @Inject
+    public ValidationAuditor(final PluginSettingsFactory pluginSettingsFactory,
+                             final SecurityService securityService) {
+        this(pluginSettingsFactory, securityService, newExecutor());
+    }
+
+    ValidationAuditor(PluginSettingsFactory pluginSettingsFactory, SecurityService securityService,
+                      Executor executor) {
+        this.pluginSettingsFactory = pluginSettingsFactory;
+        this.securityService = securityService;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onStart() {
+        // the audit thread is started by the first audit
+    }
+
+    @Override
+    public void onStop() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+    }
+
+    /**
+     * Marks a ref change whose commits are to be audited, once its push has been accepted
+     *
+     * @param settings The hook settings the push was checked with, which the audit uses too
+     */
+    void expect(Repository repository, RefChange refChange, YamlValidatorSettings settings) {
+        synchronized (expected) {
+            expected.put(key(repository, refChange), settings);
+        }
+    }
+
+    /**
+     * Queues an audit of each of the ref changes which was expected
+     *
+     * @param repository The repository whose refs were updated
+     * @param refChanges The ref changes which were applied
+     * @param job Checks the commits of one ref change and fills in the audit
+     */
+    void start(Repository repository, Collection<RefChange> refChanges, Job job) {
+        for (RefChange refChange : refChanges) {
+            YamlValidatorSettings settings;
+            synchronized (expected) {
+                settings = expected.remove(key(repository, refChange));
+            }
+            if (settings == null) {
+                continue;
+            }
+
+            Audit audit = new Audit(Long.toString(ids.incrementAndGet()), refChange);
+            save(repository.getId(), audit);
+            try {
+                executor.execute(() -> run(repository, refChange, settings, audit, job));
+            } catch (RejectedExecutionException e) {
+                // the plugin is stopping, and its audit thread with it
+                LOG.warn("Could not audit the yaml files of " + audit.ref + " in " + repository.getName()
+                        + " as the plugin is stopping");
+                audit.status = Status.ERROR;
+                audit.error = ABANDONED;
+                audit.finished = System.currentTimeMillis();
+                save(repository.getId(), audit);
+            }
+        }
+    }
+
+    /**
+     * @return The latest audits of the repository, newest first
+     */
+    List<Audit> getAudits(int repositoryId) {
+        synchronized (this) {
+            PluginSettings pluginSettings = settings();
+            List<Audit> audits = load(pluginSettings, repositoryId);
+            boolean abandoned = false;
+            for (Audit audit : audits) {
+                if ((audit.status == Status.QUEUED || audit.status == Status.RUNNING) && audit.queued < started) {
+                    // queued before the plugin last started, so no thread of this plugin will ever run it
+                    audit.status = Status.ERROR;
+                    audit.error = ABANDONED;
+                    abandoned = true;
+                }
+            }
+            if (abandoned) {
+                pluginSettings.put(KEY_PREFIX + repositoryId, GSON.toJson(audits, AUDITS));
+            }
+            return audits;
+        }
+    }
+
+    private void run(Repository repository, RefChange refChange, YamlValidatorSettings settings, Audit audit,
+                     Job job) {
+        audit.status = Status.RUNNING;
+        save(repository.getId(), audit);
+        try {
+            securityService.withPermission(Permission.REPO_READ, "Auditing the yaml files of a push").call(() -> {
+                job.audit(repository, refChange, settings, audit);
+                return null;
+            });
+            audit.status = audit.invalid == 0 ? Status.PASSED : Status.FAILED;
+        } catch (RuntimeException e) {
+            LOG.warn("Could not audit the yaml files of " + audit.ref + " in " + repository.getName() + ": "
+                    + e.getMessage());
+            audit.status = Status.ERROR;
+            audit.error = e.getMessage();
+        }
+        audit.finished = System.currentTimeMillis();
+        save(repository.getId(), audit);
+        if (audit.invalid > 0) {
+            LOG.warn("The audit of " + audit.ref + " in " + repository.getName() + " found " + audit.invalid
+                    + " invalid yaml files");
+        }
+    }
+
+    /**
+     * Adds or replaces the audit, dropping the oldest audits of the repository beyond {@link #MAX_AUDITS}
+     */
+    private synchronized void save(int repositoryId, Audit audit) {
+        PluginSettings pluginSettings = settings();
+        List<Audit> audits = load(pluginSettings, repositoryId);
+        audits.removeIf(existing -> existing.id.equals(audit.id));
+        audits.add(0, audit);
+        while (audits.size() > MAX_AUDITS) {
+            audits.remove(audits.size() - 1);
+        }
+        pluginSettings.put(KEY_PREFIX + repositoryId, GSON.toJson(audits, AUDITS));
+    }
+
+    private static List<Audit> load(PluginSettings pluginSettings, int repositoryId) {
+        Object stored = pluginSettings.get(KEY_PREFIX + repositoryId);
+        if (!(stored instanceof String)) {
+            return new ArrayList<>();
+        }
+        List<Audit> audits = GSON.fromJson((String) stored, AUDITS);
+        return audits == null ? new ArrayList<>() : audits;
+    }
+
+    private PluginSettings settings() {
+        return pluginSettingsFactory.createGlobalSettings();
+    }
+
+    private static String key(Repository repository, RefChange refChange) {
+        String refId = refChange.getRef() == null ? "" : refChange.getRef().getId();
+        return repository.getId() + ":" + refId + ":" + refChange.getToHash();
+    }
+
+    private static Executor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "yaml-validator-audit");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Checks every commit of a ref change
+     */
+    interface Job {
+
+        void audit(Repository repository, RefChange refChange, YamlValidatorSettings settings, Audit audit);
+    }
+
+    public enum Status {
+        QUEUED, RUNNING, PASSED, FAILED, ERROR
+    }
+
+    /**
+     * One audit of a ref change, as it is stored and served
+     */
+    public static class Audit {
+
+        private String id;
+        private String ref;
+        private String fromHash;
+        private String toHash;
+        private Status status;
+        private long queued;
+        private long finished;
+        private int commits;
+        private int files;
+        private int invalid;
+        private List<Finding> findings = new ArrayList<>();
+        private String error;
+
+        Audit(String id, RefChange refChange) {
+            this.id = id;
+            this.ref = refChange.getRef() == null ? null : refChange.getRef().getId();
+            this.fromHash = refChange.getFromHash();
+            this.toHash = refChange.getToHash();
+            this.status = Status.QUEUED;
+            this.queued = System.currentTimeMillis();
+        }
+
+        /**
+         * @param commits The number of commits the ref change brought
+         * @param files The number of versions of yaml files those commits changed
+         */
+        void checked(int commits, int files) {
+            this.commits = commits;
+            this.files = files;
+        }
+
+        /**
+         * Records an invalid file, keeping the first {@link #MAX_FINDINGS} and counting the rest
+         */
+        void invalid(String path, String commitId, String problem) {
+            if (findings.size() < MAX_FINDINGS) {
+                findings.add(new Finding(path, commitId, problem));
+            }
+            invalid++;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getRef() {
+            return ref;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getCommits() {
+            return commits;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getInvalid() {
+            return invalid;
+        }
+
+        public List<Finding> getFindings() {
+            return Collections.unmodifiableList(findings);
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    public static class Finding {
+
+        private final String path;
+        private final String commitId;
+        private final String problem;
+
+        Finding(String path, String commitId, String problem) {
+            this.path = path;
+            this.commitId = commitId;
+            this.problem = problem;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public String getProblem() {
+            return problem;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Node wide aggregate of the {@link PushMetrics} of every push, published over JMX and by
+ * {@link ValidationMetricsResource}.
+ *
+ * Recording a push only adds to counters and fixed histogram buckets, so it costs the same however many pushes have
+ * been seen. Counters are kept per repository up to {@link #MAX_REPOSITORIES}, after which further repositories are
+ * counted together under {@link #OTHER_REPOSITORIES}.
+ */
+@ExportAsService({LifecycleAware.class})
+@Named("yamlValidationMetrics")
+public class ValidationMetrics implements ValidationMetricsMXBean, LifecycleAware {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ValidationMetrics.class);
+
+    static final String OBJECT_NAME = "com.mcmanus.scm.stash.hook:type=ValidationMetrics";
+    static final int MAX_REPOSITORIES = 1000;
+    static final String OTHER_REPOSITORIES = "(other)";
+    static final String PUSH = "push";
+
+    private final LongAdder pushes = new LongAdder();
+    private final LongAdder rejectedPushes = new LongAdder();
+    private final LongAdder timedOutPushes = new LongAdder();
+    private final LongAdder busyPushes = new LongAdder();
+    private final LongAdder commitsVisited = new LongAdder();
+    private final LongAdder filesChecked = new LongAdder();
+    private final LongAdder charactersParsed = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> rejections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RepositoryCounters> repositories = new ConcurrentHashMap<>();
+    private final Histogram pushTimes = new Histogram();
+    private final Map<PushMetrics.Phase, Histogram> phaseTimes = new EnumMap<>(PushMetrics.Phase.class);
+
+    private final ValidationScheduler validationScheduler;
+
+    @Inject
+    public ValidationMetrics(final ValidationScheduler validationScheduler) {
+        this.validationScheduler = validationScheduler;
+        for (PushMetrics.Phase phase : PushMetrics.Phase.values()) {
+            phaseTimes.put(phase, new Histogram());
+        }
+    }
+
+    /**
+     * Metrics which are not tied to a scheduler, whose queue always looks empty
+     */
+    ValidationMetrics() {
+        this(null);
+    }
+
+    @Override
+    public void onStart() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // left behind by an earlier instance of the plugin
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            LOG.warn("Could not publish the yaml validator metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onStop() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            LOG.warn("Could not remove the yaml validator metrics from JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param repository The repository that was pushed to
+     * @param push The timings and counters of the push, once it has been decided
+     */
+    void record(Repository repository, PushMetrics push) {
+        long elapsedNanos = push.getElapsedNanos();
+        pushes.increment();
+        if (push.isRejected()) {
+            rejectedPushes.increment();
+        }
+        if (push.isTimedOut()) {
+            timedOutPushes.increment();
+        }
+        if (push.isBusy()) {
+            busyPushes.increment();
+        }
+        commitsVisited.add(push.getCommitsVisited());
+        filesChecked.add(push.getFilesChecked());
+        charactersParsed.add(push.getCharactersParsed());
+        cacheHits.add(push.getCacheHits());
+        for (Map.Entry<String, Integer> rejection : push.getRejections().entrySet()) {
+            rejections.computeIfAbsent(rejection.getKey(), reason -> new LongAdder()).add(rejection.getValue());
+        }
+
+        pushTimes.record(elapsedNanos);
+        for (Map.Entry<PushMetrics.Phase, Long> phase : push.getPhaseNanos().entrySet()) {
+            phaseTimes.get(phase.getKey()).record(phase.getValue());
+        }
+
+        RepositoryCounters counters = countersFor(repository);
+        counters.pushes.increment();
+        if (push.isRejected()) {
+            counters.rejected.increment();
+        }
+        counters.filesChecked.add(push.getFilesChecked());
+        counters.nanos.add(elapsedNanos);
+    }
+
+    private RepositoryCounters countersFor(Repository repository) {
+        String key = keyOf(repository);
+        RepositoryCounters counters = repositories.get(key);
+        if (counters == null) {
+            if (repositories.size() >= MAX_REPOSITORIES) {
+                key = OTHER_REPOSITORIES;
+            }
+            counters = repositories.computeIfAbsent(key, k -> new RepositoryCounters());
+        }
+        return counters;
+    }
+
+    /**
+     * @return The project key and slug of the repository, which name it in the metrics and the validation queue
+     */
+    static String keyOf(Repository repository) {
+        return repository.getProject() == null ?
+                String.valueOf(repository.getSlug()) :
+                repository.getProject().getKey() + "/" + repository.getSlug();
+    }
+
+    /**
+     * @return Every aggregate as nested maps of numbers, ready to be written out as JSON
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("pushes", getPushCount());
+        snapshot.put("rejectedPushes", getRejectedPushCount());
+        snapshot.put("timedOutPushes", getTimedOutPushCount());
+        snapshot.put("busyPushes", getBusyPushCount());
+        snapshot.put("queueDepth", getQueueDepth());
+        snapshot.put("runningValidations", getRunningValidations());
+        snapshot.put("commitsVisited", getCommitsVisited());
+        snapshot.put("filesChecked", getFilesChecked());
+        snapshot.put("charactersParsed", getCharactersParsed());
+        snapshot.put("cacheHits", getCacheHits());
+        snapshot.put("rejections", getRejectionsByReason());
+
+        Map<String, Object> phases = new LinkedHashMap<>();
+        phases.put(PUSH, pushTimes.snapshot());
+        for (Map.Entry<PushMetrics.Phase, Histogram> phase : phaseTimes.entrySet()) {
+            phases.put(phase.getKey().key(), phase.getValue().snapshot());
+        }
+        snapshot.put("phases", phases);
+
+        Map<String, Object> perRepository = new TreeMap<>();
+        for (Map.Entry<String, RepositoryCounters> repository : repositories.entrySet()) {
+            perRepository.put(repository.getKey(), repository.getValue().snapshot());
+        }
+        snapshot.put("repositories", perRepository);
+        return snapshot;
+    }
+
+    @Override
+    public long getPushCount() {
+        return pushes.sum();
+    }
+
+    @Override
+    public long getRejectedPushCount() {
+        return rejectedPushes.sum();
+    }
+
+    @Override
+    public long getTimedOutPushCount() {
+        return timedOutPushes.sum();
+    }
+
+    @Override
+    public long getBusyPushCount() {
+        return busyPushes.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return validationScheduler == null ? 0 : validationScheduler.getQueueDepth();
+    }
+
+    @Override
+    public int getRunningValidations() {
+        return validationScheduler == null ? 0 : validationScheduler.getRunning();
+    }
+
+    @Override
+    public long getCommitsVisited() {
+        return commitsVisited.sum();
+    }
+
+    @Override
+    public long getFilesChecked() {
+        return filesChecked.sum();
+    }
+
+    @Override
+    public long getCharactersParsed() {
+        return charactersParsed.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRejectionsByReason() {
+        Map<String, Long> byReason = new TreeMap<>();
+        rejections.forEach((reason, count) -> byReason.put(reason, count.sum()));
+        return byReason;
+    }
+
+    @Override
+    public Map<String, Long> getPushesByRepository() {
+        return byRepository(counters -> counters.pushes.sum());
+    }
+
+    @Override
+    public Map<String, Long> getRejectedPushesByRepository() {
+        return byRepository(counters -> counters.rejected.sum());
+    }
+
+    @Override
+    public Map<String, Double> getMeanMillisByPhase() {
+        return byPhase(Histogram::meanMillis);
+    }
+
+    @Override
+    public Map<String, Long> getP95MillisByPhase() {
+        return byPhase(histogram -> histogram.percentileMillis(0.95));
+    }
+
+    @Override
+    public Map<String, Long> getMaxMillisByPhase() {
+        return byPhase(Histogram::maxMillis);
+    }
+
+    @Override
+    public void reset() {
+        pushes.reset();
+        rejectedPushes.reset();
+        timedOutPushes.reset();
+        busyPushes.reset();
+        commitsVisited.reset();
+        filesChecked.reset();
+        charactersParsed.reset();
+        cacheHits.reset();
+        rejections.clear();
+        repositories.clear();
+        pushTimes.reset();
+        phaseTimes.values().forEach(Histogram::reset);
+    }
+
+    private Map<String, Long> byRepository(Function<RepositoryCounters, Long> value) {
+        Map<String, Long> byRepository = new TreeMap<>();
+        repositories.forEach((repository, counters) -> byRepository.put(repository, value.apply(counters)));
+        return byRepository;
+    }
+
+    private <T> Map<String, T> byPhase(Function<Histogram, T> value) {
+        Map<String, T> byPhase = new LinkedHashMap<>();
+        byPhase.put(PUSH, value.apply(pushTimes));
+        phaseTimes.forEach((phase, histogram) -> byPhase.put(phase.key(), value.apply(histogram)));
+        return byPhase;
+    }
+
+    private static class RepositoryCounters {
+
+        private final LongAdder pushes = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder filesChecked = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        Map<String, Object> snapshot() {
+            long count = pushes.sum();
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("pushes", count);
+            snapshot.put("rejectedPushes", rejected.sum());
+            snapshot.put("filesChecked", filesChecked.sum());
+            snapshot.put("meanMillis", count == 0 ? 0.0 : nanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1));
+            return snapshot;
+        }
+    }
+
+    /**
+     * Durations counted into fixed buckets, so that percentiles are accurate to the bucket a value falls in
+     */
+    static class Histogram {
+
+        static final long[] BUCKET_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_MILLIS.length + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_MILLIS.length && millis >= BUCKET_MILLIS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        double meanMillis() {
+            long values = count.sum();
+            return values == 0 ? 0.0 : totalNanos.sum() / (double) values / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        long maxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+
+        /**
+         * @return The upper bound of the bucket the percentile falls in, or the maximum for the last bucket
+         */
+        long percentileMillis(double percentile) {
+            long values = count.sum();
+            if (values == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * values);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_MILLIS.length; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(BUCKET_MILLIS[bucket], maxMillis());
+                }
+            }
+            return maxMillis();
+        }
+
+        void reset() {
+            for (int bucket = 0; bucket < buckets.length(); bucket++) {
+                buckets.set(bucket, 0);
+            }
+            count.reset();
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("count", count.sum());
+            snapshot.put("meanMillis", meanMillis());
+            snapshot.put("p50Millis", percentileMillis(0.50));
+            snapshot.put("p95Millis", percentileMillis(0.95));
+            snapshot.put("p99Millis", percentileMillis(0.99));
+            snapshot.put("maxMillis", maxMillis());
+            return snapshot;
+        }
+    }
+}
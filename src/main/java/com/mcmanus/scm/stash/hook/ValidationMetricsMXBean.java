@@ -0,0 +1,50 @@
+package com.mcmanus.scm.stash.hook;
+
+import java.util.Map;
+
+/**
+ * The aggregated push metrics as they are published over JMX, under {@value ValidationMetrics#OBJECT_NAME}.
+ * Times are in milliseconds and cover every push since the plugin was enabled or the metrics were last reset.
+ */
+public interface ValidationMetricsMXBean {
+
+    long getPushCount();
+
+    long getRejectedPushCount();
+
+    long getTimedOutPushCount();
+
+    /**
+     * @return Pushes which were not validated because the validation queue stayed full
+     */
+    long getBusyPushCount();
+
+    /**
+     * @return Files which have been admitted to the validation queue but are not being parsed yet
+     */
+    int getQueueDepth();
+
+    int getRunningValidations();
+
+    long getCommitsVisited();
+
+    long getFilesChecked();
+
+    long getCharactersParsed();
+
+    long getCacheHits();
+
+    Map<String, Long> getRejectionsByReason();
+
+    Map<String, Long> getPushesByRepository();
+
+    Map<String, Long> getRejectedPushesByRepository();
+
+    Map<String, Double> getMeanMillisByPhase();
+
+    Map<String, Long> getP95MillisByPhase();
+
+    Map<String, Long> getMaxMillisByPhase();
+
+    void reset();
+}
@@ -0,0 +1,53 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.google.gson.Gson;
+
+import javax.inject.Inject;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Serves the aggregated push metrics to administrators at {@code /rest/yaml-validator/1.0/metrics}.
+ */
+@Path("/metrics")
+@Produces(MediaType.APPLICATION_JSON)
+public class ValidationMetricsResource {
+
+    private static final Gson GSON = new Gson();
+
+    @ComponentImport
+    private final PermissionService permissionService;
+
+    private final ValidationMetrics validationMetrics;
+
+    @Inject
+    public ValidationMetricsResource(final PermissionService permissionService,
+                                     final ValidationMetrics validationMetrics) {
+        this.permissionService = permissionService;
+        this.validationMetrics = validationMetrics;
+    }
+
+    @GET
+    public Response getMetrics() {
+        if (!permissionService.hasGlobalPermission(Permission.ADMIN)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        return Response.ok(GSON.toJson(validationMetrics.snapshot())).build();
+    }
+
+    @DELETE
+    public Response reset() {
+        if (!permissionService.hasGlobalPermission(Permission.ADMIN)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        validationMetrics.reset();
+        return Response.noContent().build();
+    }
+}
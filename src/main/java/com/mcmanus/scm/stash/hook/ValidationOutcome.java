@@ -0,0 +1,139 @@
+package com.mcmanus.scm.stash.hook;
+
+/**
+ * The verdict for the content of a single yaml file. It does not refer to the path the content was read from, so
+ * it can be shared between every path and branch which holds the same blob.
+ */
+public class ValidationOutcome {
+
+    private static final ValidationOutcome VALID = new ValidationOutcome(true, null, null, null, false, 0, 0, 0);
+
+    private final boolean valid;
+    private final String detail;
+    private final String problem;
+    private final ResourceLimit limit;
+    private final boolean unreadable;
+    private final int document;
+    private final int line;
+    private final int column;
+
+    private ValidationOutcome(boolean valid, String detail, String problem, ResourceLimit limit, boolean unreadable,
+                              int document, int line, int column) {
+        this.valid = valid;
+        this.detail = detail;
+        this.problem = problem;
+        this.limit = limit;
+        this.unreadable = unreadable;
+        this.document = document;
+        this.line = line;
+        this.column = column;
+    }
+
+    public static ValidationOutcome valid() {
+        return VALID;
+    }
+
+    public static ValidationOutcome invalid(String detail) {
+        return new ValidationOutcome(false, detail, detail, null, false, 0, 0, 0);
+    }
+
+    /**
+     * @param detail The full parser error message, including the context and a snippet of the content
+     * @param problem The problem on its own, in a single line
+     * @param document The 1-based index of the document the error is in
+     * @param line The 1-based line the error was found at
+     * @param column The 1-based column the error was found at
+     */
+    public static ValidationOutcome invalid(String detail, String problem, int document, int line, int column) {
+        return new ValidationOutcome(false, detail, problem, null, false, document, line, column);
+    }
+
+    public static ValidationOutcome limitExceeded(ResourceLimit limit, String detail) {
+        return new ValidationOutcome(false, detail, detail, limit, false, 0, 0, 0);
+    }
+
+    /**
+     * @param detail Why the content could not be read
+     * @return An outcome which rejects the file, since content that was never read cannot be known to be valid
+     */
+    public static ValidationOutcome unreadable(String detail) {
+        return new ValidationOutcome(false, detail, detail, null, true, 0, 0, 0);
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return The parser error message for invalid content, null otherwise
+     */
+    public String getDetail() {
+        return detail;
+    }
+
+    /**
+     * @return The problem with invalid content in a single line, without the context or the snippet of the
+     *         content, null for valid content
+     */
+    public String getProblem() {
+        return problem;
+    }
+
+    /**
+     * @return The 1-based index of the document the error was found in, or 0 if it is not known
+     */
+    public int getDocument() {
+        return document;
+    }
+
+    /**
+     * @return The 1-based line the error was found at, or 0 if it is not known
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return The 1-based column the error was found at, or 0 if it is not known
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return The position and problem in a single line, such as {@code 4:7 in document 2: found undefined alias
+     *         base}, or null for valid content
+     */
+    public String getSummary() {
+        if (valid) {
+            return null;
+        }
+        return line == 0 ? problem : line + ":" + column + " in document " + document + ": " + problem;
+    }
+
+    /**
+     * @param path The path the content was read from
+     * @return The summary after the path, such as {@code config/app.yaml:4:7 in document 2: found undefined alias
+     *         base}, or null for valid content
+     */
+    public String getSummary(String path) {
+        if (valid) {
+            return null;
+        }
+        return path + (line == 0 ? ": " : ":") + getSummary();
+    }
+
+    /**
+     * @return The resource limit which stopped validation, or null if the content was parsed in full
+     */
+    public ResourceLimit getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return Whether the content could not be read, in which case the outcome says nothing about the content itself
+     */
+    public boolean isUnreadable() {
+        return unreadable;
+    }
+}
@@ -0,0 +1,131 @@
+package com.mcmanus.scm.stash.hook;
+
+import javax.inject.Named;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Node wide cache of validation outcomes keyed by git blob id, so content which has already been validated on
+ * another branch, fork or mirror is not streamed and parsed again.
+ *
+ * Entries are also keyed by the fingerprint of the settings which affect the verdict, so changing those settings
+ * invalidates every outcome which was computed with the old ones. The least recently used entries are evicted once
+ * the cache is full, and entries expire a fixed time after they were computed.
+ */
+@Named("yamlValidationResultCache")
+public class ValidationResultCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 20000;
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ValidationResultCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS, System::currentTimeMillis);
+    }
+
+    ValidationResultCache(int maxEntries, long ttlMillis, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ValidationResultCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param fingerprint The fingerprint of the settings which affect the verdict
+     * @param contentId The git blob id of the file content
+     * @return The cached outcome, or null if the content has not been validated with these settings
+     */
+    public ValidationOutcome get(String fingerprint, String contentId) {
+        if (contentId == null) {
+            return null;
+        }
+        String key = key(fingerprint, contentId);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && clock.getAsLong() - entry.created > ttlMillis) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.outcome;
+        }
+    }
+
+    /**
+     * @param fingerprint The fingerprint of the settings which affect the verdict
+     * @param contentId The git blob id of the file content
+     * @param outcome The outcome of validating the content
+     */
+    public void put(String fingerprint, String contentId, ValidationOutcome outcome) {
+        if (contentId == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key(fingerprint, contentId), new Entry(outcome, clock.getAsLong()));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private static String key(String fingerprint, String contentId) {
+        return fingerprint + ':' + contentId;
+    }
+
+    private static class Entry {
+
+        private final ValidationOutcome outcome;
+        private final long created;
+
+        Entry(ValidationOutcome outcome, long created) {
+            this.outcome = outcome;
+            this.created = created;
+        }
+    }
+}
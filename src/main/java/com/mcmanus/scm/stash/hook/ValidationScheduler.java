@@ -0,0 +1,327 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.auth.AuthenticationContext;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Node wide scheduler for the files which pushes validate, shared by every push to every repository.
+ *
+ * No more files are parsed at once than the {@link ValidationWorkerPool} has threads. Files waiting for a thread are
+ * queued per repository and, within a repository, per user, and the queues take turns, so a push of thousands of
+ * files delays a push of a few to another repository by one file rather than by thousands.
+ *
+ * A push has to be admitted before it can queue its files. Once the queue holds {@link #DEFAULT_QUEUE_CAPACITY}
+ * files, further pushes wait for room, and the hook decides what to do with those which wait too long.
+ */
+@ExportAsService({ValidationScheduler.class})
+@Named("yamlValidationScheduler")
+public class ValidationScheduler {
+
+    static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    private static final String ANONYMOUS = "(anonymous)";
+
+    @ComponentImport
+    private final AuthenticationContext authenticationContext;
+
+    private final Executor workers;
+    private final int maxRunning;
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition roomInQueue = lock.newCondition();
+    private final Deque<RepositoryQueue> turns = new ArrayDeque<>();
+    private final Map<String, RepositoryQueue> repositories = new HashMap<>();
+    private int pending;
+    private int running;
+
+    @Inject
+    public ValidationScheduler(final ValidationWorkerPool validationWorkerPool,
+                               final AuthenticationContext authenticationContext) {
+        this(validationWorkerPool, authenticationContext, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    ValidationScheduler(ValidationWorkerPool validationWorkerPool, AuthenticationContext authenticationContext,
+                        int capacity) {
+        this.authenticationContext = authenticationContext;
+        this.workers = validationWorkerPool.getExecutor();
+        this.maxRunning = validationWorkerPool.getThreads();
+        this.capacity = capacity;
+    }
+
+    /**
+     * Waits for room in the queue for the files of a push by the current user.
+     *
+     * @param repository The repository being pushed to
+     * @param files The number of files the push is about to validate
+     * @param maxWaitNanos How long to wait for room in the queue
+     * @param metrics Given the time spent waiting for room, and the time each file then waits for a thread
+     * @return The lane to queue the files on, to be closed once the push is done, or null if the queue stayed full
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public Lane admit(Repository repository, int files, long maxWaitNanos, PushMetrics metrics)
+            throws InterruptedException {
+        return admit(ValidationMetrics.keyOf(repository), currentUser(), files, maxWaitNanos, metrics);
+    }
+
+    Lane admit(String repository, String user, int files, long maxWaitNanos, PushMetrics metrics)
+            throws InterruptedException {
+        long started = System.nanoTime();
+        lock.lockInterruptibly();
+        try {
+            long remaining = maxWaitNanos;
+            // a push larger than the whole queue still gets in once the queue is empty
+            while (pending > 0 && pending + files > capacity) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = roomInQueue.awaitNanos(remaining);
+            }
+            pending += files;
+            return new Lane(repository, user, files, metrics);
+        } finally {
+            lock.unlock();
+            metrics.addPhase(PushMetrics.Phase.ADMIT, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * @return The files which have been admitted but are not being parsed yet
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The files being parsed right now
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Lane lane, Runnable runnable) {
+        Task next;
+        lock.lock();
+        try {
+            if (lane.closed) {
+                throw new IllegalStateException("The lane for " + lane.repository + " has been closed");
+            }
+            if (lane.reserved > 0) {
+                lane.reserved--;
+            } else {
+                pending++;
+            }
+            RepositoryQueue repository = repositories.get(lane.repository);
+            if (repository == null) {
+                repository = new RepositoryQueue(lane.repository);
+                repositories.put(lane.repository, repository);
+                turns.addLast(repository);
+            }
+            repository.add(lane.user, new Task(lane, runnable));
+            next = nextIfIdle();
+        } finally {
+            lock.unlock();
+        }
+        dispatch(next);
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private Task nextIfIdle() {
+        if (running >= maxRunning || turns.isEmpty()) {
+            return null;
+        }
+        RepositoryQueue repository = turns.pollFirst();
+        Task task = repository.poll();
+        if (repository.isEmpty()) {
+            repositories.remove(repository.key);
+        } else {
+            turns.addLast(repository);
+        }
+        pending--;
+        running++;
+        roomInQueue.signalAll();
+        return task;
+    }
+
+    private void dispatch(Task task) {
+        if (task != null) {
+            workers.execute(() -> run(task));
+        }
+    }
+
+    private void run(Task task) {
+        try {
+            task.lane.metrics.addPhase(PushMetrics.Phase.QUEUE, System.nanoTime() - task.queuedNanos);
+            task.runnable.run();
+        } finally {
+            // the task may have been cancelled while it ran, which should not leak into the next one
+            Thread.interrupted();
+            Task next;
+            lock.lock();
+            try {
+                running--;
+                next = nextIfIdle();
+            } finally {
+                lock.unlock();
+            }
+            dispatch(next);
+        }
+    }
+
+    private void close(Lane lane) {
+        lock.lock();
+        try {
+            if (lane.closed) {
+                return;
+            }
+            lane.closed = true;
+            pending -= lane.reserved;
+            lane.reserved = 0;
+            RepositoryQueue repository = repositories.get(lane.repository);
+            if (repository != null) {
+                pending -= repository.remove(lane);
+                if (repository.isEmpty()) {
+                    repositories.remove(repository.key);
+                    turns.remove(repository);
+                }
+            }
+            roomInQueue.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String currentUser() {
+        ApplicationUser user = authenticationContext == null ? null : authenticationContext.getCurrentUser();
+        return user == null ? ANONYMOUS : user.getName();
+    }
+
+    /**
+     * Where a single push queues its files. Closing the lane drops whatever it still has queued, such as the files
+     * which were cancelled because an earlier one failed, and frees the rest of its room in the queue.
+     */
+    public class Lane implements Executor, AutoCloseable {
+
+        private final String repository;
+        private final String user;
+        private final PushMetrics metrics;
+        private int reserved;
+        private boolean closed;
+
+        private Lane(String repository, String user, int reserved, PushMetrics metrics) {
+            this.repository = repository;
+            this.user = user;
+            this.reserved = reserved;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            enqueue(this, runnable);
+        }
+
+        @Override
+        public void close() {
+            ValidationScheduler.this.close(this);
+        }
+    }
+
+    private static class Task {
+
+        private final Lane lane;
+        private final Runnable runnable;
+        private final long queuedNanos = System.nanoTime();
+
+        Task(Lane lane, Runnable runnable) {
+            this.lane = lane;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * The files queued for one repository, held per user and taken from each user in turn
+     */
+    private static class RepositoryQueue {
+
+        private final String key;
+        private final Deque<Deque<Task>> turns = new ArrayDeque<>();
+        private final Map<String, Deque<Task>> users = new HashMap<>();
+
+        RepositoryQueue(String key) {
+            this.key = key;
+        }
+
+        void add(String user, Task task) {
+            Deque<Task> tasks = users.get(user);
+            if (tasks == null) {
+                tasks = new ArrayDeque<>();
+                users.put(user, tasks);
+                turns.addLast(tasks);
+            }
+            tasks.addLast(task);
+        }
+
+        Task poll() {
+            Deque<Task> tasks = turns.pollFirst();
+            Task task = tasks.pollFirst();
+            if (tasks.isEmpty()) {
+                users.remove(task.lane.user);
+            } else {
+                turns.addLast(tasks);
+            }
+            return task;
+        }
+
+        /**
+         * @return How many tasks of the lane were removed
+         */
+        int remove(Lane lane) {
+            Deque<Task> tasks = users.get(lane.user);
+            if (tasks == null) {
+                return 0;
+            }
+            int removed = 0;
+            for (Iterator<Task> iterator = tasks.iterator(); iterator.hasNext(); ) {
+                if (iterator.next().lane == lane) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+            if (tasks.isEmpty()) {
+                users.remove(lane.user);
+                turns.remove(tasks);
+            }
+            return removed;
+        }
+
+        boolean isEmpty() {
+            return turns.isEmpty();
+        }
+    }
+}
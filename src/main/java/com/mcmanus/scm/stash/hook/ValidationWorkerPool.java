@@ -0,0 +1,103 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+
+import javax.inject.Named;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Node wide, bounded pool of threads which fetch and parse yaml files on behalf of the hook.
+ *
+ * Parsing runs on the validation executor while the content is streamed in on the fetch executor. Both are the same
+ * size and each validation task waits on at most one fetch, so the two can never starve each other. The
+ * {@code git cat-file --batch} reader of a push runs for as long as its files are read, and the files it cannot deliver
+ * fall back to the fetch executor, so it runs on a batch executor of its own rather than queueing behind the fetches it
+ * may be waiting for. The batch executor never queues a reader either: it runs as many readers at once as there are
+ * threads, and a push which finds them all busy streams its files through the fetch executor instead.
+ *
+ * The threads are daemons and time out when they are idle, and the executors are shut down when the plugin stops, so
+ * nothing is left running once the plugin is disabled.
+ */
+@ExportAsService({LifecycleAware.class})
+@Named("yamlValidationWorkerPool")
+public class ValidationWorkerPool implements LifecycleAware {
+
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final int threads;
+    private final ExecutorService executor;
+    private final ExecutorService fetchExecutor;
+    private final ExecutorService batchExecutor;
+
+    public ValidationWorkerPool() {
+        this(THREADS);
+    }
+
+    ValidationWorkerPool(int threads) {
+        this.threads = threads;
+        this.executor = newPool(threads, "yaml-validator-");
+        this.fetchExecutor = newPool(threads, "yaml-validator-fetch-");
+        // a reader is handed straight to a thread, or rejected when every thread has one
+        this.batchExecutor = new ThreadPoolExecutor(0, threads, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new WorkerThreadFactory("yaml-validator-batch-"));
+    }
+
+    @Override
+    public void onStart() {
+        // the threads are started as files are queued
+    }
+
+    @Override
+    public void onStop() {
+        executor.shutdownNow();
+        fetchExecutor.shutdownNow();
+        batchExecutor.shutdownNow();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public ExecutorService getFetchExecutor() {
+        return fetchExecutor;
+    }
+
+    public ExecutorService getBatchExecutor() {
+        return batchExecutor;
+    }
+
+    private static ExecutorService newPool(int threads, String prefix) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new WorkerThreadFactory(prefix));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
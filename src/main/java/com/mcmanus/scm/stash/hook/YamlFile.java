@@ -0,0 +1,37 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+
+/**
+ * A yaml file which has to be validated, at the version introduced by a particular commit.
+ */
+public class YamlFile {
+
+    private final String path;
+    private final Commit commit;
+    private final String contentId;
+
+    public YamlFile(String path, Commit commit, String contentId) {
+        this.path = path;
+        this.commit = commit;
+        this.contentId = contentId;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return The commit to read the file from
+     */
+    public Commit getCommit() {
+        return commit;
+    }
+
+    /**
+     * @return The git blob id of the file content, or null if it is not known
+     */
+    public String getContentId() {
+        return contentId;
+    }
+}
@@ -0,0 +1,204 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.composer.Composer;
+import org.yaml.snakeyaml.composer.ComposerException;
+import org.yaml.snakeyaml.error.Mark;
+import org.yaml.snakeyaml.error.MarkedYAMLException;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.NodeEvent;
+import org.yaml.snakeyaml.nodes.Node;
+import org.yaml.snakeyaml.parser.Parser;
+import org.yaml.snakeyaml.parser.ParserImpl;
+import org.yaml.snakeyaml.reader.StreamReader;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Validates the content of a single yaml file, which may hold several documents.
+ *
+ * The syntax engine only pulls parser events and never builds the documents, which is all that is needed to tell
+ * whether a stream is well formed. The construct engine builds every document with {@link YamlValidatorConstructor},
+ * which also rejects values that cannot be constructed, such as a malformed merge key. Both engines read through a
+ * {@link ResourceGovernor}, which stops a file once it goes over one of the configured resource limits.
+ *
+ * A file is parsed once and stops at its first error, which is reported with the document it is in and its line and
+ * column, the same way by both engines.
+ *
+ * When a {@link JsonSchema} applies to the file, both engines compose each document into nodes, which the schema
+ * checks before the construct engine builds the document from the same nodes.
+ *
+ * The parser limits come precomputed with the settings, and the parts of the pipeline which can be reset are taken
+ * from the validator's {@link ParserPool}, so a small file costs little more than its own documents.
+ */
+public class YamlFileValidator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(YamlFileValidator.class);
+
+    private static final BooleanSupplier NEVER_CANCELLED = () -> false;
+
+    private final YamlValidatorSettings settings;
+    private final ParserPool parserPool;
+
+    public YamlFileValidator() {
+        this(YamlValidatorSettings.defaults());
+    }
+
+    public YamlFileValidator(YamlValidatorSettings settings) {
+        this(settings, new ParserPool());
+    }
+
+    /**
+     * @param parserPool The parts to parse with, which a component can share between the validators it creates
+     */
+    YamlFileValidator(YamlValidatorSettings settings, ParserPool parserPool) {
+        this.settings = settings;
+        this.parserPool = parserPool;
+    }
+
+    public ValidationOutcome validate(String fileString) {
+        return validate(new StringReader(fileString), NEVER_CANCELLED);
+    }
+
+    /**
+     * @param reader The content of the file, which is consumed while it is parsed
+     * @param cancelled Checked between documents, so that validation can be abandoned once its verdict is no
+     *                  longer needed
+     * @return The outcome of validating the content
+     * @throws CancellationException if validation was abandoned
+     */
+    public ValidationOutcome validate(Reader reader, BooleanSupplier cancelled) {
+        return validate(reader, cancelled, null);
+    }
+
+    /**
+     * @param schema The schema every document of the file has to match, or null to only check the syntax
+     * @see #validate(Reader, BooleanSupplier)
+     */
+    public ValidationOutcome validate(Reader reader, BooleanSupplier cancelled, JsonSchema schema) {
+        ResourceGovernor governor = new ResourceGovernor(settings);
+        LoaderOptions loaderOptions = governor.loaderOptions();
+        Progress progress = new Progress();
+        ParserPool.Parts parts = parserPool.acquire();
+        boolean completed = false;
+        try {
+            LOG.debug("Attempting to validate yaml stream");
+            Parser parser = governor.govern(new ParserImpl(new StreamReader(governor.govern(reader)), loaderOptions));
+            if (schema != null || settings.getEngine() == YamlValidatorSettings.Engine.CONSTRUCT) {
+                compose(parser, loaderOptions, governor, parts, cancelled, progress, schema);
+            } else {
+                parse(parser, parts.getAnchors(), cancelled, progress);
+            }
+            completed = true;
+        } catch (CancellationException e) {
+            throw e;
+        } catch (ResourceLimitExceededException e) {
+            return ValidationOutcome.limitExceeded(e.getLimit(), e.getMessage());
+        } catch (MarkedYAMLException e) {
+            checkInterrupted(cancelled);
+            Mark mark = e.getProblemMark() != null ? e.getProblemMark() : e.getContextMark();
+            if (mark == null) {
+                return ValidationOutcome.invalid(e.getMessage());
+            }
+            return ValidationOutcome.invalid(e.getMessage(), e.getProblem() != null ? e.getProblem() : e.getContext(),
+                    progress.document, mark.getLine() + 1, mark.getColumn() + 1);
+        } catch (Exception e) {
+            checkInterrupted(cancelled);
+            return ValidationOutcome.invalid(e.getMessage());
+        } finally {
+            parserPool.release(parts, completed);
+        }
+        return ValidationOutcome.valid();
+    }
+
+    /**
+     * Composes every document and checks it against the schema, if there is one. The construct engine then builds
+     * the document the same way {@code Yaml.loadAll} does, but from the governed parser.
+     */
+    private void compose(Parser parser, LoaderOptions loaderOptions, ResourceGovernor governor, ParserPool.Parts parts,
+                         BooleanSupplier cancelled, Progress progress, JsonSchema schema) {
+        Composer composer = new Composer(parser, parts.getResolver(), loaderOptions);
+        YamlValidatorConstructor constructor = null;
+        if (settings.getEngine() == YamlValidatorSettings.Engine.CONSTRUCT) {
+            constructor = parts.getConstructor(composer);
+        }
+        while (composer.checkNode()) {
+            checkCancelled(cancelled);
+            LOG.debug("Validating document #{}", progress.document);
+            Node document = composer.getNode();
+            if (schema != null) {
+                schema.validate(document, governor);
+            }
+            if (constructor != null) {
+                constructor.construct(document);
+            }
+            progress.document++;
+        }
+    }
+
+    /**
+     * Pulls every event from the parser. The only check the composer would add on top of the parser is that each
+     * alias refers to an anchor which was defined earlier in the same document, so that is done here as well.
+     */
+    private void parse(Parser parser, Set<String> anchors, BooleanSupplier cancelled, Progress progress) {
+        int documentCount = 0;
+        while (parser.peekEvent() != null) {
+            Event event = parser.getEvent();
+            if (event.is(Event.ID.DocumentStart)) {
+                checkCancelled(cancelled);
+                documentCount++;
+                progress.document = documentCount;
+                LOG.debug("Validating document #{}", documentCount);
+                anchors.clear();
+            } else if (event.is(Event.ID.DocumentEnd)) {
+                // an error before the next document start is counted against that document, as the composer does
+                progress.document = documentCount + 1;
+            } else if (event.is(Event.ID.Alias)) {
+                String anchor = ((AliasEvent) event).getAnchor();
+                if (!anchors.contains(anchor)) {
+                    throw new UndefinedAliasException(anchor, event.getStartMark());
+                }
+            } else if (event instanceof NodeEvent && ((NodeEvent) event).getAnchor() != null) {
+                anchors.add(((NodeEvent) event).getAnchor());
+            }
+        }
+    }
+
+    private static void checkCancelled(BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("Validation was cancelled");
+        }
+    }
+
+    private static void checkInterrupted(BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean() || Thread.currentThread().isInterrupted()) {
+            // reading was interrupted, so the error says nothing about the content
+            throw new CancellationException("Validation was cancelled");
+        }
+    }
+
+    /**
+     * The document the parser is in, so that an error can be reported against it
+     */
+    private static class Progress {
+
+        private int document = 1;
+    }
+
+    /**
+     * The error the composer raises for an alias without an anchor, so both engines report it the same way
+     */
+    private static class UndefinedAliasException extends ComposerException {
+
+        UndefinedAliasException(String anchor, Mark mark) {
+            super(null, null, "found undefined alias " + anchor, mark);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which changed paths are yaml files to validate, from the extension setting and the include and exclude
+ * globs.
+ *
+ * Everything is compiled once: the extension into a single pattern, the globs into one alternation each, and
+ * excluded directories without wildcards, such as {@code vendor/**}, into a trie of path segments so that a whole
+ * tree is skipped without running a regex. Matchers are cached by the settings they were compiled from, so every
+ * push with the same settings shares one.
+ *
+ * Globs follow the usual rules: {@code *} and {@code ?} stay within a directory, {@code **} spans directories, and a
+ * glob without a {@code /} matches the file name in any directory.
+ */
+public class YamlPathMatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(YamlPathMatcher.class);
+
+    private static final int MAX_CACHED_MATCHERS = 64;
+
+    private static final Map<List<Object>, YamlPathMatcher> CACHE =
+            new LinkedHashMap<List<Object>, YamlPathMatcher>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, YamlPathMatcher> eldest) {
+                    return size() > MAX_CACHED_MATCHERS;
+                }
+            };
+
+    private final Pattern extension;
+    private final Pattern includes;
+    private final Pattern excludes;
+    private final DirectoryTrie excludedDirectories;
+
+    private YamlPathMatcher(String extension, List<String> includes, List<String> excludes) {
+        this.extension = extensionPattern(extension);
+        this.includes = globs(includes);
+        this.excludedDirectories = new DirectoryTrie();
+        List<String> excludeGlobs = new ArrayList<>();
+        for (String exclude : excludes) {
+            String directory = literalDirectory(exclude);
+            if (directory == null) {
+                excludeGlobs.add(exclude);
+            } else {
+                excludedDirectories.add(directory);
+            }
+        }
+        this.excludes = globs(excludeGlobs);
+    }
+
+    /**
+     * @param settings The hook settings
+     * @return The matcher for the path settings, compiled on first use
+     */
+    public static YamlPathMatcher of(YamlValidatorSettings settings) {
+        return of(settings.getExtension(), settings.getIncludes(), settings.getExcludes());
+    }
+
+    public static YamlPathMatcher of(String extension, List<String> includes, List<String> excludes) {
+        List<Object> key = Arrays.asList(extension, includes, excludes);
+        synchronized (CACHE) {
+            YamlPathMatcher matcher = CACHE.get(key);
+            if (matcher == null) {
+                matcher = new YamlPathMatcher(extension, includes, excludes);
+                CACHE.put(key, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    /**
+     * @param extension The extension setting, which may be a regular expression
+     * @return A matcher which only looks at the extension
+     */
+    public static YamlPathMatcher forExtension(String extension) {
+        return of(extension, Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * @param path A path relative to the root of the repository
+     * @return Whether the path is a yaml file which should be validated
+     */
+    public boolean matches(String path) {
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        int name = path.lastIndexOf('/') + 1;
+        int dot = path.lastIndexOf('.');
+        if (dot < name || !extension.matcher(path.substring(dot + 1)).matches()) {
+            return false;
+        }
+        if (includes != null && !includes.matcher(path).matches()) {
+            return false;
+        }
+        return !excludedDirectories.containsParentOf(path) && (excludes == null || !excludes.matcher(path).matches());
+    }
+
+    private static Pattern extensionPattern(String extension) {
+        try {
+            return Pattern.compile(extension);
+        } catch (PatternSyntaxException e) {
+            LOG.warn("The yaml file extension is not a valid regular expression, matching it literally: " + e.getDescription());
+            return Pattern.compile(Pattern.quote(extension));
+        }
+    }
+
+    /**
+     * @return The directory a glob such as {@code vendor/**} or {@code vendor/} excludes, or null if it has wildcards
+     */
+    private static String literalDirectory(String glob) {
+        String directory = glob.startsWith("/") ? glob.substring(1) : glob;
+        if (directory.endsWith("/**")) {
+            directory = directory.substring(0, directory.length() - 3);
+        } else if (directory.endsWith("/")) {
+            directory = directory.substring(0, directory.length() - 1);
+        } else {
+            return null;
+        }
+        if (directory.isEmpty() || directory.contains("*") || directory.contains("?")) {
+            return null;
+        }
+        return directory;
+    }
+
+    private static Pattern globs(List<String> globs) {
+        if (globs.isEmpty()) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String glob : globs) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?:").append(globToRegex(glob)).append(')');
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        String value = glob;
+        if (value.startsWith("/")) {
+            value = value.substring(1);
+        } else if (!value.contains("/")) {
+            // a bare file name glob matches in any directory
+            regex.append("(?:.*/)?");
+        }
+        if (value.endsWith("/")) {
+            value = value + "**";
+        }
+
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            if (c == '*' && value.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 3;
+            } else if (c == '*' && value.startsWith("**", i)) {
+                regex.append(".*");
+                i += 2;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+                i++;
+            } else if (c == '?') {
+                regex.append("[^/]");
+                i++;
+            } else {
+                int end = i;
+                while (end < value.length() && value.charAt(end) != '*' && value.charAt(end) != '?') {
+                    end++;
+                }
+                regex.append(Pattern.quote(value.substring(i, end)));
+                i = end;
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Directories held as a tree of path segments, so checking a path costs one lookup per directory in it
+     */
+    private static class DirectoryTrie {
+
+        private final Map<String, DirectoryTrie> children = new HashMap<>();
+        private boolean terminal;
+
+        void add(String directory) {
+            DirectoryTrie node = this;
+            for (String segment : directory.split("/")) {
+                if (!segment.isEmpty()) {
+                    node = node.children.computeIfAbsent(segment, s -> new DirectoryTrie());
+                }
+            }
+            node.terminal = true;
+        }
+
+        boolean containsParentOf(String path) {
+            DirectoryTrie node = this;
+            int start = 0;
+            int slash;
+            while (!node.children.isEmpty() && (slash = path.indexOf('/', start)) != -1) {
+                node = node.children.get(path.substring(start, slash));
+                if (node == null) {
+                    return false;
+                }
+                if (node.terminal) {
+                    return true;
+                }
+                start = slash + 1;
+            }
+            return false;
+        }
+    }
+}
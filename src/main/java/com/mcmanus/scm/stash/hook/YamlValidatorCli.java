@@ -0,0 +1,354 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.yaml.snakeyaml.reader.UnicodeReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates yaml files outside of Bitbucket, for CI jobs and pre-commit hooks, with the same engine, limits, path
+ * rules and schemas as the hook, so that a file is accepted here exactly when the hook would accept it.
+ *
+ * It either walks a working tree or reads the paths a {@code git diff --name-only} listed, and validates the files
+ * which match on a fork-join pool. Files are read through a {@link FileChannel} and decoded the same way the hook
+ * decodes blobs. Nothing here refers to Bitbucket, so only snakeyaml, gson and slf4j-api have to be on the class
+ * path:
+ * <pre>
+ *     java -jar yaml-validator-hook-cli.jar [options] [directory]
+ *     git diff --name-only origin/master... | java -jar yaml-validator-hook-cli.jar --paths - [directory]
+ * </pre>
+ */
+public class YamlValidatorCli {
+
+    static final int VALID = 0;
+    static final int INVALID = 1;
+    static final int USAGE = 2;
+
+    private static final String USAGE_TEXT = "Usage: java -jar yaml-validator-hook-cli.jar [options] [directory]\n"
+            + "Validates the yaml files under the directory, which defaults to the current one.\n"
+            + "  --paths <file|->            Only validate the paths listed in the file, one per line or separated\n"
+            + "                              by NULs, such as the output of git diff --name-only\n"
+            + "  --extension <regex>         The yaml file extension, yaml by default\n"
+            + "  --includes <globs>          Comma separated globs of the paths to validate\n"
+            + "  --excludes <globs>          Comma separated globs of the paths to skip\n"
+            + "  --engine <syntax|construct> How much of the yaml is processed, syntax by default\n"
+            + "  --schemas <json|@file>      JSON object of path globs to schema paths or inline schemas\n"
+            + "  --max-file-size <kb>        Limits which match the hook settings, 0 to turn one off\n"
+            + "  --max-documents <count>\n"
+            + "  --max-depth <levels>\n"
+            + "  --max-aliases <count>\n"
+            + "  --threads <count>           The number of files to parse at once, one per CPU by default\n";
+
+    private final Path root;
+    private final YamlPathMatcher pathMatcher;
+    private final YamlFileValidator validator;
+    private final SchemaMappings schemaMappings;
+    private final ConcurrentMap<String, JsonSchema> storedSchemas = new ConcurrentHashMap<>();
+
+    /**
+     * @param root The root of the working tree, which paths are relative to
+     * @param settings The same settings the hook is configured with
+     * @throws IllegalArgumentException if the schemas setting cannot be compiled
+     */
+    YamlValidatorCli(Path root, YamlValidatorSettings settings) {
+        this.root = root;
+        this.pathMatcher = settings.getPathMatcher();
+        this.validator = new YamlFileValidator(settings);
+        this.schemaMappings = settings.getSchemas().isEmpty() ? null : SchemaMappings.parse(settings.getSchemas());
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    /**
+     * @return {@link #VALID} if every yaml file is valid, {@link #INVALID} if any is not, or {@link #USAGE} if the
+     *         arguments are wrong
+     */
+    static int run(String[] args, InputStream in, PrintStream out, PrintStream err) {
+        YamlValidatorSettings.Builder settings = new YamlValidatorSettings.Builder();
+        String paths = null;
+        String directory = ".";
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    directory = arg;
+                    continue;
+                }
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(arg + " needs a value");
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--paths":
+                        paths = value;
+                        break;
+                    case "--extension":
+                        settings.extension(value);
+                        break;
+                    case "--includes":
+                        settings.includes(YamlValidatorSettings.list(value));
+                        break;
+                    case "--excludes":
+                        settings.excludes(YamlValidatorSettings.list(value));
+                        break;
+                    case "--engine":
+                        settings.engine(engine(value));
+                        break;
+                    case "--schemas":
+                        settings.schemas(value.startsWith("@") ? read(Paths.get(value.substring(1))) : value);
+                        break;
+                    case "--max-file-size":
+                        settings.maxFileSizeKb(number(arg, value));
+                        break;
+                    case "--max-documents":
+                        settings.maxDocuments(number(arg, value));
+                        break;
+                    case "--max-depth":
+                        settings.maxDepth(number(arg, value));
+                        break;
+                    case "--max-aliases":
+                        settings.maxAliases(number(arg, value));
+                        break;
+                    case "--threads":
+                        threads = Math.max(1, number(arg, value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            err.println(e.getMessage());
+            err.print(USAGE_TEXT);
+            return USAGE;
+        }
+
+        long started = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            YamlValidatorCli cli = new YamlValidatorCli(Paths.get(directory), settings.build());
+            List<String> files = paths == null ? cli.walk() :
+                    cli.filter(splitPaths("-".equals(paths) ? readAll(in) : read(Paths.get(paths))));
+            Map<String, ValidationOutcome> invalid = cli.validate(files, pool);
+            for (Map.Entry<String, ValidationOutcome> file : invalid.entrySet()) {
+                out.println(file.getValue().getSummary(file.getKey()));
+            }
+            err.println("Validated " + files.size() + " yaml files in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms, "
+                    + invalid.size() + " invalid");
+            return invalid.isEmpty() ? VALID : INVALID;
+        } catch (IllegalArgumentException | IOException e) {
+            err.println(e.getMessage());
+            return USAGE;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return The path of every regular file in the working tree which matches, relative to its root and in order
+     */
+    List<String> walk() throws IOException {
+        List<String> paths = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return dir.getFileName() != null && ".git".equals(dir.getFileName().toString()) ?
+                        FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    String path = relativePath(file);
+                    if (pathMatcher.matches(path)) {
+                        paths.add(path);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * @param listed Paths relative to the root, such as those listed by {@code git diff --name-only}
+     * @return The listed paths which match and are still regular files, as the hook skips deleted files
+     */
+    List<String> filter(List<String> listed) {
+        List<String> paths = new ArrayList<>();
+        for (String path : listed) {
+            if (pathMatcher.matches(path) && Files.isRegularFile(root.resolve(path))) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * @param paths The files to validate, relative to the root
+     * @param pool The pool to validate them on
+     * @return The outcome of each invalid file, in the order of the paths
+     */
+    Map<String, ValidationOutcome> validate(List<String> paths, ForkJoinPool pool) {
+        ValidationOutcome[] outcomes = new ValidationOutcome[paths.size()];
+        pool.invoke(new Validate(paths, outcomes, 0, paths.size()));
+
+        Map<String, ValidationOutcome> invalid = new LinkedHashMap<>();
+        for (int i = 0; i < outcomes.length; i++) {
+            if (!outcomes[i].isValid()) {
+                invalid.put(paths.get(i), outcomes[i]);
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * @param path The file to validate, relative to the root
+     * @return The same outcome the hook reaches for the file's content
+     */
+    ValidationOutcome check(String path) {
+        try (FileChannel channel = FileChannel.open(root.resolve(path), StandardOpenOption.READ);
+             Reader reader = new UnicodeReader(Channels.newInputStream(channel))) {
+            return validator.validate(reader, () -> false, schemaFor(path));
+        } catch (IOException e) {
+            return ValidationOutcome.invalid("The file could not be read: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Picks the schema the same way the hook does, reading stored schemas from the working tree
+     */
+    private JsonSchema schemaFor(String path) {
+        SchemaMappings.Mapping mapping = schemaMappings == null ? null : schemaMappings.find(path);
+        if (mapping == null) {
+            return null;
+        }
+        if (mapping.getInline() != null) {
+            return mapping.getInline();
+        }
+        // a schema which is missing from the tree only leaves the syntax to check, as it does in the hook
+        return storedSchemas.computeIfAbsent(mapping.getPath(), this::loadSchema);
+    }
+
+    private JsonSchema loadSchema(String schemaPath) {
+        Path file = root.resolve(schemaPath);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        String content;
+        try {
+            content = Files.size(file) > SchemaMappings.MAX_SCHEMA_SIZE ? null : read(file);
+        } catch (IOException e) {
+            content = null;
+        }
+        return SchemaMappings.compileStored(schemaPath, content);
+    }
+
+    private String relativePath(Path file) {
+        StringBuilder path = new StringBuilder();
+        for (Path name : root.relativize(file)) {
+            path.append(path.length() == 0 ? "" : "/").append(name);
+        }
+        return path.toString();
+    }
+
+    private static List<String> splitPaths(String listing) {
+        List<String> paths = new ArrayList<>();
+        for (String path : listing.split(listing.indexOf('\0') >= 0 ? "\0" : "\r?\n")) {
+            if (!path.isEmpty()) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    private static YamlValidatorSettings.Engine engine(String key) {
+        for (YamlValidatorSettings.Engine engine : YamlValidatorSettings.Engine.values()) {
+            if (engine.getKey().equals(key)) {
+                return engine;
+            }
+        }
+        throw new IllegalArgumentException("Unknown engine " + key);
+    }
+
+    private static int number(String option, String value) {
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a whole number");
+        }
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            content.write(buffer, 0, read);
+        }
+        return new String(content.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Splits the paths in halves until each task has a single file, so idle threads steal whatever is left of the
+     * larger directories
+     */
+    private class Validate extends RecursiveAction {
+
+        private final List<String> paths;
+        private final ValidationOutcome[] outcomes;
+        private final int from;
+        private final int to;
+
+        Validate(List<String> paths, ValidationOutcome[] outcomes, int from, int to) {
+            this.paths = paths;
+            this.outcomes = outcomes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) {
+                    outcomes[from] = check(paths.get(from));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Validate(paths, outcomes, from, middle), new Validate(paths, outcomes, middle, to));
+        }
+    }
+}
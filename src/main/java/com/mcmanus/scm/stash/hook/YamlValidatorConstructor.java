@@ -34,6 +34,14 @@ public class YamlValidatorConstructor extends Constructor {
         this.yamlConstructors.put(null, new IgnoringConstruct());
     }
 
+    /**
+     * @param document The root node of a document which has already been composed
+     * @return The constructed document
+     */
+    public Object construct(Node document) {
+        return constructDocument(document);
+    }
+
     private class IgnoringConstruct extends AbstractConstruct {
 
         @Override
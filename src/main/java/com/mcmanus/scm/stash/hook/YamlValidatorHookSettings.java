@@ -0,0 +1,188 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.bitbucket.setting.SettingsValidationErrors;
+
+import com.mcmanus.scm.stash.hook.YamlValidatorSettings.Engine;
+import com.mcmanus.scm.stash.hook.YamlValidatorSettings.TimeoutAction;
+import com.mcmanus.scm.stash.hook.YamlValidatorSettings.ValidationMode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.AUDIT_COMMITS;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.AUDIT_FILES;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.BUSY_ACTION;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.DEFAULT_EXTENSION;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.DEFAULT_FILE_TIMEOUT_SECONDS;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.DEFAULT_MAX_ALIASES;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.DEFAULT_MAX_DEPTH;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.DEFAULT_MAX_DOCUMENTS;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.DEFAULT_MAX_FILE_SIZE_KB;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.DEFAULT_QUEUE_WAIT_MILLIS;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.DEFAULT_TIMEOUT_SECONDS;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.ENGINE;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.EXCLUDES;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.EXTENSION;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.FILE_TIMEOUT;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.INCLUDES;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.MAX_ALIASES;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.MAX_DEPTH;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.MAX_DOCUMENTS;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.MAX_FILE_SIZE;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.QUEUE_WAIT;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.REPORT_ALL_ERRORS;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.SCHEMAS;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.TIMEOUT;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.TIMEOUT_ACTION;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.VALIDATION_MODE;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.list;
+import static com.mcmanus.scm.stash.hook.YamlValidatorSettings.nonBlank;
+
+/**
+ * Reads and checks the {@link YamlValidatorSettings} saved from the hook's config form. This is the only part of the
+ * settings which refers to Bitbucket, so the command line validator never loads it.
+ */
+final class YamlValidatorHookSettings {
+
+    private static final int MAX_CACHED_SNAPSHOTS = 64;
+
+    private static final Map<Map<String, Object>, YamlValidatorSettings> SNAPSHOTS =
+            new LinkedHashMap<Map<String, Object>, YamlValidatorSettings>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Map<String, Object>, YamlValidatorSettings> eldest) {
+                    return size() > MAX_CACHED_SNAPSHOTS;
+                }
+            };
+
+    private YamlValidatorHookSettings() {
+    }
+
+    /**
+     * Reads the hook settings, falling back to the defaults for anything which has not been configured. The settings
+     * are only read again once they have been saved with different values.
+     *
+     * @param settings The settings saved from the hook's config form
+     * @return The settings snapshot
+     */
+    public static YamlValidatorSettings from(Settings settings) {
+        Map<String, Object> revision = settings.asMap();
+        if (revision == null) {
+            return read(settings);
+        }
+        YamlValidatorSettings snapshot;
+        synchronized (SNAPSHOTS) {
+            snapshot = SNAPSHOTS.get(revision);
+        }
+        if (snapshot == null) {
+            snapshot = read(settings);
+            synchronized (SNAPSHOTS) {
+                SNAPSHOTS.put(revision, snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    private static YamlValidatorSettings read(Settings settings) {
+        return new YamlValidatorSettings.Builder()
+                .extension(nonBlank(settings.getString(EXTENSION), DEFAULT_EXTENSION))
+                .includes(list(settings.getString(INCLUDES)))
+                .excludes(list(settings.getString(EXCLUDES)))
+                .validationMode(ValidationMode.fromKey(settings.getString(VALIDATION_MODE)))
+                .engine(Engine.fromKey(settings.getString(ENGINE)))
+                .reportAllErrors(flag(settings, REPORT_ALL_ERRORS))
+                .timeoutSeconds(number(settings, TIMEOUT, DEFAULT_TIMEOUT_SECONDS))
+                .timeoutAction(TimeoutAction.fromKey(settings.getString(TIMEOUT_ACTION)))
+                .maxFileSizeKb(number(settings, MAX_FILE_SIZE, DEFAULT_MAX_FILE_SIZE_KB))
+                .maxDocuments(number(settings, MAX_DOCUMENTS, DEFAULT_MAX_DOCUMENTS))
+                .maxDepth(number(settings, MAX_DEPTH, DEFAULT_MAX_DEPTH))
+                .maxAliases(number(settings, MAX_ALIASES, DEFAULT_MAX_ALIASES))
+                .fileTimeoutSeconds(number(settings, FILE_TIMEOUT, DEFAULT_FILE_TIMEOUT_SECONDS))
+                .queueWaitMillis(number(settings, QUEUE_WAIT, DEFAULT_QUEUE_WAIT_MILLIS))
+                .busyAction(TimeoutAction.fromKey(settings.getString(BUSY_ACTION)))
+                .schemas(nonBlank(settings.getString(SCHEMAS), ""))
+                .auditCommits(number(settings, AUDIT_COMMITS, 0))
+                .auditFiles(number(settings, AUDIT_FILES, 0))
+                .build();
+    }
+
+    /**
+     * Checks the values entered in the hook's config form
+     *
+     * @param settings The settings to be saved
+     * @param errors Collects an error for each invalid field
+     */
+    public static void validate(Settings settings, SettingsValidationErrors errors) {
+        String extension = settings.getString(EXTENSION);
+        if (extension != null && !extension.trim().isEmpty()) {
+            try {
+                Pattern.compile(extension.trim());
+            } catch (PatternSyntaxException e) {
+                errors.addFieldError(EXTENSION,
+                        "The extension is not a valid regular expression: " + e.getDescription());
+            }
+        }
+        validateNumber(settings, errors, TIMEOUT);
+        validateNumber(settings, errors, MAX_FILE_SIZE);
+        validateNumber(settings, errors, MAX_DOCUMENTS);
+        validateNumber(settings, errors, MAX_DEPTH);
+        validateNumber(settings, errors, MAX_ALIASES);
+        validateNumber(settings, errors, FILE_TIMEOUT);
+        validateNumber(settings, errors, QUEUE_WAIT);
+        validateNumber(settings, errors, AUDIT_COMMITS);
+        validateNumber(settings, errors, AUDIT_FILES);
+        String schemas = settings.getString(SCHEMAS);
+        if (schemas != null && !schemas.trim().isEmpty()) {
+            try {
+                SchemaRegistry.check(schemas.trim());
+            } catch (IllegalArgumentException e) {
+                errors.addFieldError(SCHEMAS, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Checkboxes on the config form may be saved as booleans or as strings, depending on how the hook was enabled
+     */
+    private static boolean flag(Settings settings, String key) {
+        Object value = settings.asMap().get(key);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value != null && ("true".equalsIgnoreCase(value.toString()) || "on".equalsIgnoreCase(value.toString()));
+    }
+
+    /**
+     * Text fields on the config form are saved as strings, so numbers are parsed here rather than with getInt
+     */
+    private static int number(Settings settings, String key, int defaultValue) {
+        Object value = settings.asMap().get(key);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value == null || value.toString().trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.toString().trim()));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static void validateNumber(Settings settings, SettingsValidationErrors errors, String key) {
+        Object value = settings.asMap().get(key);
+        if (value == null || value instanceof Number || value.toString().trim().isEmpty()) {
+            return;
+        }
+        try {
+            if (Integer.parseInt(value.toString().trim()) < 0) {
+                errors.addFieldError(key, "Enter a number which is 0 or more");
+            }
+        } catch (NumberFormatException e) {
+            errors.addFieldError(key, "Enter a whole number");
+        }
+    }
+}
@@ -3,68 +3,92 @@ package com.mcmanus.scm.stash.hook;
 import com.atlassian.bitbucket.commit.Commit;
 import com.atlassian.bitbucket.commit.CommitRequest;
 import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.commit.CommonAncestorRequest;
 import com.atlassian.bitbucket.commit.MinimalCommit;
-import com.atlassian.bitbucket.content.Change;
-import com.atlassian.bitbucket.content.ChangeType;
-import com.atlassian.bitbucket.content.ChangesRequest;
-import com.atlassian.bitbucket.content.ContentService;
+import com.atlassian.bitbucket.hook.repository.PostRepositoryHook;
+import com.atlassian.bitbucket.hook.repository.PostRepositoryHookContext;
 import com.atlassian.bitbucket.hook.repository.PreRepositoryHook;
 import com.atlassian.bitbucket.hook.repository.PreRepositoryHookContext;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookRequest;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookResult;
 import com.atlassian.bitbucket.idx.CommitIndex;
-import com.atlassian.bitbucket.io.TypeAwareOutputSupplier;
+import com.atlassian.bitbucket.repository.Branch;
+import com.atlassian.bitbucket.repository.NoDefaultBranchException;
 import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefService;
 import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.util.MoreSuppliers;
-import com.atlassian.bitbucket.util.Page;
-import com.atlassian.bitbucket.util.PageUtils;
+import com.atlassian.bitbucket.scope.Scope;
+import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.bitbucket.setting.SettingsValidationErrors;
+import com.atlassian.bitbucket.setting.SettingsValidator;
 import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.yaml.snakeyaml.LoaderOptions;
-import org.yaml.snakeyaml.Yaml;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import javax.inject.Named;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 @ExportAsService({YamlValidatorPreReceiveRepositoryHook.class})
 @Named("yamlValidatorRepositoryHook")
-public class YamlValidatorPreReceiveRepositoryHook implements PreRepositoryHook
+public class YamlValidatorPreReceiveRepositoryHook implements PreRepositoryHook, PostRepositoryHook, SettingsValidator
 {
     private static final Logger LOG = LoggerFactory.getLogger(PreRepositoryHook.class);
 
-    private static final int PAGE_REQUEST_LIMIT = 9999;
-    private static final String EXTENSION_CONFIG_STRING = "extension";
     private static final String SUMMARY = "summary";
     private static final String DETAIL = "detail";
 
+    static final int MAX_SUMMARY_PATHS = 5;
+    static final int MAX_DETAIL_LENGTH = 8 * 1024;
+
     @ComponentImport
     private final CommitService commitService;
     @ComponentImport
-    private final ContentService contentService;
-    @ComponentImport
     private final CommitIndex commitIndex;
+    @ComponentImport
+    private final RefService refService;
+
+    private final ValidationScheduler validationScheduler;
+    private final ValidationMetrics validationMetrics;
+    private final SchemaRegistry schemaRegistry;
+    private final ValidationAuditor validationAuditor;
+
+    private final YamlFileValidator validator;
+    private final FileValidationStage validationStage;
+
+    private final CommitWalker commitWalker;
+    private final ChangeStreamer changeStreamer;
 
     @Inject
     public YamlValidatorPreReceiveRepositoryHook(final CommitService commitService,
-                                                 final ContentService contentService,
-                                                 final CommitIndex commitIndex
+                                                 final ContentFetcher contentFetcher,
+                                                 final ChangeStreamer changeStreamer,
+                                                 final CommitIndex commitIndex,
+                                                 final RefService refService,
+                                                 final ValidationResultCache validationResultCache,
+                                                 final ValidationScheduler validationScheduler,
+                                                 final ValidationMetrics validationMetrics,
+                                                 final SchemaRegistry schemaRegistry,
+                                                 final ValidationAuditor validationAuditor
                                                  ){
         this.commitService = commitService;
-        this.contentService = contentService;
         this.commitIndex = commitIndex;
+        this.refService = refService;
+        this.validationScheduler = validationScheduler;
+        this.validationMetrics = validationMetrics;
+        this.schemaRegistry = schemaRegistry;
+        this.validationAuditor = validationAuditor;
+        this.validator = new YamlFileValidator();
+        this.validationStage = new FileValidationStage(contentFetcher, validationResultCache);
+        this.commitWalker = new CommitWalker(commitService, commitIndex);
+        this.changeStreamer = changeStreamer;
     }
 
     /**
@@ -72,162 +96,363 @@ public class YamlValidatorPreReceiveRepositoryHook implements PreRepositoryHook
      *
      * @param repository The repository that the changes are part of
      * @param refChanges A set of changes
-     * @param yamlFileExtension What type of yaml file are we checking
+     * @param settings The hook settings, including what type of yaml file are we checking
      * @return Whether to allow the push to continue or not
      */
-    public Map<String, String> onReceive(Repository repository, Collection<RefChange> refChanges, String yamlFileExtension)
+    public Map<String, String> onReceive(Repository repository, Collection<RefChange> refChanges, YamlValidatorSettings settings)
     {
+        long deadlineNanos = settings.getTimeoutSeconds() > 0 ?
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.getTimeoutSeconds()) :
+                FileValidationStage.NO_DEADLINE;
         ConcurrentHashMap<String, String> result = new ConcurrentHashMap<>();
-        ConcurrentMap<String, Commit> pathChanges = new ConcurrentHashMap<>();
+        YamlPathMatcher pathMatcher = settings.getPathMatcher();
+        PushContext push = new PushContext();
+        PushMetrics metrics = new PushMetrics();
 
-        for (RefChange refChange : refChanges) {
-            LOG.debug("Processing refchange of type: " + refChange.getType());
+        try {
+            for (RefChange refChange : refChanges) {
+                LOG.debug("Processing refchange of type: " + refChange.getType());
 
-            Collection<Commit> commitsToCheck = Collections.synchronizedList(new ArrayList<>());
+                // each ref keeps the latest version of a path, while the push validates every ref's version
+                ConcurrentMap<String, YamlFile> pathChanges = new ConcurrentHashMap<>();
+                long started = System.nanoTime();
+                if (settings.getValidationMode() == YamlValidatorSettings.ValidationMode.NET_CHANGE &&
+                        addNetFileChanges(pathChanges, repository, refChange, pathMatcher, push)) {
+                    metrics.addPhase(PushMetrics.Phase.LIST, System.nanoTime() - started);
+                    push.addFiles(pathChanges.values());
+                    continue;
+                }
 
-            findCommitsToCheck(refChange.getToHash(), repository, commitsToCheck);
+                int commitLimit = settings.getAuditCommits();
+                Collection<Commit> commitsToCheck = commitWalker.findNewCommits(repository,
+                        refChange.getFromHash(), refChange.getToHash(), push, metrics, commitLimit);
+                long walked = System.nanoTime();
+                metrics.addPhase(PushMetrics.Phase.WALK, walked - started);
 
-            for (Commit commit : commitsToCheck) {
-                addFileChangesOnCommit(pathChanges, repository, commit, yamlFileExtension);
+                boolean cutShort = commitLimit > 0 && commitsToCheck.size() > commitLimit;
+                if (!cutShort) {
+                    addFileChangesOnCommits(pathChanges, repository, commitsToCheck, pathMatcher, push);
+                }
+                boolean tooLarge = cutShort
+                        || settings.getAuditFiles() > 0 && pathChanges.size() > settings.getAuditFiles();
+                if (tooLarge) {
+                    deferToAudit(pathChanges, repository, refChange, settings, pathMatcher, push);
+                    LOG.info("Only validating the content at " + refChange.getToHash() + " in "
+                            + repository.getName() + ", its commits are audited once the push is accepted");
+                }
+                metrics.addPhase(PushMetrics.Phase.LIST, System.nanoTime() - walked);
+                push.addFiles(pathChanges.values());
             }
-        }
 
-        if (!pathChanges.isEmpty()) {
-            areFilesValid(pathChanges, repository, result);
+            if (!push.getFiles().isEmpty()) {
+                areFilesValid(push.getFiles(), repository, result, settings, deadlineNanos, metrics);
+            }
+        } finally {
+            validationMetrics.record(repository, metrics);
         }
 
         return result;
     }
 
+    private void addFileChangesOnCommits(ConcurrentMap<String, YamlFile> pathChanges, Repository repository,
+                                         Collection<Commit> commits, YamlPathMatcher pathMatcher, PushContext push) {
+        for (Commit commit : commits) {
+            if (push.markListed(commit.getId())) {
+                addFileChangesOnCommit(pathChanges, repository, commit, pathMatcher);
+            }
+        }
+    }
+
     /**
-     * Recursive method to get the list of commits which are new on the branch
-     *
-     * @param hash The commit hash
-     * @param repository The repository that the commits have been completed on
-     * @param commitsToProcess A list of commits which are new
+     * Validates only the net change at the new tip of a ref change which is too large to check commit by commit
+     * while the client waits, and has its commits audited once the push has been accepted. A new ref with nothing to
+     * diff against, such as the first push of an import, has every yaml file in the tree of its new tip validated.
      */
-    private void findCommitsToCheck(String hash, Repository repository, Collection<Commit> commitsToProcess) {
-        final String zero = "0000000000000000000000000000000000000000";
-        if (zero.equals(hash)) {
-            // a new hash of 40 `0` means the branch is to be deleted
-            // just let it pass through in that case
-            LOG.debug("Found deletion commit");
-            return;
+    private void deferToAudit(ConcurrentMap<String, YamlFile> pathChanges, Repository repository,
+                              RefChange refChange, YamlValidatorSettings settings, YamlPathMatcher pathMatcher,
+                              PushContext push) {
+        ConcurrentMap<String, YamlFile> tipChanges = new ConcurrentHashMap<>();
+        if (!addNetFileChanges(tipChanges, repository, refChange, pathMatcher, push)) {
+            Commit tip = commitService.getCommit(new CommitRequest.Builder(repository, refChange.getToHash()).build());
+            LOG.debug("Nothing to diff " + tip.getId() + " against, listing its tree");
+            changeStreamer.streamTree(repository, tip, pathMatcher, (path, contentId) ->
+                    tipChanges.put(path, new YamlFile(path, tip, contentId)));
         }
+        pathChanges.clear();
+        pathChanges.putAll(tipChanges);
+        validationAuditor.expect(repository, refChange, settings);
+    }
 
-        if (!commitIndex.isIndexed(hash, repository)) {
-            final CommitRequest request = new CommitRequest.Builder(repository, hash).build();
-            final Commit commit = commitService.getCommit(request);
-            LOG.debug("Found commit to check " + hash);
-            commitsToProcess.add(commit);
-            if (commit != null) {
-                for (MinimalCommit parent : commit.getParents()) {
-                    findCommitsToCheck(parent.getId(), repository, commitsToProcess);
-                }
+    /**
+     * Validates every version of every yaml file which the commits of a ref change brought, in the background once
+     * its push has been accepted. The commits have been indexed by then, so they are listed from the old tip or, for
+     * a new ref, from its merge base with the default branch, rather than up to the first indexed commit.
+     *
+     * @param repository The repository whose ref was updated
+     * @param refChange The ref change to audit
+     * @param settings The hook settings the push was checked with
+     * @param audit Given the number of commits and files, and every invalid file
+     */
+    void audit(Repository repository, RefChange refChange, YamlValidatorSettings settings,
+               ValidationAuditor.Audit audit) {
+        String sinceId = refChange.getFromHash();
+        if (sinceId == null || CommitWalker.ZERO_HASH.equals(sinceId)) {
+            sinceId = findMergeBaseWithDefaultBranch(repository, refChange.getToHash());
+            if (refChange.getToHash().equals(sinceId)) {
+                // the default branch itself, such as the first push of an import
+                sinceId = null;
             }
         }
+        PushMetrics metrics = new PushMetrics();
+        List<Commit> commits = commitWalker.findCommitsBetween(repository, sinceId, refChange.getToHash(), metrics);
+
+        YamlPathMatcher pathMatcher = settings.getPathMatcher();
+        PushContext push = new PushContext();
+        for (Commit commit : commits) {
+            // every commit keeps its own versions, so each version is validated rather than only the latest
+            ConcurrentMap<String, YamlFile> changes = new ConcurrentHashMap<>();
+            addFileChangesOnCommit(changes, repository, commit, pathMatcher);
+            push.addFiles(changes.values());
+        }
+        Collection<YamlFile> files = push.getFiles();
+        audit.checked(commits.size(), files.size());
+
+        YamlValidatorSettings auditSettings = settings.toBuilder()
+                .reportAllErrors(true)
+                .timeoutSeconds(0)
+                .build();
+        FileValidationStage.Result result = validationStage.validate(repository, files, auditSettings, Runnable::run,
+                FileValidationStage.NO_DEADLINE, metrics, schemaRegistry.forPush(repository, auditSettings, files));
+        for (FileValidationStage.Verdict verdict : result.getInvalid()) {
+            audit.invalid(verdict.getFile().getPath(), verdict.getFile().getCommit().getId(),
+                    verdict.getOutcome().getSummary());
+        }
     }
 
     /**
      * This function checks that all the files are valid that are being pushed
      *
-     * @param pathChanges Map of the string paths with their associated commits
+     * @param files The versions of the files to check
      * @param repository The repository that the push is for
      * @param result Map holding the response to be sent back to the client
+     * @param settings The hook settings
+     * @param deadlineNanos The {@link System#nanoTime()} by which validation has to finish
+     * @param metrics The timings and counters of the push
      *
      * @return A boolean denoting if the yaml files are valid
      */
-    private boolean areFilesValid(ConcurrentMap<String, Commit> pathChanges, Repository repository, ConcurrentMap<String, String> result) {
-        LOG.info("Found " + pathChanges.size() + " yaml files to validate");
-        boolean allFilesAreValid = true;
-        try {
-            for (String filePath : pathChanges.keySet()){
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                TypeAwareOutputSupplier os = MoreSuppliers.newTypeAwareOutputSupplierOf(outputStream);
-
-                contentService.streamFile(
-                        repository,
-                        pathChanges.get(filePath).getId(),
-                        filePath,
-                        os);
-
-                try {
-                    if(!checkFile(outputStream.toString(), result, filePath)) {
-                        allFilesAreValid = false;
-                    }
-                } finally {
-                    LOG.debug("Attempting to close the output stream");
-                    outputStream.close();
-                }
+    private boolean areFilesValid(Collection<YamlFile> files, Repository repository,
+                                  ConcurrentMap<String, String> result, YamlValidatorSettings settings,
+                                  long deadlineNanos, PushMetrics metrics) {
+        LOG.info("Found " + files.size() + " yaml files to validate");
+        SchemaRegistry.Schemas schemas = schemaRegistry.forPush(repository, settings, files);
+        FileValidationStage.Result stageResult;
+        try (ValidationScheduler.Lane lane = admit(repository, files.size(), settings, deadlineNanos, metrics)) {
+            if (lane == null) {
+                return handleBusy(repository, result, settings, metrics);
+            }
+            stageResult = validationStage.validate(repository, files, settings, lane, deadlineNanos,
+                    metrics, schemas);
+        }
 
-                if (!allFilesAreValid) {
-                    break;
-                }
+        List<FileValidationStage.Verdict> invalid = stageResult.getInvalid();
+        for (FileValidationStage.Verdict verdict : invalid) {
+            metrics.rejected(verdict.getOutcome());
+        }
+        if (stageResult.isTimedOut()) {
+            metrics.timedOut();
+        }
+        if (invalid.size() == 1) {
+            reject(result, invalid.get(0).getFile().getPath(), invalid.get(0).getOutcome());
+        } else if (!invalid.isEmpty()) {
+            rejectAll(result, invalid);
+        }
 
+        if (invalid.isEmpty() && stageResult.isTimedOut()) {
+            String detail = "Validated " + stageResult.getChecked() + " of " + stageResult.getTotal() +
+                    " yaml files within the limit of " + settings.getTimeoutSeconds() + " seconds";
+            if (settings.getTimeoutAction() == YamlValidatorSettings.TimeoutAction.REJECT) {
+                LOG.info("Rejecting push because yaml validation ran out of time in " + repository.getName());
+                metrics.rejected(PushMetrics.TIMEOUT);
+                result.putIfAbsent(SUMMARY, "ERROR: Yaml validation did not finish in time, please try again or push fewer files");
+                result.putIfAbsent(DETAIL, detail);
+            } else {
+                LOG.warn("Accepting push to " + repository.getName() + " without validating every yaml file. " + detail);
             }
-            LOG.debug("Removing the directory created in order to validate yaml");
-        } catch (IOException e) {
-            LOG.error("Problem creating the a temp directory to validate yaml" + e.getMessage());
         }
 
-        return allFilesAreValid;
+        return invalid.isEmpty();
     }
 
-    boolean checkFile(String fileString, ConcurrentMap<String, String> result, String filePath) {
-        boolean validFile = true;
-        LoaderOptions loaderOptions = new LoaderOptions();
-        loaderOptions.setAllowDuplicateKeys(true);
-        Yaml yaml = new Yaml(new YamlValidatorConstructor(loaderOptions));
-        try {
-            LOG.info("Attempting to validate yaml stream");
-            int documentCount = 1;
-            Iterator<Object> it = yaml.loadAll(fileString).iterator();
-            while (it.hasNext()) {
-                LOG.info("Validating document #" + documentCount);
-                it.next();
-                documentCount++;
+    /**
+     * Lists every invalid file with the position of its error, one line each, within {@link #MAX_DETAIL_LENGTH}
+     * characters so that a push with thousands of broken files still gets a message the client can show.
+     */
+    void rejectAll(ConcurrentMap<String, String> result, List<FileValidationStage.Verdict> invalid) {
+        StringBuilder paths = new StringBuilder();
+        StringBuilder details = new StringBuilder();
+        int listed = 0;
+        for (int i = 0; i < invalid.size(); i++) {
+            String path = invalid.get(i).getFile().getPath();
+            LOG.info("Rejecting push because following yaml file is invalid: " + path);
+            if (i < MAX_SUMMARY_PATHS) {
+                paths.append(i == 0 ? "" : ", ").append(path);
             }
-        } catch (Exception e) {
-            LOG.info("Rejecting push because following yaml file is invalid: " + filePath);
-            result.putIfAbsent(SUMMARY, "ERROR: Invalid yaml file: " + filePath);
-            result.putIfAbsent(DETAIL, e.getMessage());
-            validFile = false;
+            String line = invalid.get(i).getOutcome().getSummary(path) + '\n';
+            if (listed == i && details.length() + line.length() <= MAX_DETAIL_LENGTH) {
+                details.append(line);
+                listed++;
+            }
+        }
+        if (invalid.size() > MAX_SUMMARY_PATHS) {
+            paths.append(", ...");
+        }
+        if (listed < invalid.size()) {
+            details.append("... and ").append(invalid.size() - listed).append(" more invalid yaml files\n");
+        }
+        result.putIfAbsent(SUMMARY, "ERROR: " + invalid.size() + " invalid yaml files: " + paths);
+        result.putIfAbsent(DETAIL, details.toString());
+    }
+
+    private ValidationScheduler.Lane admit(Repository repository, int files, YamlValidatorSettings settings,
+                                           long deadlineNanos, PushMetrics metrics) {
+        long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(settings.getQueueWaitMillis());
+        if (deadlineNanos != FileValidationStage.NO_DEADLINE) {
+            maxWaitNanos = Math.min(maxWaitNanos, deadlineNanos - System.nanoTime());
+        }
+        try {
+            return validationScheduler.admit(repository, files, maxWaitNanos, metrics);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
-        return validFile;
+    }
+
+    private boolean handleBusy(Repository repository, ConcurrentMap<String, String> result,
+                                       YamlValidatorSettings settings, PushMetrics metrics) {
+        metrics.busy();
+        if (settings.getBusyAction() == YamlValidatorSettings.TimeoutAction.ACCEPT) {
+            LOG.warn("Accepting push to " + repository.getName() + " without validating its yaml files, the validation queue is full");
+            return true;
+        }
+        LOG.info("Rejecting push because the yaml validation queue is full in " + repository.getName());
+        metrics.rejected(PushMetrics.BUSY);
+        result.putIfAbsent(SUMMARY, "ERROR: The server is too busy to validate yaml files, please try again shortly");
+        result.putIfAbsent(DETAIL, "No room was found in the yaml validation queue within "
+                + settings.getQueueWaitMillis() + " milliseconds");
+        return false;
+    }
+
+    boolean checkFile(String fileString, ConcurrentMap<String, String> result, String filePath) {
+        ValidationOutcome outcome = validator.validate(fileString);
+        if (!outcome.isValid()) {
+            reject(result, filePath, outcome);
+        }
+        return outcome.isValid();
+    }
+
+    private void reject(ConcurrentMap<String, String> result, String filePath, ValidationOutcome outcome) {
+        LOG.info("Rejecting push because following yaml file is invalid: " + filePath);
+        result.putIfAbsent(SUMMARY, "ERROR: Invalid yaml file: " + filePath);
+        result.putIfAbsent(DETAIL, outcome.getDetail());
     }
 
     /**
-     * Creates a map of repository references mapped to the commit that it was changed with
+     * Creates a map of repository references mapped to the version of the file that it was changed with
      *
      * @param filesWithCommits The map to be added to
      * @param repository The repository is being pushed to
      * @param commit The new commit with file changes
      */
-    public void addFileChangesOnCommit(ConcurrentMap<String, Commit> filesWithCommits, Repository repository, Commit commit, String yamlFileExtension) {
-        final ChangesRequest changesRequest = new ChangesRequest.Builder(repository, commit.getId()).build();
-        final Page<Change> changes = commitService.getChanges(changesRequest, PageUtils.newRequest(0, PAGE_REQUEST_LIMIT));
-
-        if (changes != null) {
-            for (Change change : changes.getValues()) {
-                LOG.debug("Change type was: " + change.getType().name());
-                if (!ChangeType.DELETE.equals(change.getType())) {
-
-                    String extension = null;
-                    if (change.getPath() != null) {
-                        extension = change.getPath().getExtension();
-                    }
-                    if (extension != null && extension.matches(yamlFileExtension)) {
-                        if (filesWithCommits.containsKey(change.getPath().toString())) {
-                            if (commit.getAuthorTimestamp().after(filesWithCommits.get(change.getPath().toString()).getAuthorTimestamp())) {
-                                filesWithCommits.replace(change.getPath().toString(), commit);
-                            }
-                        } else {
-                            filesWithCommits.putIfAbsent(change.getPath().toString(), commit);
-                        }
-                    }
-                }
+    public void addFileChangesOnCommit(ConcurrentMap<String, YamlFile> filesWithCommits, Repository repository, Commit commit, String yamlFileExtension) {
+        addFileChangesOnCommit(filesWithCommits, repository, commit, YamlPathMatcher.forExtension(yamlFileExtension));
+    }
+
+    void addFileChangesOnCommit(ConcurrentMap<String, YamlFile> filesWithCommits, Repository repository, Commit commit, YamlPathMatcher pathMatcher) {
+        addFileChanges(filesWithCommits, repository, null, commit, pathMatcher);
+    }
+
+    /**
+     * Adds the net change of a ref to the map of repository references, so that each path is only validated at the
+     * new tip. The diff is taken against the old tip or, for a new ref, against the merge base with the default
+     * branch.
+     *
+     * @param filesWithCommits The map to be added to
+     * @param repository The repository is being pushed to
+     * @param refChange The ref change to diff
+     * @param pathMatcher Decides which of the changed paths to validate
+     * @return false if there is nothing to diff against, so the new commits have to be checked one by one instead
+     */
+    boolean addNetFileChanges(ConcurrentMap<String, YamlFile> filesWithCommits, Repository repository, RefChange refChange, YamlPathMatcher pathMatcher) {
+        return addNetFileChanges(filesWithCommits, repository, refChange, pathMatcher, new PushContext());
+    }
+
+    /**
+     * @param push What earlier ref changes of the same push have already diffed, so that a diff is only listed once
+     *             and new refs at commits which are already indexed are not diffed at all
+     * @see #addNetFileChanges(ConcurrentMap, Repository, RefChange, YamlPathMatcher)
+     */
+    boolean addNetFileChanges(ConcurrentMap<String, YamlFile> filesWithCommits, Repository repository, RefChange refChange, YamlPathMatcher pathMatcher, PushContext push) {
+        final String toHash = refChange.getToHash();
+        if (CommitWalker.ZERO_HASH.equals(toHash)) {
+            LOG.debug("Found deletion commit");
+            return true;
+        }
+
+        String sinceId = refChange.getFromHash();
+        if (sinceId == null || CommitWalker.ZERO_HASH.equals(sinceId)) {
+            if (commitIndex.isIndexed(toHash, repository)) {
+                LOG.debug("Nothing new at " + toHash);
+                return true;
             }
+            sinceId = findMergeBaseWithDefaultBranch(repository, toHash);
+            if (sinceId == null) {
+                return false;
+            }
+        }
+        if (!push.markDiffed(sinceId, toHash)) {
+            LOG.debug("Already diffed " + sinceId + " to " + toHash);
+            return true;
+        }
+
+        final Commit tip = commitService.getCommit(new CommitRequest.Builder(repository, toHash).build());
+        LOG.debug("Diffing " + sinceId + " to " + toHash);
+        addFileChanges(filesWithCommits, repository, sinceId, tip, pathMatcher);
+        return true;
+    }
+
+    private String findMergeBaseWithDefaultBranch(Repository repository, String hash) {
+        final Branch defaultBranch;
+        try {
+            defaultBranch = refService.getDefaultBranch(repository);
+        } catch (NoDefaultBranchException e) {
+            LOG.debug("No default branch to find the merge base with");
+            return null;
         }
+
+        final MinimalCommit mergeBase = commitService.getCommonAncestor(new CommonAncestorRequest.Builder(repository)
+                .commitId(hash)
+                .commitId(defaultBranch.getLatestCommit())
+                .build());
+        return mergeBase == null ? null : mergeBase.getId();
+    }
+
+    private void addFileChanges(ConcurrentMap<String, YamlFile> filesWithCommits, Repository repository, String sinceId, Commit commit, YamlPathMatcher pathMatcher) {
+        changeStreamer.streamChanges(repository, sinceId, commit, pathMatcher, (path, contentId) -> {
+            YamlFile file = new YamlFile(path, commit, contentId);
+            if (filesWithCommits.containsKey(path)) {
+                if (commit.getAuthorTimestamp().after(filesWithCommits.get(path).getCommit().getAuthorTimestamp())) {
+                    filesWithCommits.replace(path, file);
+                }
+            } else {
+                filesWithCommits.putIfAbsent(path, file);
+            }
+        });
+    }
+
+    @Override
+    public void validate(@Nonnull Settings settings, @Nonnull SettingsValidationErrors errors, @Nonnull Scope scope) {
+        YamlValidatorHookSettings.validate(settings, errors);
     }
 
     @Nonnull
@@ -236,7 +461,7 @@ public class YamlValidatorPreReceiveRepositoryHook implements PreRepositoryHook
         RepositoryHookResult result;
         Map<String, String> processedResults = onReceive(repositoryHookRequest.getRepository(),
                 repositoryHookRequest.getRefChanges(),
-                preRepositoryHookContext.getSettings().getString(EXTENSION_CONFIG_STRING));
+                YamlValidatorHookSettings.from(preRepositoryHookContext.getSettings()));
 
         if (processedResults.containsKey(SUMMARY)) {
             result = RepositoryHookResult.rejected(processedResults.get(SUMMARY), processedResults.get(DETAIL));
@@ -245,4 +470,13 @@ public class YamlValidatorPreReceiveRepositoryHook implements PreRepositoryHook
         }
         return result;
     }
+
+    /**
+     * Queues the audits of the ref changes which were too large to check in full, now that they have been applied
+     */
+    @Override
+    public void postUpdate(@Nonnull PostRepositoryHookContext postRepositoryHookContext, @Nonnull RepositoryHookRequest repositoryHookRequest) {
+        validationAuditor.start(repositoryHookRequest.getRepository(), repositoryHookRequest.getRefChanges(),
+                this::audit);
+    }
 }
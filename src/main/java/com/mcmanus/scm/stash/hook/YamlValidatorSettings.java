@@ -0,0 +1,507 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.yaml.snakeyaml.LoaderOptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the hook settings which are configured through the hook's config form.
+ *
+ * Everything validation derives from the settings, such as the parser limits and the fingerprint of the verdicts, is
+ * computed once per snapshot, and pushes made with the same saved settings share one snapshot. The settings are plain
+ * Java, so the command line validator can build them without Bitbucket; {@link YamlValidatorHookSettings} reads them
+ * from the hook's saved settings.
+ */
+public class YamlValidatorSettings {
+
+    static final String EXTENSION = "extension";
+    static final String INCLUDES = "includes";
+    static final String EXCLUDES = "excludes";
+    static final String VALIDATION_MODE = "validationMode";
+    static final String REPORT_ALL_ERRORS = "reportAllErrors";
+    static final String TIMEOUT = "timeout";
+    static final String TIMEOUT_ACTION = "timeoutAction";
+    static final String ENGINE = "engine";
+    static final String MAX_FILE_SIZE = "maxFileSize";
+    static final String MAX_DOCUMENTS = "maxDocuments";
+    static final String MAX_DEPTH = "maxDepth";
+    static final String MAX_ALIASES = "maxAliases";
+    static final String FILE_TIMEOUT = "fileTimeout";
+    static final String QUEUE_WAIT = "queueWait";
+    static final String BUSY_ACTION = "busyAction";
+    static final String SCHEMAS = "schemas";
+    static final String AUDIT_COMMITS = "auditCommits";
+    static final String AUDIT_FILES = "auditFiles";
+
+    static final String DEFAULT_EXTENSION = "yaml";
+    static final int DEFAULT_TIMEOUT_SECONDS = 60;
+    static final int DEFAULT_MAX_FILE_SIZE_KB = 3 * 1024;
+    static final int DEFAULT_MAX_DOCUMENTS = 1000;
+    static final int DEFAULT_MAX_DEPTH = 50;
+    static final int DEFAULT_MAX_ALIASES = 100;
+    static final int DEFAULT_FILE_TIMEOUT_SECONDS = 10;
+    static final int DEFAULT_QUEUE_WAIT_MILLIS = 5000;
+    private static final String VERDICT_VERSION = "1";
+
+    /**
+     * How the files to validate are found for each ref change.
+     */
+    public enum ValidationMode {
+        /** List the changes of every new commit and validate each path at the latest commit that touched it */
+        COMMITS("commits"),
+        /** Diff the old tip against the new tip and validate each path at the new tip only */
+        NET_CHANGE("net");
+
+        private final String key;
+
+        ValidationMode(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        static ValidationMode fromKey(String key) {
+            for (ValidationMode mode : values()) {
+                if (mode.key.equals(key)) {
+                    return mode;
+                }
+            }
+            return COMMITS;
+        }
+    }
+
+    /**
+     * What to do with a push whose files could not all be validated, because it ran out of time or the node was too
+     * busy to start.
+     */
+    public enum TimeoutAction {
+        REJECT("reject"),
+        ACCEPT("accept");
+
+        private final String key;
+
+        TimeoutAction(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        static TimeoutAction fromKey(String key) {
+            for (TimeoutAction action : values()) {
+                if (action.key.equals(key)) {
+                    return action;
+                }
+            }
+            return REJECT;
+        }
+    }
+
+    /**
+     * How much of the yaml is processed to decide whether a file is valid.
+     */
+    public enum Engine {
+        /** Parse the stream without building the documents */
+        SYNTAX("syntax"),
+        /** Build every document, as versions up to 4.1 did */
+        CONSTRUCT("construct");
+
+        private final String key;
+
+        Engine(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        static Engine fromKey(String key) {
+            for (Engine engine : values()) {
+                if (engine.key.equals(key)) {
+                    return engine;
+                }
+            }
+            return SYNTAX;
+        }
+    }
+
+    private final String extension;
+    private final List<String> includes;
+    private final List<String> excludes;
+    private final ValidationMode validationMode;
+    private final Engine engine;
+    private final boolean reportAllErrors;
+    private final int timeoutSeconds;
+    private final TimeoutAction timeoutAction;
+    private final int maxFileSizeKb;
+    private final int maxDocuments;
+    private final int maxDepth;
+    private final int maxAliases;
+    private final int fileTimeoutSeconds;
+    private final int queueWaitMillis;
+    private final TimeoutAction busyAction;
+    private final String schemas;
+    private final int auditCommits;
+    private final int auditFiles;
+    private final LoaderOptions loaderOptions;
+    private final String verdictFingerprint;
+    private volatile YamlPathMatcher pathMatcher;
+
+    private YamlValidatorSettings(Builder builder) {
+        this.extension = builder.extension;
+        this.includes = Collections.unmodifiableList(new ArrayList<>(builder.includes));
+        this.excludes = Collections.unmodifiableList(new ArrayList<>(builder.excludes));
+        this.validationMode = builder.validationMode;
+        this.engine = builder.engine;
+        this.reportAllErrors = builder.reportAllErrors;
+        this.timeoutSeconds = builder.timeoutSeconds;
+        this.timeoutAction = builder.timeoutAction;
+        this.maxFileSizeKb = builder.maxFileSizeKb;
+        this.maxDocuments = builder.maxDocuments;
+        this.maxDepth = builder.maxDepth;
+        this.maxAliases = builder.maxAliases;
+        this.fileTimeoutSeconds = builder.fileTimeoutSeconds;
+        this.queueWaitMillis = builder.queueWaitMillis;
+        this.busyAction = builder.busyAction;
+        this.schemas = builder.schemas;
+        this.auditCommits = builder.auditCommits;
+        this.auditFiles = builder.auditFiles;
+        this.loaderOptions = loaderOptions(maxFileSizeKb, maxDepth, maxAliases);
+        this.verdictFingerprint = VERDICT_VERSION + ':' + engine.getKey() + ':' + maxFileSizeKb + ':' + maxDocuments
+                + ':' + maxDepth + ':' + maxAliases;
+    }
+
+    /**
+     * @return The settings used when the hook has not been configured
+     */
+    public static YamlValidatorSettings defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * @return A builder holding these settings, to derive settings which differ in a few values
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .extension(extension)
+                .includes(includes)
+                .excludes(excludes)
+                .validationMode(validationMode)
+                .engine(engine)
+                .reportAllErrors(reportAllErrors)
+                .timeoutSeconds(timeoutSeconds)
+                .timeoutAction(timeoutAction)
+                .maxFileSizeKb(maxFileSizeKb)
+                .maxDocuments(maxDocuments)
+                .maxDepth(maxDepth)
+                .maxAliases(maxAliases)
+                .fileTimeoutSeconds(fileTimeoutSeconds)
+                .queueWaitMillis(queueWaitMillis)
+                .busyAction(busyAction)
+                .schemas(schemas)
+                .auditCommits(auditCommits)
+                .auditFiles(auditFiles);
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return Globs of the paths to validate, or an empty list to validate every path with the extension
+     */
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * @return Globs of the paths to skip, even if they are included
+     */
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * @return The compiled matcher for the extension, includes and excludes
+     */
+    public YamlPathMatcher getPathMatcher() {
+        YamlPathMatcher matcher = pathMatcher;
+        if (matcher == null) {
+            // compiled on first use, so that a snapshot with globs which do not compile can still be validated
+            matcher = YamlPathMatcher.of(this);
+            pathMatcher = matcher;
+        }
+        return matcher;
+    }
+
+    public ValidationMode getValidationMode() {
+        return validationMode;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return Whether every invalid file should be reported, rather than stopping at the first one
+     */
+    public boolean isReportAllErrors() {
+        return reportAllErrors;
+    }
+
+    /**
+     * @return The wall clock budget for validating a push, in seconds, or 0 for no limit
+     */
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    public TimeoutAction getTimeoutAction() {
+        return timeoutAction;
+    }
+
+    /**
+     * @return The largest file to validate, in KB, or 0 for no limit
+     */
+    public int getMaxFileSizeKb() {
+        return maxFileSizeKb;
+    }
+
+    /**
+     * @return The most documents a file may hold, or 0 for no limit
+     */
+    public int getMaxDocuments() {
+        return maxDocuments;
+    }
+
+    /**
+     * @return How deeply sequences and mappings may be nested, or 0 for no limit
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return The most aliases a file may use, or 0 for no limit
+     */
+    public int getMaxAliases() {
+        return maxAliases;
+    }
+
+    /**
+     * @return How long a single file may take to validate, in seconds, or 0 for no limit
+     */
+    public int getFileTimeoutSeconds() {
+        return fileTimeoutSeconds;
+    }
+
+    /**
+     * @return How long a push may wait for room in the node wide validation queue, in milliseconds
+     */
+    public int getQueueWaitMillis() {
+        return queueWaitMillis;
+    }
+
+    /**
+     * @return What to do with a push which is still waiting for room in the validation queue after
+     * {@link #getQueueWaitMillis()}
+     */
+    public TimeoutAction getBusyAction() {
+        return busyAction;
+    }
+
+    /**
+     * @return A JSON object mapping path globs to the path of a schema in the repository or to an inline schema, or
+     * an empty string if files are only checked for their syntax
+     */
+    public String getSchemas() {
+        return schemas;
+    }
+
+    /**
+     * @return The number of new commits above which a ref change only has its new tip checked while the client
+     * waits, and the rest is audited in the background, or 0 to always check every commit
+     */
+    public int getAuditCommits() {
+        return auditCommits;
+    }
+
+    /**
+     * @return The number of changed yaml files above which a ref change only has its new tip checked while the
+     * client waits, and the rest is audited in the background, or 0 to always check every commit
+     */
+    public int getAuditFiles() {
+        return auditFiles;
+    }
+
+    /**
+     * The per file time limit is left out, as verdicts which depend on how busy the node was are not cached.
+     *
+     * @return A key which changes whenever a setting which affects the verdict for a file's content changes
+     */
+    public String getVerdictFingerprint() {
+        return verdictFingerprint;
+    }
+
+    /**
+     * @return The SnakeYAML limits matching the resource limits, shared by every file parsed with these settings and
+     *         never to be changed
+     */
+    LoaderOptions getLoaderOptions() {
+        return loaderOptions;
+    }
+
+    private static LoaderOptions loaderOptions(int maxFileSizeKb, int maxDepth, int maxAliases) {
+        LoaderOptions loaderOptions = new LoaderOptions();
+        loaderOptions.setAllowDuplicateKeys(true);
+        loaderOptions.setCodePointLimit(orUnlimited((long) maxFileSizeKb * 1024));
+        loaderOptions.setNestingDepthLimit(orUnlimited(maxDepth));
+        loaderOptions.setMaxAliasesForCollections(orUnlimited(maxAliases));
+        return loaderOptions;
+    }
+
+    private static int orUnlimited(long limit) {
+        return limit == 0 || limit > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) limit;
+    }
+
+    static String nonBlank(String value, String defaultValue) {
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Splits a field of the config form which holds a comma or line separated list
+     */
+    static List<String> list(String value) {
+        List<String> values = new ArrayList<>();
+        if (value != null) {
+            for (String item : value.split("[,\\n]")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    public static class Builder {
+
+        private String extension = DEFAULT_EXTENSION;
+        private List<String> includes = Collections.emptyList();
+        private List<String> excludes = Collections.emptyList();
+        private ValidationMode validationMode = ValidationMode.COMMITS;
+        private Engine engine = Engine.SYNTAX;
+        private boolean reportAllErrors;
+        private int timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+        private TimeoutAction timeoutAction = TimeoutAction.REJECT;
+        private int maxFileSizeKb = DEFAULT_MAX_FILE_SIZE_KB;
+        private int maxDocuments = DEFAULT_MAX_DOCUMENTS;
+        private int maxDepth = DEFAULT_MAX_DEPTH;
+        private int maxAliases = DEFAULT_MAX_ALIASES;
+        private int fileTimeoutSeconds = DEFAULT_FILE_TIMEOUT_SECONDS;
+        private int queueWaitMillis = DEFAULT_QUEUE_WAIT_MILLIS;
+        private TimeoutAction busyAction = TimeoutAction.REJECT;
+        private String schemas = "";
+        private int auditCommits;
+        private int auditFiles;
+
+        public Builder extension(String value) {
+            extension = value;
+            return this;
+        }
+
+        public Builder includes(List<String> value) {
+            includes = value;
+            return this;
+        }
+
+        public Builder excludes(List<String> value) {
+            excludes = value;
+            return this;
+        }
+
+        public Builder validationMode(ValidationMode value) {
+            validationMode = value;
+            return this;
+        }
+
+        public Builder engine(Engine value) {
+            engine = value;
+            return this;
+        }
+
+        public Builder reportAllErrors(boolean value) {
+            reportAllErrors = value;
+            return this;
+        }
+
+        public Builder timeoutSeconds(int value) {
+            timeoutSeconds = value;
+            return this;
+        }
+
+        public Builder timeoutAction(TimeoutAction value) {
+            timeoutAction = value;
+            return this;
+        }
+
+        public Builder maxFileSizeKb(int value) {
+            maxFileSizeKb = value;
+            return this;
+        }
+
+        public Builder maxDocuments(int value) {
+            maxDocuments = value;
+            return this;
+        }
+
+        public Builder maxDepth(int value) {
+            maxDepth = value;
+            return this;
+        }
+
+        public Builder maxAliases(int value) {
+            maxAliases = value;
+            return this;
+        }
+
+        public Builder fileTimeoutSeconds(int value) {
+            fileTimeoutSeconds = value;
+            return this;
+        }
+
+        public Builder queueWaitMillis(int value) {
+            queueWaitMillis = value;
+            return this;
+        }
+
+        public Builder busyAction(TimeoutAction value) {
+            busyAction = value;
+            return this;
+        }
+
+        public Builder schemas(String value) {
+            schemas = value;
+            return this;
+        }
+
+        public Builder auditCommits(int value) {
+            auditCommits = value;
+            return this;
+        }
+
+        public Builder auditFiles(int value) {
+            auditFiles = value;
+            return this;
+        }
+
+        public YamlValidatorSettings build() {
+            return new YamlValidatorSettings(this);
+        }
+    }
+}
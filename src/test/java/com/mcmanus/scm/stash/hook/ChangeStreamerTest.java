@@ -0,0 +1,215 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.commit.MinimalCommit;
+import com.atlassian.bitbucket.content.Change;
+import com.atlassian.bitbucket.content.ChangeCallback;
+import com.atlassian.bitbucket.content.ChangeSummary;
+import com.atlassian.bitbucket.content.ChangeType;
+import com.atlassian.bitbucket.content.ChangesRequest;
+import com.atlassian.bitbucket.content.SimplePath;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommand;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChangeStreamerTest {
+
+    private static final YamlPathMatcher YAML = YamlPathMatcher.forExtension("yaml");
+
+    @Test
+    public void shouldKeepOnlyMatchingPathsOfVeryLargeCommits() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        GitCommandBuilderFactory builderFactoryMock = mock(GitCommandBuilderFactory.class);
+        AtomicInteger next = new AtomicInteger();
+        Change change = mock(Change.class);
+        when(change.getType()).thenReturn(ChangeType.ADD);
+        when(change.getContentId()).thenReturn("b10b");
+        when(change.getPath()).thenAnswer(invocation -> {
+            int i = next.get();
+            return new SimplePath("module" + i + (i % 10 == 0 ? "/config.yaml" : "/Main.java"));
+        });
+        doAnswer(invocation -> {
+            ChangeCallback callback = invocation.getArgument(1);
+            for (int i = 0; i < 100000; i++) {
+                next.set(i);
+                callback.onChange(change);
+            }
+            callback.onEnd(summary(false));
+            return null;
+        }).when(commitServiceMock).streamChanges(any(ChangesRequest.class), any(ChangeCallback.class));
+
+        Map<String, String> files = new LinkedHashMap<>();
+        new ChangeStreamer(commitServiceMock, builderFactoryMock)
+                .streamChanges(mock(Repository.class), null, commit("c0mm17"), YAML, files::put);
+
+        assertThat(files.size(), is(10000));
+        assertThat(files.get("module99990/config.yaml"), is("b10b"));
+        verify(builderFactoryMock, never()).builder(any(Repository.class));
+    }
+
+    @Test
+    public void shouldSkipDeletedFiles() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        Change deleted = mock(Change.class);
+        when(deleted.getType()).thenReturn(ChangeType.DELETE);
+        when(deleted.getPath()).thenReturn(new SimplePath("gone.yaml"));
+        stream(commitServiceMock, false, deleted);
+
+        Map<String, String> files = new LinkedHashMap<>();
+        new ChangeStreamer(commitServiceMock, mock(GitCommandBuilderFactory.class))
+                .streamChanges(mock(Repository.class), null, commit("c0mm17"), YAML, files::put);
+
+        assertThat(files.isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldListTruncatedChangesWithGit() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        Change first = mock(Change.class);
+        when(first.getType()).thenReturn(ChangeType.ADD);
+        when(first.getPath()).thenReturn(new SimplePath("a.yaml"));
+        when(first.getContentId()).thenReturn("b10b1");
+        stream(commitServiceMock, true, first);
+
+        List<String> arguments = new ArrayList<>();
+        GitCommandBuilderFactory builderFactoryMock = diffTree(arguments,
+                ":000000 100644 0000000 b10b1 A\0a.yaml\0"
+                        + ":100644 100644 0ld0 b10b2 M\0deep/dir/b.yaml\0"
+                        + ":100644 000000 0ld1 0000000 D\0gone.yaml\0"
+                        + ":000000 160000 0000000 5ubm0d A\0module.yaml\0"
+                        + ":000000 100644 0000000 b10b3 A\0Main.java\0");
+
+        Map<String, String> files = new LinkedHashMap<>();
+        new ChangeStreamer(commitServiceMock, builderFactoryMock)
+                .streamChanges(mock(Repository.class), null, commit("c0mm17", "p4r3n7"), YAML, files::put);
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("a.yaml", "b10b1");
+        expected.put("deep/dir/b.yaml", "b10b2");
+        assertThat(files, is(expected));
+        assertThat(arguments, is(Arrays.asList("-r", "-z", "--no-renames", "--no-commit-id", "p4r3n7", "c0mm17")));
+    }
+
+    @Test
+    public void shouldListTruncatedRootCommitWithGit() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        stream(commitServiceMock, true);
+
+        List<String> arguments = new ArrayList<>();
+        GitCommandBuilderFactory builderFactoryMock = diffTree(arguments, ":000000 100644 0000000 b10b1 A\0a.yaml\0");
+
+        Map<String, String> files = new LinkedHashMap<>();
+        new ChangeStreamer(commitServiceMock, builderFactoryMock)
+                .streamChanges(mock(Repository.class), null, commit("r0o7"), YAML, files::put);
+
+        assertThat(files, is(Collections.singletonMap("a.yaml", "b10b1")));
+        assertThat(arguments, is(Arrays.asList("-r", "-z", "--no-renames", "--no-commit-id", "--root", "r0o7")));
+    }
+
+    @Test
+    public void shouldListEveryMatchingFileInTheTreeOfACommit() {
+        List<String> arguments = new ArrayList<>();
+        GitCommandBuilderFactory builderFactoryMock = git("ls-tree", arguments,
+                "100644 blob b10b1\ta.yaml\0"
+                        + "100644 blob b10b2\tdeep/dir/b.yaml\0"
+                        + "160000 commit 5ubm0d\tmodule.yaml\0"
+                        + "100644 blob b10b3\tMain.java\0");
+
+        Map<String, String> files = new LinkedHashMap<>();
+        new ChangeStreamer(mock(CommitService.class), builderFactoryMock)
+                .streamTree(mock(Repository.class), commit("c0mm17"), YAML, files::put);
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("a.yaml", "b10b1");
+        expected.put("deep/dir/b.yaml", "b10b2");
+        assertThat(files, is(expected));
+        assertThat(arguments, is(Arrays.asList("-r", "-z", "--full-tree", "c0mm17")));
+    }
+
+    private static void stream(CommitService commitServiceMock, boolean truncated, Change... changes) {
+        doAnswer(invocation -> {
+            ChangeCallback callback = invocation.getArgument(1);
+            for (Change change : changes) {
+                callback.onChange(change);
+            }
+            callback.onEnd(summary(truncated));
+            return null;
+        }).when(commitServiceMock).streamChanges(any(ChangesRequest.class), any(ChangeCallback.class));
+    }
+
+    private static ChangeSummary summary(boolean truncated) {
+        ChangeSummary summary = mock(ChangeSummary.class);
+        when(summary.isTruncated()).thenReturn(truncated);
+        return summary;
+    }
+
+    private static Commit commit(String id, String... parents) {
+        Commit commit = mock(Commit.class);
+        when(commit.getId()).thenReturn(id);
+        List<MinimalCommit> parentCommits = new ArrayList<>();
+        for (String parent : parents) {
+            MinimalCommit parentCommit = mock(MinimalCommit.class);
+            when(parentCommit.getId()).thenReturn(parent);
+            parentCommits.add(parentCommit);
+        }
+        when(commit.getParents()).thenReturn(parentCommits);
+        return commit;
+    }
+
+    /**
+     * A stand in for {@code git diff-tree}, which records its arguments and writes the given output
+     */
+    private static GitCommandBuilderFactory diffTree(List<String> arguments, String output) {
+        return git("diff-tree", arguments, output);
+    }
+
+    /**
+     * A stand in for a git command, which records its arguments and writes the given output
+     */
+    private static GitCommandBuilderFactory git(String command, List<String> arguments, String output) {
+        GitCommandBuilderFactory builderFactoryMock = mock(GitCommandBuilderFactory.class);
+        GitScmCommandBuilder builderMock = mock(GitScmCommandBuilder.class);
+
+        when(builderFactoryMock.builder(any(Repository.class))).thenReturn(builderMock);
+        when(builderMock.command(command)).thenReturn(builderMock);
+        doAnswer(invocation -> {
+            arguments.add(invocation.getArgument(0));
+            return builderMock;
+        }).when(builderMock).argument(anyString());
+        doAnswer(invocation -> {
+            CommandOutputHandler<?> outputHandler = invocation.getArgument(0);
+            GitCommand<Object> gitCommand = mock(GitCommand.class);
+            when(gitCommand.call()).thenAnswer(call -> {
+                outputHandler.process(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+                return null;
+            });
+            return gitCommand;
+        }).when(builderMock).build(any(CommandOutputHandler.class));
+
+        return builderFactoryMock;
+    }
+}
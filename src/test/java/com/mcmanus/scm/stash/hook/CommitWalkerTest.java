@@ -0,0 +1,225 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.commit.CommitCallback;
+import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.commit.CommitsBetweenRequest;
+import com.atlassian.bitbucket.commit.MinimalCommit;
+import com.atlassian.bitbucket.idx.CommitIndex;
+import com.atlassian.bitbucket.repository.Repository;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CommitWalkerTest {
+
+    @Test
+    public void shouldReportEachCommitOfMergeHeavyHistoryOnce() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        Repository repositoryMock = mock(Repository.class);
+
+        // 200 merges of a release branch back into the mainline, on top of an indexed base commit
+        List<Commit> stream = new ArrayList<>();
+        Commit base = commit("base");
+        Commit mainline = base;
+        Commit release = base;
+        for (int i = 0; i < 200; i++) {
+            release = commit("release" + i, release);
+            mainline = commit("merge" + i, mainline, release);
+            stream.add(0, release);
+            stream.add(0, mainline);
+        }
+        stream.add(base);
+
+        when(commitIndexMock.isIndexed(anyString(), any(Repository.class))).thenReturn(false);
+        when(commitIndexMock.isIndexed(eq("base"), any(Repository.class))).thenReturn(true);
+        streamCommits(commitServiceMock, stream);
+
+        CommitWalker walker = new CommitWalker(commitServiceMock, commitIndexMock);
+        List<Commit> commits = walker.findNewCommits(repositoryMock, CommitWalker.ZERO_HASH, mainline.getId());
+
+        assertThat(commits.size(), is(400));
+        assertThat(new HashSet<>(commits).size(), is(400));
+        verify(commitIndexMock, times(1)).isIndexed(eq("base"), any(Repository.class));
+    }
+
+    @Test
+    public void shouldFindCommitsStreamedBeforeTheirChildren() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        Repository repositoryMock = mock(Repository.class);
+
+        Commit base = commit("base");
+        Commit first = commit("first", base);
+        Commit second = commit("second", first);
+
+        when(commitIndexMock.isIndexed(eq("base"), any(Repository.class))).thenReturn(true);
+        streamCommits(commitServiceMock, Arrays.asList(first, second, base));
+
+        CommitWalker walker = new CommitWalker(commitServiceMock, commitIndexMock);
+        List<Commit> commits = walker.findNewCommits(repositoryMock, CommitWalker.ZERO_HASH, "second");
+
+        assertThat(commits, is(Arrays.asList(second, first)));
+    }
+
+    @Test
+    public void shouldNotWalkDeletedRefs() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        Repository repositoryMock = mock(Repository.class);
+
+        CommitWalker walker = new CommitWalker(commitServiceMock, commitIndexMock);
+        List<Commit> commits = walker.findNewCommits(repositoryMock, "asdfh329fhpehguh", CommitWalker.ZERO_HASH);
+
+        assertThat(commits.size(), is(0));
+        verify(commitServiceMock, never()).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+    }
+
+    @Test
+    public void shouldWalkEachTipOfAPushOnce() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        Repository repositoryMock = mock(Repository.class);
+
+        Commit base = commit("base");
+        Commit first = commit("first", base);
+        Commit second = commit("second", first);
+
+        when(commitIndexMock.isIndexed(eq("base"), any(Repository.class))).thenReturn(true);
+        streamCommits(commitServiceMock, Arrays.asList(second, first, base));
+
+        CommitWalker walker = new CommitWalker(commitServiceMock, commitIndexMock);
+        PushContext push = new PushContext();
+        List<Commit> branch = walker.findNewCommits(repositoryMock, "base", "second", push, new PushMetrics());
+        for (int i = 0; i < 300; i++) {
+            String tip = i % 2 == 0 ? "second" : "first";
+            List<Commit> tag = walker.findNewCommits(repositoryMock, CommitWalker.ZERO_HASH, tip, push, new PushMetrics());
+            assertThat(tag.size(), is(0));
+        }
+
+        assertThat(branch, is(Arrays.asList(second, first)));
+        verify(commitServiceMock, times(1)).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+    }
+
+    @Test
+    public void shouldExcludeTipsWalkedEarlierInThePush() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        Repository repositoryMock = mock(Repository.class);
+        List<CommitsBetweenRequest> requests = new ArrayList<>();
+
+        doAnswer(invocation -> {
+            requests.add(invocation.getArgument(0));
+            return null;
+        }).when(commitServiceMock).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+
+        CommitWalker walker = new CommitWalker(commitServiceMock, commitIndexMock);
+        PushContext push = new PushContext();
+        walker.findNewCommits(repositoryMock, "0ld", "feature", push, new PushMetrics());
+        walker.findNewCommits(repositoryMock, CommitWalker.ZERO_HASH, "release", push, new PushMetrics());
+
+        assertThat(requests.size(), is(2));
+        assertThat(requests.get(0).getExcludes(), is(Collections.singleton("0ld")));
+        assertThat(requests.get(1).getExcludes(), is(Collections.singleton("feature")));
+    }
+
+    @Test
+    public void shouldNotWalkIndexedTips() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        Repository repositoryMock = mock(Repository.class);
+
+        when(commitIndexMock.isIndexed(eq("v1.0"), any(Repository.class))).thenReturn(true);
+
+        CommitWalker walker = new CommitWalker(commitServiceMock, commitIndexMock);
+        List<Commit> commits = walker.findNewCommits(repositoryMock, CommitWalker.ZERO_HASH, "v1.0");
+
+        assertThat(commits.size(), is(0));
+        verify(commitServiceMock, never()).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+    }
+
+    @Test
+    public void shouldStopWalkingAfterTheLimitWithoutRememberingTheTip() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        Repository repositoryMock = mock(Repository.class);
+
+        List<Commit> stream = new ArrayList<>();
+        Commit parent = commit("base");
+        for (int i = 0; i < 100; i++) {
+            parent = commit("commit" + i, parent);
+            stream.add(0, parent);
+        }
+        streamCommits(commitServiceMock, stream);
+
+        CommitWalker walker = new CommitWalker(commitServiceMock, commitIndexMock);
+        PushContext push = new PushContext();
+        List<Commit> commits = walker.findNewCommits(repositoryMock, "base", "commit99", push, new PushMetrics(),
+                10);
+
+        assertThat(commits.size(), is(11));
+        assertThat(push.isWalked("commit99"), is(false));
+    }
+
+    @Test
+    public void shouldListIndexedCommitsBetweenTips() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        Repository repositoryMock = mock(Repository.class);
+        List<CommitsBetweenRequest> requests = new ArrayList<>();
+
+        Commit first = commit("first", commit("base"));
+        Commit second = commit("second", first);
+        when(commitIndexMock.isIndexed(anyString(), any(Repository.class))).thenReturn(true);
+        doAnswer(invocation -> {
+            requests.add(invocation.getArgument(0));
+            CommitCallback callback = invocation.getArgument(1);
+            if (callback.onCommit(second)) {
+                callback.onCommit(first);
+            }
+            return null;
+        }).when(commitServiceMock).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+
+        CommitWalker walker = new CommitWalker(commitServiceMock, commitIndexMock);
+        List<Commit> commits = walker.findCommitsBetween(repositoryMock, "base", "second", new PushMetrics());
+
+        assertThat(commits, is(Arrays.asList(second, first)));
+        assertThat(requests.get(0).getExcludes(), is(Collections.singleton("base")));
+    }
+
+    private static void streamCommits(CommitService commitServiceMock, List<Commit> stream) {
+        doAnswer(invocation -> {
+            CommitCallback callback = invocation.getArgument(1);
+            for (Commit commit : stream) {
+                if (!callback.onCommit(commit)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(commitServiceMock).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+    }
+
+    private static Commit commit(String id, MinimalCommit... parents) {
+        Commit commit = mock(Commit.class);
+        when(commit.getId()).thenReturn(id);
+        when(commit.getParents()).thenReturn(Arrays.asList(parents));
+        return commit;
+    }
+}
@@ -0,0 +1,200 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.content.ContentService;
+import com.atlassian.bitbucket.io.TypeAwareOutputSupplier;
+import com.atlassian.bitbucket.repository.Repository;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FileValidationStageTest {
+
+    private static final String GOOD = "stuff1: false\nstring1: 'csso/proxy.conf.erb'\n";
+    private static final String BAD = "stuff1: false\nstring1: 'csso/proxy.conf.erb\n";
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final ExecutorService fetchExecutor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        fetchExecutor.shutdownNow();
+    }
+
+    @Test
+    public void shouldStopAtFirstInvalidFile() {
+        ContentService contentServiceMock = mock(ContentService.class);
+        Repository repositoryMock = mock(Repository.class);
+        List<YamlFile> files = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            files.add(serve(contentServiceMock, "good" + i + ".yaml", GOOD));
+        }
+        files.add(serve(contentServiceMock, "bad.yaml", BAD));
+
+        FileValidationStage stage = new FileValidationStage(new PipedContentReader(contentServiceMock, fetchExecutor),
+                new ValidationResultCache());
+        FileValidationStage.Result result = stage.validate(repositoryMock, files, settings(false, 60),
+                executor, FileValidationStage.NO_DEADLINE);
+
+        assertThat(result.getInvalid().size(), is(1));
+        assertThat(result.getInvalid().get(0).getFile().getPath(), is("bad.yaml"));
+        assertFalse(result.isTimedOut());
+    }
+
+    @Test
+    public void shouldReportEveryInvalidFileWhenAsked() {
+        ContentService contentServiceMock = mock(ContentService.class);
+        Repository repositoryMock = mock(Repository.class);
+        List<YamlFile> files = new ArrayList<>();
+        files.add(serve(contentServiceMock, "b.yaml", BAD));
+        files.add(serve(contentServiceMock, "good.yaml", GOOD));
+        files.add(serve(contentServiceMock, "a.yaml", BAD));
+
+        FileValidationStage stage = new FileValidationStage(new PipedContentReader(contentServiceMock, fetchExecutor),
+                new ValidationResultCache());
+        FileValidationStage.Result result = stage.validate(repositoryMock, files, settings(true, 60),
+                executor, FileValidationStage.NO_DEADLINE);
+
+        assertThat(result.getInvalid().size(), is(2));
+        assertThat(result.getInvalid().get(0).getFile().getPath(), is("a.yaml"));
+        assertThat(result.getInvalid().get(1).getFile().getPath(), is("b.yaml"));
+        assertThat(result.getChecked(), is(3));
+    }
+
+    @Test
+    public void shouldGiveUpWhenTheDeadlinePasses() throws InterruptedException {
+        ContentService contentServiceMock = mock(ContentService.class);
+        Repository repositoryMock = mock(Repository.class);
+        CountDownLatch release = new CountDownLatch(1);
+        List<YamlFile> files = new ArrayList<>();
+        files.add(file("slow.yaml"));
+        doAnswer(invocation -> {
+            release.await(10, TimeUnit.SECONDS);
+            return null;
+        }).when(contentServiceMock).streamFile(any(Repository.class), anyString(), anyString(), any(TypeAwareOutputSupplier.class));
+
+        FileValidationStage stage = new FileValidationStage(new PipedContentReader(contentServiceMock, fetchExecutor),
+                new ValidationResultCache());
+        FileValidationStage.Result result = stage.validate(repositoryMock, files, settings(false, 1),
+                executor, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+        release.countDown();
+
+        assertTrue(result.isTimedOut());
+        assertThat(result.getChecked(), is(0));
+        assertThat(result.getTotal(), is(1));
+    }
+
+    @Test
+    public void shouldNotFetchContentWithCachedOutcome() {
+        ContentService contentServiceMock = mock(ContentService.class);
+        Repository repositoryMock = mock(Repository.class);
+        ValidationResultCache cache = new ValidationResultCache();
+        List<YamlFile> files = new ArrayList<>();
+        files.add(serve(contentServiceMock, "cached.yaml", BAD));
+        cache.put(settings(false, 60).getVerdictFingerprint(), "cached.yaml-blob", ValidationOutcome.valid());
+
+        FileValidationStage stage = new FileValidationStage(new PipedContentReader(contentServiceMock, fetchExecutor),
+                cache);
+        FileValidationStage.Result result = stage.validate(repositoryMock, files, settings(false, 60),
+                executor, FileValidationStage.NO_DEADLINE);
+
+        assertThat(result.getInvalid().size(), is(0));
+        verify(contentServiceMock, never()).streamFile(any(Repository.class), anyString(), anyString(), any(TypeAwareOutputSupplier.class));
+    }
+
+    @Test
+    public void shouldCountCacheHitsAndParsedCharacters() {
+        ContentService contentServiceMock = mock(ContentService.class);
+        Repository repositoryMock = mock(Repository.class);
+        ValidationResultCache cache = new ValidationResultCache();
+        List<YamlFile> files = new ArrayList<>();
+        files.add(serve(contentServiceMock, "cached.yaml", GOOD));
+        files.add(serve(contentServiceMock, "fetched.yaml", GOOD));
+        cache.put(settings(false, 60).getVerdictFingerprint(), "cached.yaml-blob", ValidationOutcome.valid());
+        PushMetrics metrics = new PushMetrics();
+
+        FileValidationStage stage = new FileValidationStage(new PipedContentReader(contentServiceMock, fetchExecutor),
+                cache);
+        stage.validate(repositoryMock, files, settings(false, 60), executor, FileValidationStage.NO_DEADLINE, metrics);
+
+        assertThat(metrics.getFilesChecked(), is(2L));
+        assertThat(metrics.getCacheHits(), is(1L));
+        assertThat(metrics.getCharactersParsed(), is((long) GOOD.length()));
+    }
+
+    @Test
+    public void shouldRejectFilesWhichCannotBeRead() {
+        Repository repositoryMock = mock(Repository.class);
+        ContentFetcher brokenFetcher = (repository, files) -> new ContentFetcher.Session() {
+            @Override
+            public <T> T read(YamlFile file, ContentFetcher.ContentConsumer<T> consumer) throws IOException {
+                throw new IOException("Pipe closed");
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ValidationResultCache cache = new ValidationResultCache();
+        List<YamlFile> files = new ArrayList<>();
+        files.add(file("unreadable.yaml"));
+
+        FileValidationStage stage = new FileValidationStage(brokenFetcher, cache);
+        FileValidationStage.Result result = stage.validate(repositoryMock, files, settings(false, 60),
+                executor, FileValidationStage.NO_DEADLINE);
+
+        assertThat(result.getInvalid().size(), is(1));
+        assertThat(result.getInvalid().get(0).getFile().getPath(), is("unreadable.yaml"));
+        assertTrue(result.getInvalid().get(0).getOutcome().isUnreadable());
+        assertThat(result.getChecked(), is(1));
+        assertNull(cache.get(settings(false, 60).getVerdictFingerprint(), "unreadable.yaml-blob"));
+    }
+
+    private static YamlValidatorSettings settings(boolean reportAllErrors, int timeoutSeconds) {
+        return new YamlValidatorSettings.Builder()
+                .reportAllErrors(reportAllErrors)
+                .timeoutSeconds(timeoutSeconds)
+                .build();
+    }
+
+    private static YamlFile file(String path) {
+        Commit commit = mock(Commit.class);
+        when(commit.getId()).thenReturn("c0mm17");
+        return new YamlFile(path, commit, path + "-blob");
+    }
+
+    private static YamlFile serve(ContentService contentServiceMock, String path, String content) {
+        doAnswer(invocation -> {
+            TypeAwareOutputSupplier supplier = invocation.getArgument(3);
+            try (OutputStream out = supplier.getStream("text/plain")) {
+                out.write(content.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        }).when(contentServiceMock).streamFile(any(Repository.class), anyString(), eq(path), any(TypeAwareOutputSupplier.class));
+        return file(path);
+    }
+}
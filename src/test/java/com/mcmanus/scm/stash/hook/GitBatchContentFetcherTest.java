@@ -0,0 +1,262 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommand;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GitBatchContentFetcherTest {
+
+    private final ExecutorService batchExecutor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        batchExecutor.shutdownNow();
+    }
+
+    @Test
+    public void shouldReadEveryBlobFromOneProcess() throws IOException {
+        Map<String, byte[]> objects = new HashMap<>();
+        objects.put("b10b1", "first: 1\n".getBytes(StandardCharsets.UTF_8));
+        objects.put("b10b2", "second: 2\n".getBytes(StandardCharsets.UTF_8));
+        GitCommandBuilderFactory builderFactoryMock = catFile(objects);
+        ContentFetcher fallbackMock = fallback();
+
+        GitBatchContentFetcher fetcher = new GitBatchContentFetcher(builderFactoryMock, batchExecutor, fallbackMock);
+        List<YamlFile> files = Arrays.asList(file("a.yaml", "b10b1"), file("b.yaml", "b10b2"), file("c.yaml", "b10b1"));
+
+        List<String> contents = new ArrayList<>();
+        try (ContentFetcher.Session session = fetcher.open(mock(Repository.class), files)) {
+            for (YamlFile file : files) {
+                contents.add(session.read(file, GitBatchContentFetcherTest::readAll));
+            }
+        }
+
+        assertThat(contents, is(Arrays.asList("first: 1\n", "second: 2\n", "first: 1\n")));
+        verify(builderFactoryMock, times(1)).builder(any(Repository.class));
+    }
+
+    @Test
+    public void shouldStreamMissingAndUnknownBlobsInstead() throws IOException {
+        Map<String, byte[]> objects = new HashMap<>();
+        objects.put("b10b1", "first: 1\n".getBytes(StandardCharsets.UTF_8));
+        GitCommandBuilderFactory builderFactoryMock = catFile(objects);
+        ContentFetcher fallbackMock = fallback();
+
+        GitBatchContentFetcher fetcher = new GitBatchContentFetcher(builderFactoryMock, batchExecutor, fallbackMock);
+        List<YamlFile> files = Arrays.asList(file("a.yaml", "b10b1"), file("b.yaml", "m1ss1ng"), file("c.yaml", null));
+
+        List<String> contents = new ArrayList<>();
+        try (ContentFetcher.Session session = fetcher.open(mock(Repository.class), files)) {
+            for (YamlFile file : files) {
+                contents.add(session.read(file, GitBatchContentFetcherTest::readAll));
+            }
+        }
+
+        assertThat(contents, is(Arrays.asList("first: 1\n", "fallback: b.yaml\n", "fallback: c.yaml\n")));
+    }
+
+    @Test
+    public void shouldStreamBlobsTooLargeToBuffer() throws IOException {
+        Map<String, byte[]> objects = new HashMap<>();
+        objects.put("l4rg3", new byte[GitBatchContentFetcher.MAX_BUFFERED_BLOB + 1]);
+        objects.put("b10b1", "first: 1\n".getBytes(StandardCharsets.UTF_8));
+        ContentFetcher fallbackMock = fallback();
+
+        GitBatchContentFetcher fetcher = new GitBatchContentFetcher(catFile(objects), batchExecutor, fallbackMock);
+        List<YamlFile> files = Arrays.asList(file("large.yaml", "l4rg3"), file("a.yaml", "b10b1"));
+
+        List<String> contents = new ArrayList<>();
+        try (ContentFetcher.Session session = fetcher.open(mock(Repository.class), files)) {
+            for (YamlFile file : files) {
+                contents.add(session.read(file, GitBatchContentFetcherTest::readAll));
+            }
+        }
+
+        assertThat(contents, is(Arrays.asList("fallback: large.yaml\n", "first: 1\n")));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldStreamBlobsBeyondTheBudgetRatherThanWaitForIt() throws IOException {
+        int blobs = (int) (GitBatchContentFetcher.MAX_BUFFERED_BYTES / GitBatchContentFetcher.MAX_BUFFERED_BLOB) + 1;
+        Map<String, byte[]> objects = new HashMap<>();
+        List<YamlFile> files = new ArrayList<>();
+        for (int i = 0; i < blobs; i++) {
+            byte[] content = new byte[GitBatchContentFetcher.MAX_BUFFERED_BLOB];
+            Arrays.fill(content, (byte) 'a');
+            objects.put("b10b" + i, content);
+            files.add(file("first" + i + ".yaml", "b10b" + i));
+        }
+        for (int i = 0; i < blobs; i++) {
+            // the copies come last, so none of the buffered blobs is freed before the budget runs out
+            files.add(file("copy" + i + ".yaml", "b10b" + i));
+        }
+
+        GitBatchContentFetcher fetcher = new GitBatchContentFetcher(catFile(objects), batchExecutor, fallback());
+
+        List<String> contents = new ArrayList<>();
+        try (ContentFetcher.Session session = fetcher.open(mock(Repository.class), files)) {
+            for (YamlFile file : files) {
+                contents.add(session.read(file, reader -> {
+                    String content = readAll(reader);
+                    return content.startsWith("fallback") ? content : "buffered " + content.length();
+                }));
+            }
+        }
+
+        String buffered = "buffered " + GitBatchContentFetcher.MAX_BUFFERED_BLOB;
+        assertThat(contents.get(0), is(buffered));
+        assertThat(contents.get(blobs - 2), is(buffered));
+        assertThat(contents.get(blobs - 1), is("fallback: first" + (blobs - 1) + ".yaml\n"));
+        assertThat(contents.get(blobs), is(buffered));
+        assertThat(contents.get(2 * blobs - 1), is("fallback: copy" + (blobs - 1) + ".yaml\n"));
+    }
+
+    @Test
+    public void shouldStreamEveryFileWhenGitFails() throws IOException {
+        GitCommandBuilderFactory builderFactoryMock = mock(GitCommandBuilderFactory.class);
+        when(builderFactoryMock.builder(any(Repository.class))).thenThrow(new IllegalStateException("No git"));
+
+        GitBatchContentFetcher fetcher = new GitBatchContentFetcher(builderFactoryMock, batchExecutor, fallback());
+        List<YamlFile> files = Arrays.asList(file("a.yaml", "b10b1"), file("b.yaml", "b10b2"));
+
+        List<String> contents = new ArrayList<>();
+        try (ContentFetcher.Session session = fetcher.open(mock(Repository.class), files)) {
+            for (YamlFile file : files) {
+                contents.add(session.read(file, GitBatchContentFetcherTest::readAll));
+            }
+        }
+
+        assertThat(contents, is(Arrays.asList("fallback: a.yaml\n", "fallback: b.yaml\n")));
+    }
+
+    @Test
+    public void shouldStreamEveryFileWhenEveryReaderIsBusy() throws IOException, InterruptedException {
+        ValidationWorkerPool pool = new ValidationWorkerPool(1);
+        CountDownLatch busy = new CountDownLatch(1);
+        try {
+            pool.getBatchExecutor().execute(() -> {
+                try {
+                    busy.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Map<String, byte[]> objects = new HashMap<>();
+            objects.put("b10b1", "a: 1\n".getBytes(StandardCharsets.UTF_8));
+
+            GitBatchContentFetcher fetcher = new GitBatchContentFetcher(catFile(objects), pool.getBatchExecutor(),
+                    fallback());
+            YamlFile file = file("a.yaml", "b10b1");
+            List<YamlFile> files = Collections.singletonList(file);
+
+            try (ContentFetcher.Session session = fetcher.open(mock(Repository.class), files)) {
+                assertThat(session.read(file, GitBatchContentFetcherTest::readAll), is("fallback: a.yaml\n"));
+            }
+        } finally {
+            busy.countDown();
+            pool.onStop();
+        }
+    }
+
+    /**
+     * A stand in for {@code git cat-file --batch}, which answers from the given objects
+     */
+    private static GitCommandBuilderFactory catFile(Map<String, byte[]> objects) {
+        GitCommandBuilderFactory builderFactoryMock = mock(GitCommandBuilderFactory.class);
+        GitScmCommandBuilder builderMock = mock(GitScmCommandBuilder.class);
+        AtomicReference<CommandInputHandler> inputHandler = new AtomicReference<>();
+
+        when(builderFactoryMock.builder(any(Repository.class))).thenReturn(builderMock);
+        when(builderMock.command("cat-file")).thenReturn(builderMock);
+        when(builderMock.argument("--batch")).thenReturn(builderMock);
+        doAnswer(invocation -> {
+            inputHandler.set(invocation.getArgument(0));
+            return builderMock;
+        }).when(builderMock).inputHandler(any(CommandInputHandler.class));
+        doAnswer(invocation -> {
+            CommandOutputHandler<?> outputHandler = invocation.getArgument(0);
+            GitCommand<Object> command = mock(GitCommand.class);
+            when(command.call()).thenAnswer(call -> {
+                ByteArrayOutputStream input = new ByteArrayOutputStream();
+                inputHandler.get().process(input);
+
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                for (String id : input.toString("US-ASCII").split("\n")) {
+                    byte[] content = objects.get(id);
+                    if (content == null) {
+                        output.write((id + " missing\n").getBytes(StandardCharsets.US_ASCII));
+                    } else {
+                        output.write((id + " blob " + content.length + "\n").getBytes(StandardCharsets.US_ASCII));
+                        output.write(content);
+                        output.write('\n');
+                    }
+                }
+                outputHandler.process(new ByteArrayInputStream(output.toByteArray()));
+                return null;
+            });
+            return command;
+        }).when(builderMock).build(any(CommandOutputHandler.class));
+
+        return builderFactoryMock;
+    }
+
+    private static ContentFetcher fallback() throws IOException {
+        ContentFetcher fallbackMock = mock(ContentFetcher.class);
+        ContentFetcher.Session sessionMock = mock(ContentFetcher.Session.class);
+        when(fallbackMock.open(any(Repository.class), any())).thenReturn(sessionMock);
+        when(sessionMock.read(any(YamlFile.class), any())).thenAnswer(invocation -> {
+            YamlFile file = invocation.getArgument(0);
+            ContentFetcher.ContentConsumer<?> consumer = invocation.getArgument(1);
+            return consumer.read(new StringReader("fallback: " + file.getPath() + "\n"));
+        });
+        return fallbackMock;
+    }
+
+    private static YamlFile file(String path, String contentId) {
+        Commit commit = mock(Commit.class);
+        when(commit.getId()).thenReturn("c0mm17");
+        return new YamlFile(path, commit, contentId);
+    }
+
+    private static String readAll(Reader reader) throws IOException {
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[1024];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            content.append(buffer, 0, read);
+        }
+        return content.toString();
+    }
+}
@@ -0,0 +1,147 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonSchemaTest {
+
+    private static final String DEPLOYMENT = "{"
+            + "\"type\": \"object\","
+            + "\"required\": [\"name\", \"replicas\"],"
+            + "\"additionalProperties\": false,"
+            + "\"properties\": {"
+            + "  \"name\": {\"type\": \"string\", \"pattern\": \"^[a-z-]+$\", \"maxLength\": 20},"
+            + "  \"replicas\": {\"type\": \"integer\", \"minimum\": 1, \"maximum\": 10},"
+            + "  \"env\": {\"enum\": [\"dev\", \"prod\"]},"
+            + "  \"ports\": {\"type\": \"array\", \"minItems\": 1, \"items\": {\"$ref\": \"#/definitions/port\"}},"
+            + "  \"debug\": {\"type\": \"boolean\"},"
+            + "  \"ratio\": {\"type\": \"number\", \"exclusiveMaximum\": 1}"
+            + "},"
+            + "\"definitions\": {\"port\": {\"type\": \"integer\", \"minimum\": 1, \"maximum\": 65535}}"
+            + "}";
+
+    private final JsonSchema deployment = JsonSchema.compile("deployment", DEPLOYMENT);
+
+    @Test
+    public void shouldAcceptMatchingDocument() {
+        assertValid(deployment, "name: web\nreplicas: 3\nenv: prod\nports: [80, 0x1BB]\ndebug: yes\nratio: 0.5\n");
+    }
+
+    @Test
+    public void shouldReportPathAndPositionOfMismatch() {
+        ValidationOutcome outcome = validate(deployment, "name: web\nreplicas: 3\nports:\n  - 80\n  - http\n");
+
+        assertFalse(outcome.isValid());
+        assertThat(outcome.getSummary(), is("5:5 in document 1: $.ports[1]: expected integer but found string"));
+    }
+
+    @Test
+    public void shouldRejectEachKindOfMismatch() {
+        assertProblem(deployment, "name: web\n", "$: missing required property replicas");
+        assertProblem(deployment, "name: web\nreplicas: 3\nimage: nginx\n", "$.image: no value is allowed here");
+        assertProblem(deployment, "name: Web\nreplicas: 3\n", "$.name: expected a value matching ^[a-z-]+$");
+        assertProblem(deployment, "name: web\nreplicas: 11\n", "$.replicas: expected at most 10");
+        assertProblem(deployment, "name: web\nreplicas: 3\nenv: test\n", "$.env: expected one of [\"dev\", \"prod\"]");
+        assertProblem(deployment, "name: web\nreplicas: 3\nports: []\n",
+                "$.ports: expected at least 1 items but found 0");
+        assertProblem(deployment, "name: web\nreplicas: 3\nratio: 1.0\n", "$.ratio: expected less than 1");
+        assertProblem(deployment, "- web\n", "$: expected object but found array");
+    }
+
+    @Test
+    public void shouldApplyMergeKeysAndFollowAliases() {
+        String yaml = "base: &base\n  name: web\n  replicas: 2\n"
+                + "service:\n  <<: *base\n  replicas: 4\n";
+        JsonSchema schema = JsonSchema.compile("merge", "{\"additionalProperties\": {\"allOf\": ["
+                + "{\"required\": [\"name\", \"replicas\"]},"
+                + "{\"anyOf\": [{\"properties\": {\"replicas\": {\"const\": 2}}}, {\"required\": [\"name\"]}]}"
+                + "]}, \"properties\": {\"service\": {\"properties\": {\"replicas\": {\"const\": 4}}}}}");
+
+        assertValid(schema, yaml);
+        assertProblem(schema, "service:\n  <<: {name: web, replicas: 4}\n  replicas: 2\n",
+                "$.service.replicas: expected 4");
+    }
+
+    @Test
+    public void shouldStopAtRecursiveAliases() {
+        JsonSchema schema = JsonSchema.compile("tree", "{\"$ref\": \"#/definitions/node\", \"definitions\": {"
+                + "\"node\": {\"type\": \"array\", \"items\": {\"$ref\": \"#/definitions/node\"}}}}");
+
+        assertValid(schema, "&loop [*loop, []]\n");
+    }
+
+    @Test
+    public void shouldRejectUnsupportedKeywordsWhenCompiling() {
+        try {
+            JsonSchema.compile("unsupported", "{\"properties\": {\"a\": {\"patternProperties\": {}}}}");
+            fail("The schema should not compile");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(),
+                    is("#/properties/a/patternProperties: the keyword patternProperties is not supported"));
+        }
+    }
+
+    @Test
+    public void shouldAgreeAcrossEngines() {
+        String yaml = "name: web\nreplicas: 0\n";
+        for (YamlValidatorSettings.Engine engine : YamlValidatorSettings.Engine.values()) {
+            YamlFileValidator validator = new YamlFileValidator(new YamlValidatorSettings.Builder()
+                    .engine(engine)
+                    .build());
+            ValidationOutcome outcome = validator.validate(new StringReader(yaml), () -> false, deployment);
+
+            assertThat(engine + " " + outcome.getDetail(), outcome.getSummary(),
+                    is("2:11 in document 1: $.replicas: expected at least 1"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldCheckNodesReachedThroughManyAliasesOnce() {
+        JsonSchema nested = JsonSchema.compile("nested", "{\"anyOf\": [{\"type\": \"string\", \"pattern\": \"^lol$\"},"
+                + " {\"type\": \"array\", \"items\": {\"$ref\": \"#\"}}]}");
+        StringBuilder yaml = new StringBuilder("- &a0 [lol, lol, lol, lol, lol, lol, lol, lol, lol, lol]\n");
+        for (int i = 1; i < 10; i++) {
+            yaml.append("- &a").append(i).append(" [");
+            for (int j = 0; j < 10; j++) {
+                yaml.append(j == 0 ? "" : ", ").append("*a").append(i - 1);
+            }
+            yaml.append("]\n");
+        }
+
+        assertValid(nested, yaml.toString());
+    }
+
+    @Test(timeout = 20000)
+    public void shouldStopPatternsWhichBacktrackTooLong() {
+        JsonSchema backtracking = JsonSchema.compile("backtracking", "{\"pattern\": \"^(a+)+\\\\1$\"}");
+        YamlFileValidator validator = new YamlFileValidator(new YamlValidatorSettings.Builder()
+                .fileTimeoutSeconds(1)
+                .build());
+
+        ValidationOutcome outcome = validator.validate(new StringReader("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!\n"),
+                () -> false, backtracking);
+
+        assertFalse(outcome.isValid());
+        assertThat(outcome.getLimit(), is(ResourceLimit.TIME));
+    }
+
+    private static ValidationOutcome validate(JsonSchema schema, String yaml) {
+        return new YamlFileValidator().validate(new StringReader(yaml), () -> false, schema);
+    }
+
+    private static void assertValid(JsonSchema schema, String yaml) {
+        ValidationOutcome outcome = validate(schema, yaml);
+        assertTrue("Error " + outcome.getDetail(), outcome.isValid());
+    }
+
+    private static void assertProblem(JsonSchema schema, String yaml, String problem) {
+        assertThat(validate(schema, yaml).getProblem(), is(problem));
+    }
+}
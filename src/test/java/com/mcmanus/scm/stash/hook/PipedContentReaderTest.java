@@ -0,0 +1,119 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.content.ContentService;
+import com.atlassian.bitbucket.io.TypeAwareOutputSupplier;
+import com.atlassian.bitbucket.repository.Repository;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class PipedContentReaderTest {
+
+    private final ExecutorService fetchExecutor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        fetchExecutor.shutdownNow();
+    }
+
+    @Test
+    public void shouldDecodeUtf8ByDefault() throws IOException {
+        ContentService contentServiceMock = mock(ContentService.class);
+        serve(contentServiceMock, "name: 'Zo\u00eb'\n".getBytes(StandardCharsets.UTF_8));
+
+        PipedContentReader contentReader = new PipedContentReader(contentServiceMock, fetchExecutor);
+        String content = contentReader.read(mock(Repository.class), "c0mm17", "a.yaml", PipedContentReaderTest::readAll);
+
+        assertThat(content, is("name: 'Zo\u00eb'\n"));
+    }
+
+    @Test
+    public void shouldDecodeUtf16WithByteOrderMark() throws IOException {
+        ContentService contentServiceMock = mock(ContentService.class);
+        byte[] text = "name: 'Zo\u00eb'\n".getBytes(StandardCharsets.UTF_16LE);
+        byte[] bytes = new byte[text.length + 2];
+        bytes[0] = (byte) 0xFF;
+        bytes[1] = (byte) 0xFE;
+        System.arraycopy(text, 0, bytes, 2, text.length);
+        serve(contentServiceMock, bytes);
+
+        PipedContentReader contentReader = new PipedContentReader(contentServiceMock, fetchExecutor);
+        String content = contentReader.read(mock(Repository.class), "c0mm17", "a.yaml", PipedContentReaderTest::readAll);
+
+        assertThat(content, is("name: 'Zo\u00eb'\n"));
+    }
+
+    @Test
+    public void shouldValidateLargeFileWithoutBufferingIt() throws IOException {
+        ContentService contentServiceMock = mock(ContentService.class);
+        AtomicLong written = new AtomicLong();
+        byte[] line = "key: 'value'\n".getBytes(StandardCharsets.UTF_8);
+        doAnswer(invocation -> {
+            TypeAwareOutputSupplier supplier = invocation.getArgument(3);
+            try (OutputStream out = supplier.getStream("text/plain")) {
+                out.write("- ".getBytes(StandardCharsets.UTF_8));
+                // 20 MB of list items, far more than the pipe holds at once
+                for (int i = 0; i < 20 * 1024 * 1024 / line.length; i++) {
+                    out.write(line);
+                    written.addAndGet(line.length);
+                }
+            }
+            return null;
+        }).when(contentServiceMock).streamFile(any(Repository.class), anyString(), anyString(), any(TypeAwareOutputSupplier.class));
+
+        PipedContentReader contentReader = new PipedContentReader(contentServiceMock, fetchExecutor);
+        ValidationOutcome outcome = contentReader.read(mock(Repository.class), "c0mm17", "big.yaml",
+                reader -> new YamlFileValidator().validate(reader, () -> false));
+
+        // the second line is not part of the list, so the parser stops long before the end of the file
+        assertFalse(outcome.isValid());
+        assertTrue(written.get() < 20 * 1024 * 1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailWhenTheContentCannotBeRead() throws IOException {
+        ContentService contentServiceMock = mock(ContentService.class);
+        doThrow(new IllegalStateException("No such path")).when(contentServiceMock)
+                .streamFile(any(Repository.class), anyString(), anyString(), any(TypeAwareOutputSupplier.class));
+
+        PipedContentReader contentReader = new PipedContentReader(contentServiceMock, fetchExecutor);
+        contentReader.read(mock(Repository.class), "c0mm17", "missing.yaml", PipedContentReaderTest::readAll);
+    }
+
+    private static void serve(ContentService contentServiceMock, byte[] bytes) {
+        doAnswer(invocation -> {
+            TypeAwareOutputSupplier supplier = invocation.getArgument(3);
+            try (OutputStream out = supplier.getStream("text/plain")) {
+                out.write(bytes);
+            }
+            return null;
+        }).when(contentServiceMock).streamFile(any(Repository.class), anyString(), anyString(), any(TypeAwareOutputSupplier.class));
+    }
+
+    private static String readAll(Reader reader) throws IOException {
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[1024];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            content.append(buffer, 0, read);
+        }
+        return content.toString();
+    }
+}
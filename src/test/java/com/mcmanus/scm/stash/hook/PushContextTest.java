@@ -0,0 +1,40 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PushContextTest {
+
+    @Test
+    public void shouldKeepEachVersionOfAPathOnce() {
+        PushContext push = new PushContext();
+
+        push.addFiles(Arrays.asList(file("a.yaml", "c0mm171", "b10b1"), file("b.yaml", "c0mm171", "b10b2")));
+        push.addFiles(Arrays.asList(file("a.yaml", "c0mm172", "b10b1"), file("b.yaml", "c0mm172", "b10b3")));
+
+        assertThat(push.getFiles().size(), is(3));
+    }
+
+    @Test
+    public void shouldTellVersionsWithoutABlobIdApartByTheirCommit() {
+        PushContext push = new PushContext();
+
+        push.addFiles(Arrays.asList(file("a.yaml", "c0mm171", null), file("a.yaml", "c0mm171", null)));
+        push.addFiles(Arrays.asList(file("a.yaml", "c0mm172", null)));
+
+        assertThat(push.getFiles().size(), is(2));
+    }
+
+    private static YamlFile file(String path, String commitId, String contentId) {
+        Commit commit = mock(Commit.class);
+        when(commit.getId()).thenReturn(commitId);
+        return new YamlFile(path, commit, contentId);
+    }
+}
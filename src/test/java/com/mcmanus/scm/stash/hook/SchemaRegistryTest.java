@@ -0,0 +1,184 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommand;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SchemaRegistryTest {
+
+    private static final String DEPLOY_SCHEMA = "{\"type\": \"object\", \"required\": [\"name\"]}";
+
+    @Test
+    public void shouldCompileInlineSchemasOncePerSettings() {
+        GitCommandBuilderFactory builderFactoryMock = mock(GitCommandBuilderFactory.class);
+        SchemaRegistry registry = new SchemaRegistry(builderFactoryMock);
+        YamlValidatorSettings settings = settings("{\"deploy/**\": " + DEPLOY_SCHEMA + "}");
+        YamlFile deploy = file("deploy/web.yaml", "c0mm17");
+        YamlFile other = file("other.yaml", "c0mm17");
+
+        for (int push = 0; push < 3; push++) {
+            SchemaRegistry.Schemas schemas = registry.forPush(mock(Repository.class), settings,
+                    Arrays.asList(deploy, other));
+
+            assertThat(schemas.get(deploy), notNullValue());
+            assertThat(schemas.get(other), nullValue());
+        }
+        assertThat(registry.getCompileCount(), is(1L));
+        verify(builderFactoryMock, never()).builder(any(Repository.class));
+    }
+
+    @Test
+    public void shouldCompileStoredSchemasOncePerBlob() {
+        Map<String, String> names = new HashMap<>();
+        names.put("c0mm171:schemas/deploy.json", "5c4e3a blob " + DEPLOY_SCHEMA.length());
+        names.put("c0mm172:schemas/deploy.json", "5c4e3a blob " + DEPLOY_SCHEMA.length());
+        Map<String, String> blobs = new HashMap<>();
+        blobs.put("5c4e3a", DEPLOY_SCHEMA);
+        GitCommandBuilderFactory builderFactoryMock = catFile(names, blobs);
+        SchemaRegistry registry = new SchemaRegistry(builderFactoryMock);
+        YamlValidatorSettings settings = settings("{\"deploy/**\": \"schemas/deploy.json\"}");
+        YamlFile first = file("deploy/web.yaml", "c0mm171");
+        YamlFile second = file("deploy/db.yaml", "c0mm172");
+
+        for (int push = 0; push < 3; push++) {
+            SchemaRegistry.Schemas schemas = registry.forPush(mock(Repository.class), settings,
+                    Arrays.asList(first, second));
+
+            assertThat(schemas.get(first).getId(), is("schemas/deploy.json@5c4e3a"));
+            assertThat(schemas.get(second), is(schemas.get(first)));
+        }
+        // the mappings and the one blob, with one batch check per push and a single read
+        assertThat(registry.getCompileCount(), is(2L));
+        verify(builderFactoryMock, times(4)).builder(any(Repository.class));
+    }
+
+    @Test
+    public void shouldOnlyCheckSyntaxWhereTheStoredSchemaIsMissing() {
+        GitCommandBuilderFactory builderFactoryMock = catFile(new HashMap<>(), new HashMap<>());
+        SchemaRegistry registry = new SchemaRegistry(builderFactoryMock);
+        YamlFile file = file("deploy/web.yaml", "0ld");
+
+        SchemaRegistry.Schemas schemas = registry.forPush(mock(Repository.class),
+                settings("{\"deploy/**\": \"schemas/deploy.json\"}"), Arrays.asList(file));
+
+        assertThat(schemas.get(file), nullValue());
+    }
+
+    @Test
+    public void shouldRejectFilesWhoseStoredSchemaCannotBeRead() {
+        GitCommandBuilderFactory builderFactoryMock = mock(GitCommandBuilderFactory.class);
+        when(builderFactoryMock.builder(any(Repository.class))).thenThrow(new IllegalStateException("No git"));
+        SchemaRegistry registry = new SchemaRegistry(builderFactoryMock);
+        YamlFile file = file("deploy/web.yaml", "c0mm17");
+
+        SchemaRegistry.Schemas schemas = registry.forPush(mock(Repository.class),
+                settings("{\"deploy/**\": \"schemas/deploy.json\"}"), Arrays.asList(file));
+
+        assertThat(schemas.get(file), notNullValue());
+        assertFalse(schemas.get(file).isLasting());
+        ValidationOutcome outcome = new YamlFileValidator().validate(new StringReader("name: web\n"), () -> false,
+                schemas.get(file));
+        assertFalse(outcome.isValid());
+        assertTrue(outcome.getProblem().contains("No git"));
+    }
+
+    @Test
+    public void shouldIdentifyBrokenSettingsByTheirProblem() {
+        SchemaRegistry registry = new SchemaRegistry(mock(GitCommandBuilderFactory.class));
+        YamlFile file = file("deploy/web.yaml", "c0mm17");
+
+        JsonSchema first = registry.forPush(mock(Repository.class), settings("[1]"), Arrays.asList(file)).get(file);
+        JsonSchema second = registry.forPush(mock(Repository.class), settings("{\"deploy/**\": 1}"),
+                Arrays.asList(file)).get(file);
+
+        assertFalse(first.getId().equals(second.getId()));
+    }
+
+    private static YamlValidatorSettings settings(String schemas) {
+        return new YamlValidatorSettings.Builder()
+                .schemas(schemas)
+                .build();
+    }
+
+    private static YamlFile file(String path, String commitId) {
+        Commit commit = mock(Commit.class);
+        when(commit.getId()).thenReturn(commitId);
+        return new YamlFile(path, commit, null);
+    }
+
+    /**
+     * Answers {@code cat-file --batch-check} from the object names and {@code cat-file --batch} from the blobs
+     */
+    private static GitCommandBuilderFactory catFile(Map<String, String> names, Map<String, String> blobs) {
+        GitCommandBuilderFactory builderFactoryMock = mock(GitCommandBuilderFactory.class);
+        GitScmCommandBuilder builderMock = mock(GitScmCommandBuilder.class);
+        AtomicReference<String> mode = new AtomicReference<>();
+        AtomicReference<CommandInputHandler> inputHandler = new AtomicReference<>();
+
+        when(builderFactoryMock.builder(any(Repository.class))).thenReturn(builderMock);
+        when(builderMock.command("cat-file")).thenReturn(builderMock);
+        doAnswer(invocation -> {
+            mode.set(invocation.getArgument(0));
+            return builderMock;
+        }).when(builderMock).argument(anyString());
+        doAnswer(invocation -> {
+            inputHandler.set(invocation.getArgument(0));
+            return builderMock;
+        }).when(builderMock).inputHandler(any(CommandInputHandler.class));
+        doAnswer(invocation -> {
+            CommandOutputHandler<List<String>> outputHandler = invocation.getArgument(0);
+            boolean check = "--batch-check".equals(mode.get());
+            GitCommand<Object> command = mock(GitCommand.class);
+            when(command.call()).thenAnswer(call -> {
+                ByteArrayOutputStream input = new ByteArrayOutputStream();
+                inputHandler.get().process(input);
+
+                StringBuilder output = new StringBuilder();
+                for (String name : input.toString("UTF-8").split("\n")) {
+                    if (check) {
+                        output.append(names.getOrDefault(name, name + " missing")).append('\n');
+                    } else {
+                        String content = blobs.get(name);
+                        output.append(name).append(" blob ").append(content.length()).append('\n')
+                                .append(content).append('\n');
+                    }
+                }
+                outputHandler.process(new ByteArrayInputStream(output.toString().getBytes(StandardCharsets.UTF_8)));
+                return outputHandler.getOutput();
+            });
+            return command;
+        }).when(builderMock).build(any(CommandOutputHandler.class));
+
+        return builderFactoryMock;
+    }
+}
@@ -0,0 +1,169 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ValidationAuditorTest {
+
+    private final Map<String, Object> stored = new HashMap<>();
+    private final List<Runnable> queued = new ArrayList<>();
+    private PluginSettingsFactory pluginSettingsFactoryMock;
+    private SecurityService securityServiceMock;
+    private ValidationAuditor auditor;
+    private Repository repositoryMock;
+
+    @Before
+    public void setUp() throws Throwable {
+        pluginSettingsFactoryMock = mock(PluginSettingsFactory.class);
+        PluginSettings pluginSettingsMock = mock(PluginSettings.class);
+        securityServiceMock = mock(SecurityService.class);
+        EscalatedSecurityContext securityContextMock = mock(EscalatedSecurityContext.class);
+
+        when(pluginSettingsFactoryMock.createGlobalSettings()).thenReturn(pluginSettingsMock);
+        when(pluginSettingsMock.get(anyString())).thenAnswer(invocation ->
+                stored.get(invocation.<String>getArgument(0)));
+        when(pluginSettingsMock.put(anyString(), any())).thenAnswer(invocation ->
+                stored.put(invocation.getArgument(0), invocation.getArgument(1)));
+        when(securityServiceMock.withPermission(any(Permission.class), anyString())).thenReturn(securityContextMock);
+        when(securityContextMock.call(any())).thenAnswer(invocation ->
+                invocation.<Operation<?, ?>>getArgument(0).perform());
+
+        auditor = new ValidationAuditor(pluginSettingsFactoryMock, securityServiceMock, queued::add);
+        repositoryMock = mock(Repository.class);
+        when(repositoryMock.getId()).thenReturn(7);
+    }
+
+    @Test
+    public void shouldOnlyAuditExpectedRefChangesOnceTheyAreApplied() {
+        RefChange expected = refChange("n3w7ip");
+        RefChange checked = refChange("0th3r");
+        List<RefChange> audited = new ArrayList<>();
+
+        auditor.expect(repositoryMock, expected, YamlValidatorSettings.defaults());
+        auditor.start(repositoryMock, Arrays.asList(expected, checked),
+                (repository, refChange, settings, audit) -> audited.add(refChange));
+
+        assertThat(auditor.getAudits(7).get(0).getStatus(), is(ValidationAuditor.Status.QUEUED));
+        queued.forEach(Runnable::run);
+
+        assertThat(audited, is(Collections.singletonList(expected)));
+        assertThat(auditor.getAudits(7).size(), is(1));
+        assertThat(auditor.getAudits(7).get(0).getStatus(), is(ValidationAuditor.Status.PASSED));
+        assertThat(auditor.getAudits(8).size(), is(0));
+    }
+
+    @Test
+    public void shouldKeepTheFirstFindingsAndCountTheRest() {
+        RefChange refChange = refChange("n3w7ip");
+
+        auditor.expect(repositoryMock, refChange, YamlValidatorSettings.defaults());
+        auditor.start(repositoryMock, Collections.singletonList(refChange), (repository, change, settings, audit) -> {
+            audit.checked(3, 80);
+            for (int i = 0; i < 80; i++) {
+                audit.invalid("config/file" + i + ".yaml", "n3w7ip", "found undefined alias base");
+            }
+        });
+        queued.forEach(Runnable::run);
+
+        ValidationAuditor.Audit audit = auditor.getAudits(7).get(0);
+        assertThat(audit.getStatus(), is(ValidationAuditor.Status.FAILED));
+        assertThat(audit.getInvalid(), is(80));
+        assertThat(audit.getFindings().size(), is(ValidationAuditor.MAX_FINDINGS));
+        assertThat(audit.getFindings().get(0).getPath(), is("config/file0.yaml"));
+    }
+
+    @Test
+    public void shouldKeepTheLatestAuditsOfARepository() {
+        for (int i = 0; i < ValidationAuditor.MAX_AUDITS + 5; i++) {
+            RefChange refChange = refChange("n3w7ip" + i);
+            auditor.expect(repositoryMock, refChange, YamlValidatorSettings.defaults());
+            auditor.start(repositoryMock, Collections.singletonList(refChange),
+                    (repository, change, settings, audit) -> {
+                        throw new IllegalStateException("no such commit " + change.getToHash());
+                    });
+        }
+        queued.forEach(Runnable::run);
+
+        List<ValidationAuditor.Audit> audits = auditor.getAudits(7);
+        assertThat(audits.size(), is(ValidationAuditor.MAX_AUDITS));
+        assertThat(audits.get(0).getStatus(), is(ValidationAuditor.Status.ERROR));
+        assertThat(audits.get(0).getError(), is("no such commit n3w7ip" + (ValidationAuditor.MAX_AUDITS + 4)));
+    }
+
+    @Test
+    public void shouldStopTheAuditThreadWhenThePluginStops() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ValidationAuditor stoppable = new ValidationAuditor(mock(PluginSettingsFactory.class),
+                mock(SecurityService.class), executor);
+
+        stoppable.onStop();
+
+        assertTrue(executor.isShutdown());
+    }
+
+    @Test
+    public void shouldFailAuditsStartedWhileThePluginStops() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ValidationAuditor stopped = new ValidationAuditor(pluginSettingsFactoryMock, securityServiceMock, executor);
+        RefChange refChange = refChange("n3w7ip");
+        stopped.onStop();
+
+        stopped.expect(repositoryMock, refChange, YamlValidatorSettings.defaults());
+        stopped.start(repositoryMock, Collections.singletonList(refChange), (repository, change, settings, audit) -> {
+        });
+
+        ValidationAuditor.Audit audit = stopped.getAudits(7).get(0);
+        assertThat(audit.getStatus(), is(ValidationAuditor.Status.ERROR));
+        assertThat(audit.getError(), is("The audit was abandoned when the plugin stopped"));
+    }
+
+    @Test
+    public void shouldFailAuditsLeftQueuedWhenThePluginLastStopped() throws InterruptedException {
+        RefChange refChange = refChange("n3w7ip");
+        auditor.expect(repositoryMock, refChange, YamlValidatorSettings.defaults());
+        auditor.start(repositoryMock, Collections.singletonList(refChange), (repository, change, settings, audit) -> {
+        });
+        auditor.onStop();
+        Thread.sleep(10);
+
+        ValidationAuditor restarted = new ValidationAuditor(pluginSettingsFactoryMock, securityServiceMock,
+                queued::add);
+
+        assertThat(auditor.getAudits(7).get(0).getStatus(), is(ValidationAuditor.Status.QUEUED));
+        ValidationAuditor.Audit audit = restarted.getAudits(7).get(0);
+        assertThat(audit.getStatus(), is(ValidationAuditor.Status.ERROR));
+        assertThat(audit.getError(), is("The audit was abandoned when the plugin stopped"));
+    }
+
+    private static RefChange refChange(String toHash) {
+        RefChange refChange = mock(RefChange.class);
+        when(refChange.getFromHash()).thenReturn("0ld7ip");
+        when(refChange.getToHash()).thenReturn(toHash);
+        return refChange;
+    }
+}
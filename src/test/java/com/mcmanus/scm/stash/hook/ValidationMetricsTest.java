@@ -0,0 +1,124 @@
+package com.mcmanus.scm.stash.hook;
+
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.Repository;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ValidationMetricsTest {
+
+    @Test
+    public void shouldAggregatePushes() {
+        ValidationMetrics metrics = new ValidationMetrics();
+        Repository repository = repository("PRJ", "config");
+
+        PushMetrics accepted = new PushMetrics();
+        accepted.commitsVisited(12);
+        accepted.fileChecked(100);
+        accepted.cacheHit();
+        metrics.record(repository, accepted);
+
+        PushMetrics rejected = new PushMetrics();
+        rejected.commitsVisited(3);
+        rejected.fileChecked(40);
+        rejected.rejected(ValidationOutcome.invalid("found unexpected end of stream"));
+        rejected.rejected(ValidationOutcome.limitExceeded(ResourceLimit.DEPTH, "too deep"));
+        rejected.rejected(ValidationOutcome.limitExceeded(ResourceLimit.DEPTH, "too deep"));
+        metrics.record(repository, rejected);
+
+        assertThat(metrics.getPushCount(), is(2L));
+        assertThat(metrics.getRejectedPushCount(), is(1L));
+        assertThat(metrics.getCommitsVisited(), is(15L));
+        assertThat(metrics.getFilesChecked(), is(3L));
+        assertThat(metrics.getCharactersParsed(), is(140L));
+        assertThat(metrics.getCacheHits(), is(1L));
+        assertThat(metrics.getRejectionsByReason().get(PushMetrics.SYNTAX), is(1L));
+        assertThat(metrics.getRejectionsByReason().get("limit.depth"), is(2L));
+        assertThat(metrics.getPushesByRepository().get("PRJ/config"), is(2L));
+        assertThat(metrics.getRejectedPushesByRepository().get("PRJ/config"), is(1L));
+    }
+
+    @Test
+    public void shouldCountFurtherRepositoriesTogether() {
+        ValidationMetrics metrics = new ValidationMetrics();
+        for (int i = 0; i < ValidationMetrics.MAX_REPOSITORIES + 10; i++) {
+            metrics.record(repository("PRJ", "repo" + i), new PushMetrics());
+        }
+        metrics.record(repository("PRJ", "repo0"), new PushMetrics());
+
+        Map<String, Long> pushes = metrics.getPushesByRepository();
+        assertThat(pushes.size(), is(ValidationMetrics.MAX_REPOSITORIES + 1));
+        assertThat(pushes.get("PRJ/repo0"), is(2L));
+        assertThat(pushes.get(ValidationMetrics.OTHER_REPOSITORIES), is(10L));
+    }
+
+    @Test
+    public void shouldTakePercentilesFromBuckets() {
+        ValidationMetrics.Histogram histogram = new ValidationMetrics.Histogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(150));
+        }
+
+        assertThat(histogram.percentileMillis(0.50), is(5L));
+        assertThat(histogram.percentileMillis(0.95), is(150L));
+        assertThat(histogram.maxMillis(), is(150L));
+        assertThat(histogram.meanMillis(), is(17.7));
+    }
+
+    @Test
+    public void shouldResetEveryAggregate() {
+        ValidationMetrics metrics = new ValidationMetrics();
+        PushMetrics push = new PushMetrics();
+        push.fileChecked(10);
+        push.rejected(PushMetrics.TIMEOUT);
+        metrics.record(repository("PRJ", "config"), push);
+
+        metrics.reset();
+
+        assertThat(metrics.getPushCount(), is(0L));
+        assertThat(metrics.getFilesChecked(), is(0L));
+        assertTrue(metrics.getRejectionsByReason().isEmpty());
+        assertTrue(metrics.getPushesByRepository().isEmpty());
+        assertThat(metrics.getMaxMillisByPhase().get(ValidationMetrics.PUSH), is(0L));
+    }
+
+    @Test
+    public void shouldPublishOverJmx() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ValidationMetrics.OBJECT_NAME);
+        ValidationMetrics metrics = new ValidationMetrics();
+        metrics.record(repository("PRJ", "config"), new PushMetrics());
+
+        metrics.onStart();
+        try {
+            assertThat(server.getAttribute(name, "PushCount"), is(1L));
+        } finally {
+            metrics.onStop();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    private static Repository repository(String projectKey, String slug) {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn(projectKey);
+        Repository repository = mock(Repository.class);
+        when(repository.getProject()).thenReturn(project);
+        when(repository.getSlug()).thenReturn(slug);
+        return repository;
+    }
+}
@@ -0,0 +1,75 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class ValidationResultCacheTest {
+
+    @Test
+    public void shouldReturnCachedOutcomeForSameBlob() {
+        ValidationResultCache cache = new ValidationResultCache();
+
+        cache.put("1", "b10b", ValidationOutcome.invalid("found unexpected end of stream"));
+
+        ValidationOutcome outcome = cache.get("1", "b10b");
+        assertNotNull(outcome);
+        assertThat(outcome.isValid(), is(false));
+        assertThat(outcome.getDetail(), is("found unexpected end of stream"));
+        assertNull(cache.get("1", "07h3r"));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void shouldMissWhenVerdictSettingsChange() {
+        ValidationResultCache cache = new ValidationResultCache();
+
+        cache.put("1", "b10b", ValidationOutcome.valid());
+
+        assertNull(cache.get("2", "b10b"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntries() {
+        ValidationResultCache cache = new ValidationResultCache(2, 1000L, () -> 0L);
+
+        cache.put("1", "a", ValidationOutcome.valid());
+        cache.put("1", "b", ValidationOutcome.valid());
+        cache.get("1", "a");
+        cache.put("1", "c", ValidationOutcome.valid());
+
+        assertNotNull(cache.get("1", "a"));
+        assertNull(cache.get("1", "b"));
+        assertThat(cache.size(), is(2));
+        assertThat(cache.getEvictionCount(), is(1L));
+    }
+
+    @Test
+    public void shouldExpireEntries() {
+        AtomicLong now = new AtomicLong();
+        ValidationResultCache cache = new ValidationResultCache(10, 1000L, now::get);
+
+        cache.put("1", "a", ValidationOutcome.valid());
+        now.set(999L);
+        assertNotNull(cache.get("1", "a"));
+        now.set(1001L);
+        assertNull(cache.get("1", "a"));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void shouldNotCacheUnknownBlobs() {
+        ValidationResultCache cache = new ValidationResultCache();
+
+        cache.put("1", null, ValidationOutcome.valid());
+
+        assertNull(cache.get("1", null));
+        assertThat(cache.size(), is(0));
+    }
+}
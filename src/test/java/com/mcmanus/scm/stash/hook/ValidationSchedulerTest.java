@@ -0,0 +1,163 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ValidationSchedulerTest {
+
+    private static final long NO_WAIT = 0;
+
+    @Test
+    public void shouldTakeTurnsAcrossRepositories() throws InterruptedException {
+        ValidationScheduler scheduler = new ValidationScheduler(new ValidationWorkerPool(1), null);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(12);
+
+        ValidationScheduler.Lane noisy = scheduler.admit("PRJ/noisy", "bot", 10, NO_WAIT, new PushMetrics());
+        ValidationScheduler.Lane quiet = scheduler.admit("PRJ/quiet", "alice", 2, NO_WAIT, new PushMetrics());
+        noisy.execute(() -> {
+            await(release);
+            ran.add("noisy");
+            done.countDown();
+        });
+        for (int i = 0; i < 9; i++) {
+            noisy.execute(record(ran, "noisy", done));
+        }
+        quiet.execute(record(ran, "quiet", done));
+        quiet.execute(record(ran, "quiet", done));
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertThat(ran.subList(0, 5), is(Arrays.asList("noisy", "noisy", "quiet", "noisy", "quiet")));
+    }
+
+    @Test
+    public void shouldTakeTurnsAcrossUsersOfOneRepository() throws InterruptedException {
+        ValidationScheduler scheduler = new ValidationScheduler(new ValidationWorkerPool(1), null);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+
+        ValidationScheduler.Lane bot = scheduler.admit("PRJ/config", "bot", 5, NO_WAIT, new PushMetrics());
+        ValidationScheduler.Lane alice = scheduler.admit("PRJ/config", "alice", 1, NO_WAIT, new PushMetrics());
+        bot.execute(() -> {
+            await(release);
+            ran.add("bot");
+            done.countDown();
+        });
+        for (int i = 0; i < 4; i++) {
+            bot.execute(record(ran, "bot", done));
+        }
+        alice.execute(record(ran, "alice", done));
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertThat(ran.indexOf("alice"), is(2));
+    }
+
+    @Test
+    public void shouldOnlyAdmitPushesWhileThereIsRoom() throws InterruptedException {
+        ValidationScheduler scheduler = new ValidationScheduler(new ValidationWorkerPool(1), null, 10);
+
+        ValidationScheduler.Lane first = scheduler.admit("PRJ/a", "bot", 8, NO_WAIT, new PushMetrics());
+        assertThat(scheduler.getQueueDepth(), is(8));
+        assertNull(scheduler.admit("PRJ/b", "bot", 5, TimeUnit.MILLISECONDS.toNanos(50), new PushMetrics()));
+        assertNotNull(scheduler.admit("PRJ/b", "bot", 2, NO_WAIT, new PushMetrics()));
+
+        first.close();
+        assertThat(scheduler.getQueueDepth(), is(2));
+    }
+
+    @Test
+    public void shouldAdmitPushLargerThanTheQueueWhenEmpty() throws InterruptedException {
+        ValidationScheduler scheduler = new ValidationScheduler(new ValidationWorkerPool(1), null, 10);
+
+        assertNotNull(scheduler.admit("PRJ/a", "bot", 50, NO_WAIT, new PushMetrics()));
+    }
+
+    @Test
+    public void shouldAdmitWaitingPushOnceRoomIsFreed() throws InterruptedException {
+        ValidationScheduler scheduler = new ValidationScheduler(new ValidationWorkerPool(1), null, 10);
+        ValidationScheduler.Lane first = scheduler.admit("PRJ/a", "bot", 10, NO_WAIT, new PushMetrics());
+
+        Thread closer = new Thread(() -> {
+            sleep(50);
+            first.close();
+        });
+        closer.start();
+        PushMetrics metrics = new PushMetrics();
+        ValidationScheduler.Lane second = scheduler.admit("PRJ/b", "alice", 5, TimeUnit.SECONDS.toNanos(10), metrics);
+        closer.join();
+
+        assertNotNull(second);
+        assertTrue(metrics.getPhaseNanos().get(PushMetrics.Phase.ADMIT) > 0);
+    }
+
+    @Test
+    public void shouldDropQueuedTasksWhenTheLaneIsClosed() throws InterruptedException {
+        ValidationScheduler scheduler = new ValidationScheduler(new ValidationWorkerPool(1), null);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        ValidationScheduler.Lane lane = scheduler.admit("PRJ/a", "bot", 6, NO_WAIT, new PushMetrics());
+        lane.execute(() -> {
+            started.countDown();
+            await(release);
+            ran.add("first");
+            done.countDown();
+        });
+        for (int i = 0; i < 5; i++) {
+            lane.execute(record(ran, "queued", done));
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertThat(scheduler.getQueueDepth(), is(5));
+        assertThat(scheduler.getRunning(), is(1));
+
+        lane.close();
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        sleep(50);
+        assertThat(ran, is(Collections.singletonList("first")));
+        assertThat(scheduler.getQueueDepth(), is(0));
+        assertThat(scheduler.getRunning(), is(0));
+    }
+
+    private static Runnable record(List<String> ran, String name, CountDownLatch done) {
+        return () -> {
+            ran.add(name);
+            done.countDown();
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
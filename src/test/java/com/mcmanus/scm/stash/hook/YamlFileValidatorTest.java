@@ -0,0 +1,238 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class YamlFileValidatorTest {
+
+    private final YamlFileValidator syntaxValidator = new YamlFileValidator(new YamlValidatorSettings.Builder()
+            .engine(YamlValidatorSettings.Engine.SYNTAX)
+            .build());
+    private final YamlFileValidator constructValidator = new YamlFileValidator(new YamlValidatorSettings.Builder()
+            .engine(YamlValidatorSettings.Engine.CONSTRUCT)
+            .build());
+
+    @Test
+    public void shouldAgreeOnGoodYamlFile() throws IOException {
+        assertSameVerdict("good.yaml", true);
+    }
+
+    @Test
+    public void shouldAgreeOnBadYamlFile() throws IOException {
+        assertSameVerdict("bad.yaml", false);
+    }
+
+    @Test
+    public void shouldAgreeOnMultiYamlFile() throws IOException {
+        assertSameVerdict("multi-good.yaml", true);
+    }
+
+    @Test
+    public void shouldAgreeOnMultiBadYamlFile() throws IOException {
+        assertSameVerdict("multi-bad.yaml", false);
+    }
+
+    @Test
+    public void shouldAgreeOnTaggedYamlFile() throws IOException {
+        assertSameVerdict("tagged.yaml", true);
+    }
+
+    @Test
+    public void shouldAgreeOnMalformedTaggedYamlFile() throws IOException {
+        assertSameVerdict("tagged-bad.yaml", false);
+    }
+
+    @Test
+    public void shouldAgreeOnAliases() {
+        String yaml = "base: &base\n  a: 1\nchild:\n  <<: *base\n  b: 2\n";
+
+        assertTrue(syntaxValidator.validate(yaml).isValid());
+        assertTrue(constructValidator.validate(yaml).isValid());
+    }
+
+    @Test
+    public void shouldAgreeOnUndefinedAlias() {
+        String yaml = "---\nbase: &base 1\n---\nchild: *base\n";
+
+        ValidationOutcome syntax = syntaxValidator.validate(yaml);
+        ValidationOutcome construct = constructValidator.validate(yaml);
+
+        assertFalse(syntax.isValid());
+        assertFalse(construct.isValid());
+        assertThat(syntax.getDetail(), is(construct.getDetail()));
+    }
+
+    @Test
+    public void shouldReportDocumentLineAndColumnOfError() {
+        String yaml = "---\nbase: &base 1\n---\nchild: *base\n";
+
+        for (YamlFileValidator validator : new YamlFileValidator[] {syntaxValidator, constructValidator}) {
+            ValidationOutcome outcome = validator.validate(yaml);
+
+            assertThat(outcome.getDocument(), is(2));
+            assertThat(outcome.getLine(), is(4));
+            assertThat(outcome.getColumn(), is(8));
+            assertThat(outcome.getSummary(), is("4:8 in document 2: found undefined alias base"));
+        }
+    }
+
+    @Test
+    public void shouldCountErrorAfterDocumentEndAgainstTheNextDocument() {
+        String yaml = "a: 1\n...\nb: 2\n";
+
+        ValidationOutcome syntax = syntaxValidator.validate(yaml);
+        ValidationOutcome construct = constructValidator.validate(yaml);
+
+        assertFalse(syntax.isValid());
+        assertThat(syntax.getSummary(),
+                is("3:1 in document 2: expected '<document start>', but found '<block mapping start>'"));
+        assertThat(construct.getSummary(), is(syntax.getSummary()));
+    }
+
+    @Test
+    public void shouldOnlyRejectUnconstructableValuesWhenConstructing() {
+        String yaml = "child:\n  <<: not a mapping\n";
+
+        assertTrue(syntaxValidator.validate(yaml).isValid());
+        assertFalse(constructValidator.validate(yaml).isValid());
+    }
+
+    @Test
+    public void shouldNotCarryStateOverFromOneFileToTheNext() {
+        for (YamlFileValidator validator : new YamlFileValidator[]{syntaxValidator, constructValidator}) {
+            assertTrue(validator.validate("a: &shared 1\n").isValid());
+            assertFalse(validator.validate("b: *shared\n").isValid());
+        }
+        assertFalse(constructValidator.validate("base: &base [1, 2]\nchild:\n  <<: *base\n").isValid());
+        assertTrue(constructValidator.validate("base: &base\n  a: 1\nchild:\n  <<: *base\n").isValid());
+    }
+
+    @Test
+    public void shouldHandOutSeparatePartsToNestedValidations() {
+        ParserPool pool = new ParserPool();
+        ParserPool.Parts outer = pool.acquire();
+        ParserPool.Parts inner = pool.acquire();
+        pool.release(inner, true);
+        pool.release(outer, true);
+
+        assertFalse(inner == outer);
+        assertTrue(pool.acquire() == outer);
+    }
+
+    @Test
+    public void shouldRejectFilesLargerThanTheSizeLimit() {
+        StringBuilder yaml = new StringBuilder();
+        while (yaml.length() <= 2 * 1024) {
+            yaml.append("key: 'value'\n");
+        }
+
+        assertLimitExceeded(new YamlValidatorSettings.Builder().maxFileSizeKb(2), yaml.toString(), ResourceLimit.SIZE);
+    }
+
+    @Test
+    public void shouldRejectFilesWithTooManyDocuments() {
+        String yaml = "---\na: 1\n---\nb: 2\n---\nc: 3\n";
+
+        assertLimitExceeded(new YamlValidatorSettings.Builder().maxDocuments(2), yaml, ResourceLimit.DOCUMENTS);
+    }
+
+    @Test
+    public void shouldRejectFilesNestedTooDeeply() {
+        String yaml = "a:\n  b:\n    c:\n      - d\n";
+
+        assertLimitExceeded(new YamlValidatorSettings.Builder().maxDepth(3), yaml, ResourceLimit.DEPTH);
+    }
+
+    @Test
+    public void shouldRejectAliasBombs() {
+        String yaml = "a: &a [lol, lol, lol, lol, lol, lol, lol, lol, lol]\n"
+                + "b: &b [*a, *a, *a, *a, *a, *a, *a, *a, *a]\n"
+                + "c: &c [*b, *b, *b, *b, *b, *b, *b, *b, *b]\n"
+                + "d: &d [*c, *c, *c, *c, *c, *c, *c, *c, *c]\n";
+
+        assertLimitExceeded(new YamlValidatorSettings.Builder().maxAliases(20), yaml, ResourceLimit.ALIASES);
+    }
+
+    @Test
+    public void shouldRejectFilesWhichTakeTooLongToValidate() {
+        for (YamlValidatorSettings.Engine engine : YamlValidatorSettings.Engine.values()) {
+            YamlFileValidator validator = new YamlFileValidator(new YamlValidatorSettings.Builder()
+                    .engine(engine)
+                    .fileTimeoutSeconds(1)
+                    .build());
+
+            ValidationOutcome outcome = validator.validate(new SlowReader(), () -> false);
+
+            assertFalse(outcome.isValid());
+            assertThat(outcome.getLimit(), is(ResourceLimit.TIME));
+        }
+    }
+
+    @Test
+    public void shouldAcceptFilesWithinEveryLimit() throws IOException {
+        File resource = new ClassPathResource("multi-good.yaml").getFile();
+        String testString = new String(Files.readAllBytes(Paths.get(resource.getPath())));
+
+        ValidationOutcome outcome = syntaxValidator.validate(testString);
+
+        assertTrue(outcome.isValid());
+        assertThat(outcome.getLimit(), is(nullValue()));
+    }
+
+    private static void assertLimitExceeded(YamlValidatorSettings.Builder settings, String yaml, ResourceLimit limit) {
+        for (YamlValidatorSettings.Engine engine : YamlValidatorSettings.Engine.values()) {
+            ValidationOutcome outcome = new YamlFileValidator(settings.engine(engine).build()).validate(yaml);
+
+            assertFalse(outcome.isValid());
+            assertThat(engine + " " + outcome.getDetail(), outcome.getLimit(), is(limit));
+        }
+    }
+
+    /**
+     * An endless list, which arrives a little at a time
+     */
+    private static class SlowReader extends Reader {
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            int count = Math.min(length, 4);
+            "- a\n".getChars(0, count, buffer, offset);
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private void assertSameVerdict(String fixture, boolean valid) throws IOException {
+        File resource = new ClassPathResource(fixture).getFile();
+        String testString = new String(Files.readAllBytes(Paths.get(resource.getPath())));
+
+        ValidationOutcome syntax = syntaxValidator.validate(testString);
+        ValidationOutcome construct = constructValidator.validate(testString);
+
+        assertThat("Error " + syntax.getDetail(), syntax.isValid(), is(valid));
+        assertThat("Error " + construct.getDetail(), construct.isValid(), is(valid));
+        assertThat(syntax.getDetail(), is(construct.getDetail()));
+        assertThat(syntax.getSummary(), is(construct.getSummary()));
+    }
+}
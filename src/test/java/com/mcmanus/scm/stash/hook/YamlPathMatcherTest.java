@@ -0,0 +1,136 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class YamlPathMatcherTest {
+
+    @Test
+    public void shouldMatchExtensionRegex() {
+        YamlPathMatcher matcher = YamlPathMatcher.forExtension("ya?ml");
+
+        assertTrue(matcher.matches("config/app.yaml"));
+        assertTrue(matcher.matches("/config/app.yml"));
+        assertFalse(matcher.matches("config/app.yaml.bak"));
+        assertFalse(matcher.matches("config.yaml/README"));
+        assertFalse(matcher.matches("Makefile"));
+    }
+
+    @Test
+    public void shouldMatchInvalidExtensionLiterally() {
+        YamlPathMatcher matcher = YamlPathMatcher.forExtension("y[aml");
+
+        assertTrue(matcher.matches("app.y[aml"));
+        assertFalse(matcher.matches("app.yaml"));
+    }
+
+    @Test
+    public void shouldOnlyMatchIncludedPaths() {
+        YamlPathMatcher matcher = YamlPathMatcher.of("yaml",
+                Arrays.asList("config/**", "*.k8s.yaml"), Collections.emptyList());
+
+        assertTrue(matcher.matches("config/app.yaml"));
+        assertTrue(matcher.matches("config/env/prod/app.yaml"));
+        assertTrue(matcher.matches("deploy/web.k8s.yaml"));
+        assertTrue(matcher.matches("web.k8s.yaml"));
+        assertFalse(matcher.matches("src/config/app.yaml"));
+        assertFalse(matcher.matches("deploy/web.yaml"));
+    }
+
+    @Test
+    public void shouldSkipExcludedDirectoriesAndGlobs() {
+        YamlPathMatcher matcher = YamlPathMatcher.of("yaml", Collections.emptyList(),
+                Arrays.asList("vendor/**", "/third_party/", "**/generated/**", "*.lock.yaml", "docs/v?/*.yaml"));
+
+        assertFalse(matcher.matches("vendor/lib/a.yaml"));
+        assertFalse(matcher.matches("third_party/b.yaml"));
+        assertFalse(matcher.matches("src/generated/c.yaml"));
+        assertFalse(matcher.matches("generated/c.yaml"));
+        assertFalse(matcher.matches("app/deps.lock.yaml"));
+        assertFalse(matcher.matches("docs/v1/d.yaml"));
+        assertTrue(matcher.matches("src/vendor/a.yaml"));
+        assertTrue(matcher.matches("vendors/a.yaml"));
+        assertTrue(matcher.matches("docs/v10/d.yaml"));
+        assertTrue(matcher.matches("docs/v1/more/d.yaml"));
+    }
+
+    @Test
+    public void shouldExcludeEvenWhenIncluded() {
+        YamlPathMatcher matcher = YamlPathMatcher.of("yaml",
+                Collections.singletonList("config/**"), Collections.singletonList("config/vendor/**"));
+
+        assertTrue(matcher.matches("config/app.yaml"));
+        assertFalse(matcher.matches("config/vendor/app.yaml"));
+    }
+
+    @Test
+    public void shouldShareMatcherForTheSameSettings() {
+        YamlValidatorSettings settings = new YamlValidatorSettings.Builder()
+                .excludes(Collections.singletonList("vendor/**"))
+                .build();
+        YamlValidatorSettings sameSettings = new YamlValidatorSettings.Builder()
+                .excludes(Collections.singletonList("vendor/**"))
+                .build();
+
+        assertThat(settings.getPathMatcher(), is(sameInstance(sameSettings.getPathMatcher())));
+    }
+
+    @Test
+    public void shouldFilterLargePushes() {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            switch (i % 5) {
+                case 0:
+                    paths.add("vendor/module" + i + "/deep/tree/config.yaml");
+                    break;
+                case 1:
+                    paths.add("services/service" + i + "/generated/api.yaml");
+                    break;
+                case 2:
+                    paths.add("services/service" + i + "/src/Main" + i + ".java");
+                    break;
+                case 3:
+                    paths.add("services/service" + i + "/package.lock.yaml");
+                    break;
+                default:
+                    paths.add("services/service" + i + "/config/app.yaml");
+                    break;
+            }
+        }
+        YamlPathMatcher matcher = YamlPathMatcher.of("ya?ml", Collections.singletonList("services/**"),
+                Arrays.asList("vendor/**", "**/generated/**", "*.lock.yaml"));
+
+        int matched = 0;
+        for (String path : paths) {
+            if (matcher.matches(path)) {
+                assertTrue(path, path.endsWith("/config/app.yaml"));
+                matched++;
+            }
+        }
+
+        assertThat(matched, is(10000));
+    }
+
+    @Test
+    public void shouldSkipEveryPathUnderManyExcludedDirectories() {
+        List<String> excludes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            excludes.add("vendor/module" + i + "/");
+        }
+        YamlPathMatcher matcher = YamlPathMatcher.of("yaml", Collections.emptyList(), excludes);
+
+        for (int i = 0; i < 20000; i++) {
+            assertThat(matcher.matches("vendor/module" + (i % 2000) + "/file" + i + ".yaml"), is(i % 2000 >= 1000));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.mcmanus.scm.stash.hook;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class YamlValidatorCliTest {
+
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("yaml-validator-cli");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void shouldWalkTheTreeWithTheHookPathRules() throws IOException {
+        write("config/app.yaml", "a: 1\n");
+        write("config/env/prod.yml", "a: 1\n");
+        write("vendor/lib.yaml", "a: 1\n");
+        write("README.md", "# yaml\n");
+        write(".git/config.yaml", "a: 1\n");
+        YamlValidatorCli cli = new YamlValidatorCli(root, new YamlValidatorSettings.Builder()
+                .extension("ya?ml")
+                .excludes(Collections.singletonList("vendor/**"))
+                .build());
+
+        assertThat(cli.walk(), is(Arrays.asList("config/app.yaml", "config/env/prod.yml")));
+    }
+
+    @Test
+    public void shouldOnlyValidateListedPathsWhichStillExist() {
+        write("config/app.yaml", "a: 1\n");
+        write("config/app.json", "{}\n");
+        YamlValidatorCli cli = new YamlValidatorCli(root, YamlValidatorSettings.defaults());
+
+        assertThat(cli.filter(Arrays.asList("config/deleted.yaml", "config/app.json", "config/app.yaml")),
+                is(Collections.singletonList("config/app.yaml")));
+    }
+
+    @Test
+    public void shouldReachTheSameVerdictsAsTheHook() {
+        String[] contents = {
+                "a: 1\n",
+                "a: [1\n",
+                "a: &x 1\n---\nb: *y\n",
+                "a: {b: [c, d], e: f}\n--- !!binary\nnot base64 %%\n",
+                "\uFEFFa: 1\n",
+                "a:\n\tb: 1\n"
+        };
+        for (YamlValidatorSettings.Engine engine : YamlValidatorSettings.Engine.values()) {
+            YamlValidatorSettings settings = new YamlValidatorSettings.Builder()
+                    .engine(engine)
+                    .build();
+            YamlValidatorCli cli = new YamlValidatorCli(root, settings);
+            for (int i = 0; i < contents.length; i++) {
+                write("file" + i + ".yaml", contents[i]);
+                ValidationOutcome expected = new YamlFileValidator(settings).validate(contents[i]);
+                ValidationOutcome actual = cli.check("file" + i + ".yaml");
+
+                assertThat(engine + " " + contents[i], actual.isValid(), is(expected.isValid()));
+                assertThat(engine + " " + contents[i], actual.getSummary(), is(expected.getSummary()));
+            }
+        }
+    }
+
+    @Test
+    public void shouldApplySchemasStoredInTheTree() {
+        write("schemas/service.json", "{\"required\": [\"name\"]}");
+        write("services/web.yaml", "name: web\n");
+        write("services/db.yaml", "port: 5432\n");
+        write("other.yaml", "port: 80\n");
+        YamlValidatorCli cli = new YamlValidatorCli(root, new YamlValidatorSettings.Builder()
+                .schemas("{\"services/**\": \"schemas/service.json\", \"other.yaml\": \"schemas/missing.json\"}")
+                .build());
+
+        Map<String, ValidationOutcome> invalid = cli.validate(
+                Arrays.asList("other.yaml", "services/db.yaml", "services/web.yaml"), new ForkJoinPool(2));
+
+        assertThat(invalid.keySet(), is(Collections.singleton("services/db.yaml")));
+        assertThat(invalid.get("services/db.yaml").getProblem(), is("$: missing required property name"));
+    }
+
+    @Test
+    public void shouldListEveryInvalidFileAndExitWithTheVerdict() {
+        write("a.yaml", "a: 1\n");
+        write("b.yaml", "b: [1\n");
+        write("c/d.yaml", "d: *missing\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int status = YamlValidatorCli.run(new String[]{"--threads", "3", root.toString()},
+                new ByteArrayInputStream(new byte[0]), new PrintStream(out),
+                new PrintStream(new ByteArrayOutputStream()));
+
+        assertThat(status, is(YamlValidatorCli.INVALID));
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n"),
+                is("b.yaml:2:1 in document 1: expected ',' or ']', but got <stream end>\n"
+                        + "c/d.yaml:1:4 in document 1: found undefined alias missing\n"));
+    }
+
+    @Test
+    public void shouldReadTheDiffListFromStandardInput() {
+        write("a.yaml", "a: 1\n");
+        write("b.yaml", "b: [1\n");
+        byte[] listing = "a.yaml\0deleted.yaml\0".getBytes(StandardCharsets.UTF_8);
+
+        int status = YamlValidatorCli.run(new String[]{"--paths", "-", root.toString()},
+                new ByteArrayInputStream(listing), new PrintStream(new ByteArrayOutputStream()),
+                new PrintStream(new ByteArrayOutputStream()));
+
+        assertThat(status, is(YamlValidatorCli.VALID));
+    }
+
+    @Test
+    public void shouldRejectUnknownOptions() {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        int status = YamlValidatorCli.run(new String[]{"--engine", "fast"}, new ByteArrayInputStream(new byte[0]),
+                new PrintStream(new ByteArrayOutputStream()), new PrintStream(err));
+
+        assertThat(status, is(YamlValidatorCli.USAGE));
+        assertThat(new String(err.toByteArray(), StandardCharsets.UTF_8).startsWith("Unknown engine fast"), is(true));
+    }
+
+    private void write(String path, String content) {
+        try {
+            Path file = root.resolve(path);
+            Files.createDirectories(file.getParent());
+            Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
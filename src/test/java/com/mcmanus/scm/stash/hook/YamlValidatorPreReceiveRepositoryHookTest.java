@@ -1,31 +1,50 @@
 package com.mcmanus.scm.stash.hook;
 
+import com.atlassian.bitbucket.auth.AuthenticationContext;
 import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.commit.CommitCallback;
+import com.atlassian.bitbucket.commit.CommitRequest;
 import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.commit.CommitsBetweenRequest;
+import com.atlassian.bitbucket.commit.CommonAncestorRequest;
 import com.atlassian.bitbucket.content.*;
 import com.atlassian.bitbucket.idx.CommitIndex;
+import com.atlassian.bitbucket.repository.Branch;
+import com.atlassian.bitbucket.repository.NoDefaultBranchException;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefService;
 import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.util.Page;
-import com.atlassian.bitbucket.util.PageRequest;
-import com.atlassian.bitbucket.util.PageUtils;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.setting.Settings;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.springframework.core.io.ClassPathResource;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class YamlValidatorPreReceiveRepositoryHookTest {
@@ -42,49 +61,367 @@ public class YamlValidatorPreReceiveRepositoryHookTest {
     public void shouldCheckAndAddFilesWithParticularExtension() {
 
         CommitService commitServiceMock = mock(CommitService.class);
-        ContentService contentServiceMock = mock(ContentService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
         CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
 
         Commit commitMock = mock(Commit.class);
         Repository repositoryMock = mock(Repository.class);
 
-        ChangesRequest.Builder builderMock = mock(ChangesRequest.Builder.class);
-        ChangesRequest changesRequestMock = mock(ChangesRequest.class);
-
         Change change = mock(Change.class);
-        ArrayList<Change> changes = new ArrayList<>();
-        changes.add(change);
-
-        Page<Change> pagedChanges = PageUtils.createPage(changes, PageUtils.newRequest(1, 1));
 
         when(commitMock.getId()).thenReturn("asdfh329fhpehguh");
-        when(builderMock.build()).thenReturn(changesRequestMock);
-        when(commitServiceMock.getChanges(any(ChangesRequest.class), any(PageRequest.class))).thenReturn(pagedChanges);
+        streamChanges(commitServiceMock, change);
         when(change.getType()).thenReturn(ChangeType.ADD);
         when(change.getPath()).thenReturn(new SimplePath("/right/here.yaml"));
 
-        YamlValidatorPreReceiveRepositoryHook hook = new YamlValidatorPreReceiveRepositoryHook(commitServiceMock,
-                contentServiceMock, commitIndexMock);
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
 
-        ConcurrentMap<String, Commit> testPathChanges = new ConcurrentHashMap<>();
+        ConcurrentMap<String, YamlFile> testPathChanges = new ConcurrentHashMap<>();
 
         hook.addFileChangesOnCommit(testPathChanges, repositoryMock, commitMock, "yaml");
 
         assertThat(testPathChanges.size(), is(1));
     }
 
+    @Test
+    public void shouldDiffOldTipToNewTipInNetChangeMode() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
+
+        Commit commitMock = mock(Commit.class);
+        Repository repositoryMock = mock(Repository.class);
+        RefChange refChangeMock = mock(RefChange.class);
+
+        Change change = mock(Change.class);
+
+        when(refChangeMock.getFromHash()).thenReturn("0ld7ip");
+        when(refChangeMock.getToHash()).thenReturn("n3w7ip");
+        when(commitMock.getId()).thenReturn("n3w7ip");
+        when(commitServiceMock.getCommit(any(CommitRequest.class))).thenReturn(commitMock);
+        streamChanges(commitServiceMock, change);
+        when(change.getType()).thenReturn(ChangeType.MODIFY);
+        when(change.getPath()).thenReturn(new SimplePath("/right/here.yaml"));
+
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
+
+        ConcurrentMap<String, YamlFile> testPathChanges = new ConcurrentHashMap<>();
+
+        assertTrue(hook.addNetFileChanges(testPathChanges, repositoryMock, refChangeMock, YamlPathMatcher.forExtension("yaml")));
+        assertThat(testPathChanges.size(), is(1));
+        verify(commitServiceMock, times(1)).streamChanges(any(ChangesRequest.class), any(ChangeCallback.class));
+        verify(commitServiceMock, never()).getCommonAncestor(any(CommonAncestorRequest.class));
+    }
+
+    @Test
+    public void shouldDiffNewBranchAgainstMergeBaseWithDefaultBranch() {
+        CommitService commitServiceMock = mock(CommitService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
+
+        Branch defaultBranchMock = mock(Branch.class);
+        Commit mergeBaseMock = mock(Commit.class);
+        Commit tipMock = mock(Commit.class);
+        Repository repositoryMock = mock(Repository.class);
+        RefChange refChangeMock = mock(RefChange.class);
+
+        when(refChangeMock.getFromHash()).thenReturn(CommitWalker.ZERO_HASH);
+        when(refChangeMock.getToHash()).thenReturn("n3w7ip");
+        when(refServiceMock.getDefaultBranch(repositoryMock)).thenReturn(defaultBranchMock);
+        when(defaultBranchMock.getLatestCommit()).thenReturn("d3fau17");
+        when(mergeBaseMock.getId()).thenReturn("m3rg3b4s3");
+        when(commitServiceMock.getCommonAncestor(any(CommonAncestorRequest.class))).thenReturn(mergeBaseMock);
+        when(tipMock.getId()).thenReturn("n3w7ip");
+        when(commitServiceMock.getCommit(any(CommitRequest.class))).thenReturn(tipMock);
+        streamChanges(commitServiceMock);
+
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
+
+        ConcurrentMap<String, YamlFile> testPathChanges = new ConcurrentHashMap<>();
+
+        assertTrue(hook.addNetFileChanges(testPathChanges, repositoryMock, refChangeMock, YamlPathMatcher.forExtension("yaml")));
+        verify(commitServiceMock, times(1)).getCommonAncestor(any(CommonAncestorRequest.class));
+        verify(commitServiceMock, times(1)).streamChanges(any(ChangesRequest.class), any(ChangeCallback.class));
+    }
+
+    @Test
+    public void shouldWalkListAndValidateOnceForBranchAndTagsAtTheSameCommit() throws IOException {
+        CommitService commitServiceMock = mock(CommitService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
+        ContentFetcher.Session sessionMock = mock(ContentFetcher.Session.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
+
+        Commit tipMock = mock(Commit.class);
+        Commit oldTipMock = mock(Commit.class);
+        Repository repositoryMock = mock(Repository.class);
+        Change change = mock(Change.class);
+
+        when(oldTipMock.getId()).thenReturn("0ld7ip");
+        when(tipMock.getId()).thenReturn("n3w7ip");
+        when(tipMock.getParents()).thenReturn(Collections.singletonList(oldTipMock));
+        when(tipMock.getAuthorTimestamp()).thenReturn(new Date());
+        when(commitIndexMock.isIndexed(eq("0ld7ip"), any(Repository.class))).thenReturn(true);
+        doAnswer(invocation -> {
+            CommitCallback callback = invocation.getArgument(1);
+            if (callback.onCommit(tipMock)) {
+                callback.onCommit(oldTipMock);
+            }
+            return null;
+        }).when(commitServiceMock).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+        streamChanges(commitServiceMock, change);
+        when(change.getType()).thenReturn(ChangeType.MODIFY);
+        when(change.getPath()).thenReturn(new SimplePath("/right/here.yaml"));
+        when(change.getContentId()).thenReturn("b10b");
+        when(contentFetcherMock.open(any(Repository.class), any())).thenReturn(sessionMock);
+        when(sessionMock.read(any(YamlFile.class), any())).thenAnswer(invocation -> {
+            ContentFetcher.ContentConsumer<?> consumer = invocation.getArgument(1);
+            return consumer.read(new StringReader("stuff1: false\n"));
+        });
+
+        List<RefChange> refChanges = new ArrayList<>();
+        refChanges.add(refChange("0ld7ip", "n3w7ip"));
+        for (int i = 0; i < 300; i++) {
+            refChanges.add(refChange(CommitWalker.ZERO_HASH, "n3w7ip"));
+        }
+
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
+
+        Map<String, String> result = hook.onReceive(repositoryMock, refChanges, YamlValidatorSettings.defaults());
+
+        assertTrue(result.isEmpty());
+        verify(commitServiceMock, times(1)).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+        verify(commitServiceMock, times(1)).streamChanges(any(ChangesRequest.class), any(ChangeCallback.class));
+        verify(sessionMock, times(1)).read(any(YamlFile.class), any());
+    }
+
+    @Test
+    public void shouldOnlyValidateTheNewTipOfLargeRefChangesAndAuditTheirCommits() throws IOException {
+        CommitService commitServiceMock = mock(CommitService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
+        ContentFetcher.Session sessionMock = mock(ContentFetcher.Session.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
+        ValidationAuditor validationAuditorMock = mock(ValidationAuditor.class);
+
+        Repository repositoryMock = mock(Repository.class);
+        Commit firstMock = mock(Commit.class);
+        Commit secondMock = mock(Commit.class);
+        Commit tipMock = mock(Commit.class);
+        Change change = mock(Change.class);
+
+        when(firstMock.getId()).thenReturn("f1r57");
+        when(secondMock.getId()).thenReturn("s3c0nd");
+        when(tipMock.getId()).thenReturn("n3w7ip");
+        when(tipMock.getParents()).thenReturn(Collections.singletonList(secondMock));
+        when(secondMock.getParents()).thenReturn(Collections.singletonList(firstMock));
+        doAnswer(invocation -> {
+            CommitCallback callback = invocation.getArgument(1);
+            for (Commit commit : new Commit[]{tipMock, secondMock, firstMock}) {
+                if (!callback.onCommit(commit)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(commitServiceMock).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+        when(commitServiceMock.getCommit(any(CommitRequest.class))).thenReturn(tipMock);
+        streamChanges(commitServiceMock, change);
+        when(change.getType()).thenReturn(ChangeType.MODIFY);
+        when(change.getPath()).thenReturn(new SimplePath("/right/here.yaml"));
+        when(change.getContentId()).thenReturn("b10b");
+        when(contentFetcherMock.open(any(Repository.class), any())).thenReturn(sessionMock);
+        when(sessionMock.read(any(YamlFile.class), any())).thenAnswer(invocation -> {
+            ContentFetcher.ContentConsumer<?> consumer = invocation.getArgument(1);
+            return consumer.read(new StringReader("stuff1: false\n"));
+        });
+        RefChange refChange = refChange("0ld7ip", "n3w7ip");
+        YamlValidatorSettings settings = new YamlValidatorSettings.Builder()
+                .auditCommits(1)
+                .build();
+
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock, validationAuditorMock);
+
+        Map<String, String> result = hook.onReceive(repositoryMock, Collections.singletonList(refChange), settings);
+
+        assertTrue(result.isEmpty());
+        verify(commitServiceMock, times(1)).streamChanges(any(ChangesRequest.class), any(ChangeCallback.class));
+        verify(validationAuditorMock, times(1)).expect(repositoryMock, refChange, settings);
+    }
+
+    @Test
+    public void shouldValidateTheTreeOfALargeNewRefWithNothingToDiffAgainstAndAuditItsCommits() throws IOException {
+        CommitService commitServiceMock = mock(CommitService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
+        ContentFetcher.Session sessionMock = mock(ContentFetcher.Session.class);
+        ChangeStreamer changeStreamerMock = mock(ChangeStreamer.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
+        ValidationAuditor validationAuditorMock = mock(ValidationAuditor.class);
+
+        Repository repositoryMock = mock(Repository.class);
+        Commit firstMock = mock(Commit.class);
+        Commit tipMock = mock(Commit.class);
+
+        when(firstMock.getId()).thenReturn("f1r57");
+        when(tipMock.getId()).thenReturn("n3w7ip");
+        when(tipMock.getParents()).thenReturn(Collections.singletonList(firstMock));
+        doAnswer(invocation -> {
+            CommitCallback callback = invocation.getArgument(1);
+            for (Commit commit : new Commit[]{tipMock, firstMock}) {
+                if (!callback.onCommit(commit)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(commitServiceMock).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+        when(commitServiceMock.getCommit(any(CommitRequest.class))).thenReturn(tipMock);
+        when(refServiceMock.getDefaultBranch(repositoryMock)).thenThrow(NoDefaultBranchException.class);
+        doAnswer(invocation -> {
+            BiConsumer<String, String> consumer = invocation.getArgument(3);
+            consumer.accept("config/app.yaml", "b10b");
+            return null;
+        }).when(changeStreamerMock).streamTree(any(Repository.class), any(Commit.class), any(YamlPathMatcher.class),
+                any());
+        when(contentFetcherMock.open(any(Repository.class), any())).thenReturn(sessionMock);
+        when(sessionMock.read(any(YamlFile.class), any())).thenAnswer(invocation -> {
+            ContentFetcher.ContentConsumer<?> consumer = invocation.getArgument(1);
+            return consumer.read(new StringReader("stuff1: false\n"));
+        });
+        RefChange refChange = refChange(CommitWalker.ZERO_HASH, "n3w7ip");
+        YamlValidatorSettings settings = new YamlValidatorSettings.Builder()
+                .auditCommits(1)
+                .build();
+
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                changeStreamerMock, commitIndexMock, refServiceMock, validationAuditorMock);
+
+        Map<String, String> result = hook.onReceive(repositoryMock, Collections.singletonList(refChange), settings);
+
+        assertTrue(result.isEmpty());
+        verify(commitServiceMock, times(1)).streamCommitsBetween(any(CommitsBetweenRequest.class),
+                any(CommitCallback.class));
+        verify(changeStreamerMock, never()).streamChanges(any(Repository.class), any(), any(Commit.class),
+                any(YamlPathMatcher.class), any());
+        verify(sessionMock, times(1)).read(any(YamlFile.class), any());
+        verify(validationAuditorMock, times(1)).expect(repositoryMock, refChange, settings);
+    }
+
+    @Test
+    public void shouldAuditEveryVersionOfTheFilesOfARefChange() throws IOException {
+        CommitService commitServiceMock = mock(CommitService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
+        ContentFetcher.Session sessionMock = mock(ContentFetcher.Session.class);
+        CommitIndex commitIndexMock = mock(CommitIndex.class);
+
+        Repository repositoryMock = mock(Repository.class);
+        Commit firstMock = mock(Commit.class);
+        Commit tipMock = mock(Commit.class);
+        Change firstChange = mock(Change.class);
+        Change tipChange = mock(Change.class);
+
+        when(firstMock.getId()).thenReturn("f1r57");
+        when(tipMock.getId()).thenReturn("n3w7ip");
+        doAnswer(invocation -> {
+            CommitCallback callback = invocation.getArgument(1);
+            if (callback.onCommit(tipMock)) {
+                callback.onCommit(firstMock);
+            }
+            return null;
+        }).when(commitServiceMock).streamCommitsBetween(any(CommitsBetweenRequest.class), any(CommitCallback.class));
+        doAnswer(invocation -> {
+            ChangesRequest request = invocation.getArgument(0);
+            ChangeCallback callback = invocation.getArgument(1);
+            callback.onChange("f1r57".equals(request.getUntilId()) ? firstChange : tipChange);
+            callback.onEnd(mock(ChangeSummary.class));
+            return null;
+        }).when(commitServiceMock).streamChanges(any(ChangesRequest.class), any(ChangeCallback.class));
+        for (Change change : new Change[]{firstChange, tipChange}) {
+            when(change.getType()).thenReturn(ChangeType.MODIFY);
+            when(change.getPath()).thenReturn(new SimplePath("/right/here.yaml"));
+        }
+        when(firstChange.getContentId()).thenReturn("b4d");
+        when(tipChange.getContentId()).thenReturn("f1x3d");
+        when(contentFetcherMock.open(any(Repository.class), any())).thenReturn(sessionMock);
+        when(sessionMock.read(any(YamlFile.class), any())).thenAnswer(invocation -> {
+            YamlFile file = invocation.getArgument(0);
+            ContentFetcher.ContentConsumer<?> consumer = invocation.getArgument(1);
+            return consumer.read(new StringReader("b4d".equals(file.getContentId()) ? "a: [1\n" : "a: [1]\n"));
+        });
+        ValidationAuditor.Audit audit = new ValidationAuditor.Audit("1", refChange("0ld7ip", "n3w7ip"));
+
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, mock(RefService.class));
+
+        hook.audit(repositoryMock, refChange("0ld7ip", "n3w7ip"), YamlValidatorSettings.defaults(), audit);
+
+        assertThat(audit.getCommits(), is(2));
+        assertThat(audit.getFiles(), is(2));
+        assertThat(audit.getInvalid(), is(1));
+        assertThat(audit.getFindings().get(0).getCommitId(), is("f1r57"));
+        verify(commitIndexMock, never()).isIndexed(any(), any());
+    }
+
+    @Test
+    public void shouldReadTheSettingsOncePerRevision() {
+        Settings settingsMock = mock(Settings.class);
+        Settings changedSettingsMock = mock(Settings.class);
+        when(settingsMock.asMap()).thenReturn(Collections.singletonMap("extension", "yml"));
+        when(settingsMock.getString("extension")).thenReturn("yml");
+        when(changedSettingsMock.asMap()).thenReturn(Collections.singletonMap("extension", "yaml"));
+        when(changedSettingsMock.getString("extension")).thenReturn("yaml");
+
+        YamlValidatorSettings snapshot = YamlValidatorHookSettings.from(settingsMock);
+
+        assertTrue(YamlValidatorHookSettings.from(settingsMock) == snapshot);
+        assertThat(snapshot.getExtension(), is("yml"));
+        assertThat(YamlValidatorHookSettings.from(changedSettingsMock).getExtension(), is("yaml"));
+        verify(settingsMock, times(1)).getString("extension");
+    }
+
+    @Test
+    public void shouldListEveryInvalidFileWithinTheDetailLimit() {
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(mock(CommitService.class), mock(ContentFetcher.class),
+                mock(ChangeStreamer.class), mock(CommitIndex.class), mock(RefService.class),
+                mock(ValidationAuditor.class));
+        YamlFileValidator validator = new YamlFileValidator();
+        List<FileValidationStage.Verdict> invalid = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            invalid.add(new FileValidationStage.Verdict(new YamlFile("config/file" + i + ".yaml", null, null),
+                    validator.validate("ok: 1\n---\nchild: *base\n")));
+        }
+        ConcurrentMap<String, String> result = new ConcurrentHashMap<>();
+
+        hook.rejectAll(result, invalid);
+
+        String detail = result.get("detail");
+        assertThat(result.get("summary"), is("ERROR: 1000 invalid yaml files: config/file0.yaml, config/file1.yaml, "
+                + "config/file2.yaml, config/file3.yaml, config/file4.yaml, ..."));
+        assertTrue(detail.startsWith("config/file0.yaml:3:8 in document 2: found undefined alias base\n"));
+        assertTrue(detail.length() < YamlValidatorPreReceiveRepositoryHook.MAX_DETAIL_LENGTH + 100);
+        assertTrue(detail.endsWith(" more invalid yaml files\n"));
+    }
+
     @Test
     public void shouldTestSimpleYamlFile() throws IOException {
         CommitService commitServiceMock = mock(CommitService.class);
-        ContentService contentServiceMock = mock(ContentService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
         CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
 
         ClassPathResource classPathResource = new ClassPathResource("good.yaml");
         File resource = classPathResource.getFile();
         String testString = new String(Files.readAllBytes(Paths.get(resource.getPath())));
 
-        YamlValidatorPreReceiveRepositoryHook hook = new YamlValidatorPreReceiveRepositoryHook(commitServiceMock,
-                contentServiceMock, commitIndexMock);
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
 
         ConcurrentMap<String, String> results = new ConcurrentHashMap<>();
         boolean check = hook.checkFile(testString, results, resource.getPath());
@@ -95,15 +432,16 @@ public class YamlValidatorPreReceiveRepositoryHookTest {
     @Test
     public void shouldTestSimpleBadYamlFile() throws IOException {
         CommitService commitServiceMock = mock(CommitService.class);
-        ContentService contentServiceMock = mock(ContentService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
         CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
 
         ClassPathResource classPathResource = new ClassPathResource("bad.yaml");
         File resource = classPathResource.getFile();
         String testString = new String(Files.readAllBytes(Paths.get(resource.getPath())));
 
-        YamlValidatorPreReceiveRepositoryHook hook = new YamlValidatorPreReceiveRepositoryHook(commitServiceMock,
-                contentServiceMock, commitIndexMock);
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
 
         ConcurrentMap<String, String> results = new ConcurrentHashMap<>();
         boolean check = hook.checkFile(testString, results, resource.getPath());
@@ -114,15 +452,16 @@ public class YamlValidatorPreReceiveRepositoryHookTest {
     @Test
     public void shouldTestMultiYamlFile() throws IOException {
         CommitService commitServiceMock = mock(CommitService.class);
-        ContentService contentServiceMock = mock(ContentService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
         CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
 
         ClassPathResource classPathResource = new ClassPathResource("multi-good.yaml");
         File resource = classPathResource.getFile();
         String testString = new String(Files.readAllBytes(Paths.get(resource.getPath())));
 
-        YamlValidatorPreReceiveRepositoryHook hook = new YamlValidatorPreReceiveRepositoryHook(commitServiceMock,
-                contentServiceMock, commitIndexMock);
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
 
         ConcurrentMap<String, String> results = new ConcurrentHashMap<>();
         boolean check = hook.checkFile(testString, results, resource.getPath());
@@ -133,15 +472,16 @@ public class YamlValidatorPreReceiveRepositoryHookTest {
     @Test
     public void shouldTestMultiBadYamlFile() throws IOException {
         CommitService commitServiceMock = mock(CommitService.class);
-        ContentService contentServiceMock = mock(ContentService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
         CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
 
         ClassPathResource classPathResource = new ClassPathResource("multi-bad.yaml");
         File resource = classPathResource.getFile();
         String testString = new String(Files.readAllBytes(Paths.get(resource.getPath())));
 
-        YamlValidatorPreReceiveRepositoryHook hook = new YamlValidatorPreReceiveRepositoryHook(commitServiceMock,
-                contentServiceMock, commitIndexMock);
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
 
         ConcurrentMap<String, String> results = new ConcurrentHashMap<>();
         boolean check = hook.checkFile(testString, results, resource.getPath());
@@ -152,15 +492,16 @@ public class YamlValidatorPreReceiveRepositoryHookTest {
     @Test
     public void shouldTestTaggedYamlFile() throws IOException {
         CommitService commitServiceMock = mock(CommitService.class);
-        ContentService contentServiceMock = mock(ContentService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
         CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
 
         ClassPathResource classPathResource = new ClassPathResource("tagged.yaml");
         File resource = classPathResource.getFile();
         String testString = new String(Files.readAllBytes(Paths.get(resource.getPath())));
 
-        YamlValidatorPreReceiveRepositoryHook hook = new YamlValidatorPreReceiveRepositoryHook(commitServiceMock,
-                contentServiceMock, commitIndexMock);
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
 
         ConcurrentMap<String, String> results = new ConcurrentHashMap<>();
         boolean check = hook.checkFile(testString, results, resource.getPath());
@@ -171,19 +512,67 @@ public class YamlValidatorPreReceiveRepositoryHookTest {
     @Test
     public void shouldTestMalformedTaggedYamlFile() throws IOException {
         CommitService commitServiceMock = mock(CommitService.class);
-        ContentService contentServiceMock = mock(ContentService.class);
+        ContentFetcher contentFetcherMock = mock(ContentFetcher.class);
         CommitIndex commitIndexMock = mock(CommitIndex.class);
+        RefService refServiceMock = mock(RefService.class);
 
         ClassPathResource classPathResource = new ClassPathResource("tagged-bad.yaml");
         File resource = classPathResource.getFile();
         String testString = new String(Files.readAllBytes(Paths.get(resource.getPath())));
 
-        YamlValidatorPreReceiveRepositoryHook hook = new YamlValidatorPreReceiveRepositoryHook(commitServiceMock,
-                contentServiceMock, commitIndexMock);
+        YamlValidatorPreReceiveRepositoryHook hook = newHook(commitServiceMock, contentFetcherMock,
+                commitIndexMock, refServiceMock);
 
         ConcurrentMap<String, String> results = new ConcurrentHashMap<>();
         boolean check = hook.checkFile(testString, results, resource.getPath());
 
         assertFalse("Uncaught bad data", check);
     }
+
+    private static YamlValidatorPreReceiveRepositoryHook newHook(CommitService commitService,
+                                                                 ContentFetcher contentFetcher,
+                                                                 CommitIndex commitIndex, RefService refService) {
+        return newHook(commitService, contentFetcher, commitIndex, refService, mock(ValidationAuditor.class));
+    }
+
+    private static YamlValidatorPreReceiveRepositoryHook newHook(CommitService commitService,
+                                                                 ContentFetcher contentFetcher,
+                                                                 CommitIndex commitIndex, RefService refService,
+                                                                 ValidationAuditor validationAuditor) {
+        return newHook(commitService, contentFetcher,
+                new ChangeStreamer(commitService, mock(GitCommandBuilderFactory.class)), commitIndex, refService,
+                validationAuditor);
+    }
+
+    /**
+     * A hook with its own cache, metrics and a single validation thread, so that no test sees another's verdicts
+     */
+    private static YamlValidatorPreReceiveRepositoryHook newHook(CommitService commitService,
+                                                                 ContentFetcher contentFetcher,
+                                                                 ChangeStreamer changeStreamer,
+                                                                 CommitIndex commitIndex, RefService refService,
+                                                                 ValidationAuditor validationAuditor) {
+        return new YamlValidatorPreReceiveRepositoryHook(commitService, contentFetcher, changeStreamer, commitIndex,
+                refService, new ValidationResultCache(),
+                new ValidationScheduler(new ValidationWorkerPool(1), mock(AuthenticationContext.class)),
+                new ValidationMetrics(), new SchemaRegistry(mock(GitCommandBuilderFactory.class)), validationAuditor);
+    }
+
+    private static RefChange refChange(String fromHash, String toHash) {
+        RefChange refChange = mock(RefChange.class);
+        when(refChange.getFromHash()).thenReturn(fromHash);
+        when(refChange.getToHash()).thenReturn(toHash);
+        return refChange;
+    }
+
+    private static void streamChanges(CommitService commitServiceMock, Change... changes) {
+        doAnswer(invocation -> {
+            ChangeCallback callback = invocation.getArgument(1);
+            for (Change change : changes) {
+                callback.onChange(change);
+            }
+            callback.onEnd(mock(ChangeSummary.class));
+            return null;
+        }).when(commitServiceMock).streamChanges(any(ChangesRequest.class), any(ChangeCallback.class));
+    }
 }